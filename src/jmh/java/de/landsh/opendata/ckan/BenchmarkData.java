@@ -0,0 +1,152 @@
+package de.landsh.opendata.ckan;
+
+import de.landsh.opendata.Locn;
+import de.landsh.opendata.SPDX;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Testdaten für die Benchmarks: die vorhandenen Fixtures sowie künstlich vergrößerte Varianten.
+ */
+final class BenchmarkData {
+
+    static final String GEOJSON_TYPE = "https://www.iana.org/assignments/media-types/application/vnd.geo+json";
+
+    private BenchmarkData() {
+    }
+
+    static Resource loadDataset(String resourceName) {
+        final Model model = ModelFactory.createDefaultModel();
+        model.read(BenchmarkData.class.getResourceAsStream(resourceName), "https://opendata.schleswig-holstein.de/");
+        return model.listSubjectsWithProperty(RDF.type, DCAT.Dataset).nextResource();
+    }
+
+    static byte[] readFixture(String resourceName) {
+        try {
+            return IOUtils.toByteArray(BenchmarkData.class.getResourceAsStream(resourceName));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Ein GeoJSON Polygon mit etwa der angegebenen Größe in Bytes.
+     */
+    static String polygon(int approximateBytes) {
+        final int points = Math.max(4, approximateBytes / 24);
+        final StringBuilder sb = new StringBuilder("{\"type\":\"Polygon\",\"coordinates\":[[");
+        for (int i = 0; i < points; i++) {
+            final double angle = 2 * Math.PI * i / points;
+            sb.append(String.format(Locale.ROOT, "[%.6f,%.6f],", 10.0 + Math.cos(angle), 54.0 + Math.sin(angle)));
+        }
+        sb.append("[11.000000,54.000000]]]}");
+        return sb.toString();
+    }
+
+    /**
+     * Ein Dataset im Stil von dataset.xml mit vielen Distributionen und einer großen Geometrie.
+     */
+    static Resource syntheticDataset(int distributions, int geometryBytes) {
+        final Model model = ModelFactory.createDefaultModel();
+        final Resource dataset = model.createResource("https://opendata.schleswig-holstein.de/dataset/synthetic")
+                .addProperty(RDF.type, DCAT.Dataset)
+                .addProperty(DCTerms.title, "Synthetic dataset")
+                .addProperty(DCTerms.description, "A large synthetic dataset")
+                .addProperty(DCTerms.license, model.createResource("http://dcat-ap.de/def/licenses/cc-by/4.0"))
+                .addProperty(DCTerms.publisher, model.createResource("https://opendata.schleswig-holstein.de/organization/2a6d6241-fdfd-4d9a-9106-8c658be43a27"))
+                .addProperty(DCAT.theme, model.createResource("http://publications.europa.eu/resource/authority/data-theme/TRAN"))
+                .addProperty(DCAT.keyword, "synthetic")
+                .addProperty(DCTerms.issued, "2020-10-13")
+                .addProperty(DCTerms.modified, model.createTypedLiteral("2020-10-13"));
+
+        if (geometryBytes > 0) {
+            dataset.addProperty(DCTerms.spatial, model.createResource()
+                    .addProperty(Locn.geometry, model.createTypedLiteral(polygon(geometryBytes),
+                            TypeMapper.getInstance().getSafeTypeByName(GEOJSON_TYPE))));
+        }
+
+        for (int i = 0; i < distributions; i++) {
+            final Resource distribution = model.createResource(dataset.getURI() + "/resource/" + i)
+                    .addProperty(RDF.type, DCAT.Distribution)
+                    .addProperty(DCAT.downloadURL, model.createResource("http://example.org/data-" + i + ".csv"))
+                    .addProperty(DCAT.accessURL, model.createResource("http://example.org/data-" + i + ".csv"))
+                    .addProperty(DCTerms.title, "data-" + i + ".csv")
+                    .addProperty(DCTerms.format, model.createResource("http://publications.europa.eu/resource/authority/file-type/CSV"))
+                    .addProperty(DCTerms.license, model.createResource("http://dcat-ap.de/def/licenses/cc-by/4.0"))
+                    .addProperty(SPDX.checksum, model.createResource()
+                            .addProperty(SPDX.checksumValue, String.format(Locale.ROOT, "%032x", i))
+                            .addProperty(SPDX.algorithm, model.createResource("http://dcat-ap.de/def/hashAlgorithms/md/5")));
+            dataset.addProperty(DCAT.distribution, distribution);
+        }
+        return dataset;
+    }
+
+    /**
+     * Eine package_show Antwort mit vielen Extras, Resources und einer großen Geometrie.
+     */
+    static byte[] syntheticPackageShow(int extras, int resources, int geometryBytes) {
+        final JSONObject dataset = new JSONObject();
+        dataset.put("id", "ed667223-6205-43f6-a2da-0acba4d53ddd");
+        dataset.put("name", "synthetic");
+        dataset.put("type", "dataset");
+        dataset.put("organization", new JSONObject().put("id", "f2d024c8-dbcc-4786-837e-d4eca1a23a57"));
+
+        final JSONArray extrasArray = new JSONArray();
+        for (int i = 0; i < extras; i++) {
+            extrasArray.put(new JSONObject().put("key", "extra_" + i).put("value", "value " + i));
+        }
+        extrasArray.put(new JSONObject().put("key", "spatial").put("value", polygon(geometryBytes)));
+        dataset.put("extras", extrasArray);
+
+        final JSONArray resourceArray = new JSONArray();
+        for (int i = 0; i < resources; i++) {
+            resourceArray.put(new JSONObject()
+                    .put("id", "resource-" + i)
+                    .put("package_id", "ed667223-6205-43f6-a2da-0acba4d53ddd")
+                    .put("url", "http://example.org/data-" + i + ".csv")
+                    .put("name", "data-" + i + ".csv")
+                    .put("format", "CSV")
+                    .put("mimetype", "text/csv")
+                    .put("hash", String.format(Locale.ROOT, "%032x", i))
+                    .put("size", 1000 + i));
+        }
+        dataset.put("resources", resourceArray);
+        dataset.put("relationships_as_subject", new JSONArray().put(new JSONObject()
+                .put("__extras", new JSONObject().put("object_package_id", "6f30a595-9210-4f24-8873-b52c72401468"))));
+
+        return new JSONObject().put("success", true).put("result", dataset).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ein CkanAPI, das nichts sendet, damit nur die Abbildung gemessen wird.
+     */
+    static class NoopCkanAPI extends CkanAPI {
+        @Override
+        public String createPackage(JSONObject json) {
+            return "package";
+        }
+
+        @Override
+        public String createResource(JSONObject json) {
+            return "resource";
+        }
+
+        @Override
+        public boolean putDatasetInCollection(String datasetId, String collectionId) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.landsh.opendata.ckan;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Misst das Einlesen von package_show Antworten und das Auswerten der Resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CkanResponseBenchmark {
+
+    private static final JsonSelection RELATIONSHIPS = JsonSelection.of("success", "result.relationships_as_subject");
+
+    @Param({"package_show__kindertagesstatten1.json", "package_show__badegewasser-stammdaten1.json", "synthetic"})
+    public String fixture;
+
+    private final CkanAPI ckanAPI = new CkanAPI();
+    private byte[] response;
+    private JSONObject dataset;
+
+    @Setup
+    public void setUp() {
+        if ("synthetic".equals(fixture)) {
+            response = BenchmarkData.syntheticPackageShow(1000, 500, 1024 * 1024);
+        } else {
+            response = BenchmarkData.readFixture("/" + fixture);
+        }
+        dataset = new JSONObject(new String(response, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public JSONObject parseString() {
+        return new JSONObject(new String(response, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public JSONObject parseStream() throws IOException {
+        return StreamingJsonReader.read(new ByteArrayInputStream(response), JsonSelection.ALL);
+    }
+
+    @Benchmark
+    public JSONObject parseStreamRelationships() throws IOException {
+        return StreamingJsonReader.read(new ByteArrayInputStream(response), RELATIONSHIPS);
+    }
+
+    @Benchmark
+    public List<Resource> getResources() {
+        return ckanAPI.getResources(dataset);
+    }
+}
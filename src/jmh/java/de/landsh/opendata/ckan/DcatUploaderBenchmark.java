@@ -0,0 +1,49 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.jena.rdf.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Misst die Abbildung von DCAT auf CKAN Packages ohne Netzwerkzugriffe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DcatUploaderBenchmark {
+
+    @Param({"dataset.xml", "dataset-with-geometry.xml", "500-distributions", "1mb-geometry"})
+    public String variant;
+
+    private DcatUploader dcatUploader;
+    private Resource dataset;
+
+    @Setup
+    public void setUp() {
+        dcatUploader = new DcatUploader(new BenchmarkData.NoopCkanAPI());
+        switch (variant) {
+            case "500-distributions":
+                dataset = BenchmarkData.syntheticDataset(500, 1000);
+                break;
+            case "1mb-geometry":
+                dataset = BenchmarkData.syntheticDataset(1, 1024 * 1024);
+                break;
+            default:
+                dataset = BenchmarkData.loadDataset("/" + variant);
+        }
+    }
+
+    @Benchmark
+    public String upload() throws IOException {
+        return dcatUploader.upload(dataset);
+    }
+}
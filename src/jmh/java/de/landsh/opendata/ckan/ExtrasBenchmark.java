@@ -0,0 +1,46 @@
+package de.landsh.opendata.ckan;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baut die Extras eines Packages über {@link DcatUploader#setExtraValue(JSONObject, String, String)} auf.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtrasBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int extras;
+
+    private String[] extraKeys;
+
+    @Setup
+    public void setUp() {
+        extraKeys = new String[extras];
+        for (int i = 0; i < extras; i++) {
+            extraKeys[i] = "extra_" + i;
+        }
+    }
+
+    @Benchmark
+    public JSONObject setExtraValue() {
+        final JSONObject json = new JSONObject();
+        json.put("extras", new JSONArray());
+        for (String key : extraKeys) {
+            DcatUploader.setExtraValue(json, key, "value");
+        }
+        return json;
+    }
+}
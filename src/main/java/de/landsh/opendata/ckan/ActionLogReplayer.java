@@ -0,0 +1,301 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schickt ein mit dem {@link RecordingRestClient} geschriebenes Aktionsprotokoll an ein Portal.
+ * <p>
+ * Die Actions werden auf {@link #getParallelism()} Spuren verteilt; alle Actions desselben Packages landen auf
+ * derselben Spur und werden in der Reihenfolge des Protokolls ausgeführt. Schlägt eine Action fehl, werden die
+ * folgenden Actions dieses Packages übersprungen; beide werden in die {@link #getRejectFile() Datei für abgelehnte
+ * Actions} geschrieben und können nach der Korrektur erneut abgespielt werden.
+ * <p>
+ * Im Checkpoint wird die Zeile gespeichert, bis zu der alle Actions abgearbeitet sind. Ein erneuter Start mit
+ * demselben Checkpoint setzt danach fort. Actions nach dem Checkpoint, die vor einem Abbruch bereits ausgeführt
+ * wurden, werden dabei erneut geschickt.
+ */
+public class ActionLogReplayer {
+
+    private static final Logger log = LoggerFactory.getLogger(ActionLogReplayer.class);
+    private static final Object POISON = new Object();
+
+    private final CkanAPI ckanAPI;
+
+    /**
+     * Die Anzahl der Spuren und damit der gleichzeitigen Aufrufe.
+     */
+    @Getter
+    @Setter
+    private int parallelism = 8;
+    /**
+     * Maximale Anzahl eingelesener, aber noch nicht ausgeführter Actions je Spur.
+     */
+    @Getter
+    @Setter
+    private int queueCapacity = 1000;
+    /**
+     * Nach wie vielen abgearbeiteten Actions der Checkpoint geschrieben wird.
+     */
+    @Getter
+    @Setter
+    private int checkpointInterval = 1000;
+    /**
+     * In diese Datei werden abgelehnte und übersprungene Actions samt Fehler angehängt.
+     */
+    @Getter
+    @Setter
+    private Path rejectFile;
+
+    public ActionLogReplayer(CkanAPI ckanAPI) {
+        this.ckanAPI = ckanAPI;
+    }
+
+    /**
+     * Spielt das Protokoll ab.
+     *
+     * @param checkpoint die Datei für den Checkpoint oder <code>null</code>, um immer von vorne zu beginnen
+     */
+    public ReplayResult replay(Path actionLog, Path checkpoint) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(actionLog, StandardCharsets.UTF_8);
+             BufferedWriter rejects = rejectFile == null ? null : Files.newBufferedWriter(rejectFile,
+                     StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            final Run run = new Run(checkpoint, readCheckpoint(checkpoint), rejects);
+            try {
+                String line;
+                long lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (lineNumber > run.startedAt && !line.isEmpty()) {
+                        run.submit(lineNumber, new JSONObject(line));
+                    } else if (lineNumber > run.startedAt) {
+                        run.completed(lineNumber);
+                    }
+                }
+            } finally {
+                run.finish();
+            }
+            return run.getResult();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static long readCheckpoint(Path checkpoint) throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return 0;
+        }
+        final String content = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim();
+        return content.isEmpty() ? 0 : Long.parseLong(content);
+    }
+
+    private static void writeCheckpoint(Path checkpoint, long line) throws IOException {
+        final Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(tmp, Long.toString(line).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class Action {
+        final long line;
+        final JSONObject entry;
+
+        Action(long line, JSONObject entry) {
+            this.line = line;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Ein Durchlauf des Replayers.
+     */
+    private final class Run {
+        private final Path checkpoint;
+        private final long startedAt;
+        private final BufferedWriter rejects;
+        private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private final Set<String> failedKeys = ConcurrentHashMap.newKeySet();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+
+        /**
+         * Abgearbeitete Zeilen nach dem Checkpoint, die noch auf eine vorherige warten.
+         */
+        private final TreeSet<Long> done = new TreeSet<>();
+        private long watermark;
+        private long written;
+        private IOException checkpointError;
+
+        Run(Path checkpoint, long startedAt, BufferedWriter rejects) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be at least 1");
+            }
+            this.checkpoint = checkpoint;
+            this.startedAt = startedAt;
+            this.watermark = startedAt;
+            this.written = startedAt;
+            this.rejects = rejects;
+            if (startedAt > 0) {
+                log.info("Resuming replay after line {}", startedAt);
+            }
+
+            final ThreadFactory threadFactory = TaskExecutors.threadFactory("ckan-replay");
+            for (int i = 0; i < parallelism; i++) {
+                final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueCapacity);
+                final Thread thread = threadFactory.newThread(() -> work(queue));
+                thread.start();
+                queues.add(queue);
+                threads.add(thread);
+            }
+        }
+
+        void submit(long line, JSONObject entry) {
+            final String key = entry.optString("key");
+            final BlockingQueue<Object> queue = queues.get(Math.floorMod(key.hashCode(), queues.size()));
+            try {
+                queue.put(new Action(line, entry));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Replay interrupted", e);
+            }
+        }
+
+        private void work(BlockingQueue<Object> queue) {
+            try {
+                while (true) {
+                    final Object item = queue.take();
+                    if (item == POISON) {
+                        return;
+                    }
+                    execute((Action) item);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void execute(Action action) {
+            final String key = action.entry.optString("key");
+            try {
+                if (failedKeys.contains(key)) {
+                    skipped.incrementAndGet();
+                    reject(action, "Skipped after a failed action of " + key);
+                    return;
+                }
+
+                String error;
+                try {
+                    final JSONObject response = ckanAPI.callAction(action.entry.getString("action"),
+                            action.entry.getJSONObject("data"));
+                    error = response != null && response.optBoolean("success") ? null
+                            : Objects.toString(response == null ? null : response.opt("error"));
+                } catch (IOException | RuntimeException e) {
+                    error = e.toString();
+                }
+
+                if (error == null) {
+                    succeeded.incrementAndGet();
+                } else {
+                    log.warn("{} in line {} failed: {}", action.entry.optString("action"), action.line, error);
+                    failed.incrementAndGet();
+                    failedKeys.add(key);
+                    reject(action, error);
+                }
+            } finally {
+                completed(action.line);
+            }
+        }
+
+        private void reject(Action action, String error) {
+            if (rejects == null) return;
+            final String line = new JSONObject(action.entry.toString()).put("error", error).toString();
+            synchronized (rejects) {
+                try {
+                    rejects.write(line);
+                    rejects.write('\n');
+                } catch (IOException e) {
+                    log.error("Could not write rejected action of line {}", action.line, e);
+                }
+            }
+        }
+
+        /**
+         * Vermerkt eine abgearbeitete Zeile und schreibt gelegentlich den Checkpoint.
+         */
+        synchronized void completed(long line) {
+            done.add(line);
+            while (!done.isEmpty() && done.first() == watermark + 1) {
+                watermark = done.pollFirst();
+            }
+            if (checkpoint != null && watermark - written >= checkpointInterval) {
+                saveCheckpoint();
+            }
+        }
+
+        private void saveCheckpoint() {
+            try {
+                if (rejects != null) {
+                    // abgelehnte Actions dürfen nicht hinter dem Checkpoint verloren gehen
+                    synchronized (rejects) {
+                        rejects.flush();
+                    }
+                }
+                writeCheckpoint(checkpoint, watermark);
+                written = watermark;
+            } catch (IOException e) {
+                checkpointError = e;
+            }
+        }
+
+        void finish() {
+            try {
+                for (BlockingQueue<Object> queue : queues) {
+                    queue.put(POISON);
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                threads.forEach(Thread::interrupt);
+                throw new IllegalStateException("Replay interrupted", e);
+            }
+            synchronized (this) {
+                if (checkpoint != null && watermark > written) {
+                    saveCheckpoint();
+                }
+                if (checkpointError != null) {
+                    throw new UncheckedIOException(checkpointError);
+                }
+            }
+        }
+
+        synchronized ReplayResult getResult() {
+            return new ReplayResult(succeeded.get(), failed.get(), skipped.get(), watermark);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.landsh.opendata.ckan;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Begrenzt die Anzahl gleichzeitiger Aufrufe nach dem AIMD-Verfahren: Nach jedem erfolgreichen Aufruf steigt die
+ * Grenze um <code>1/limit</code> (also etwa um eins je ausgeschöpfter Grenze), bei Überlast wird sie halbiert.
+ */
+class AdaptiveLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+
+    AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("invalid limits " + minLimit + ".." + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    synchronized void acquire() throws InterruptedIOException {
+        try {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free slot");
+        }
+        inFlight++;
+    }
+
+    /**
+     * @param overloaded CKAN war überlastet (z.B. HTTP 429/503 oder zu lange Antwortzeit)
+     */
+    synchronized void release(boolean overloaded) {
+        inFlight--;
+        if (overloaded) {
+            limit = Math.max(minLimit, limit / 2);
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+}
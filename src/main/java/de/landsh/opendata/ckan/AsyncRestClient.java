@@ -0,0 +1,21 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Nicht-blockierendes Gegenstück zu {@link RestClient}. Der Aufruf kehrt sofort zurück, das JSON Dokument wird
+ * geliefert, sobald die Antwort vollständig eingetroffen ist.
+ */
+public interface AsyncRestClient {
+    CompletableFuture<JSONObject> executeHttpRequestAsync(HttpUriRequest request);
+
+    /**
+     * Wie {@link #executeHttpRequestAsync(HttpUriRequest)}, liefert aber nur die ausgewählten Felder der Antwort.
+     */
+    default CompletableFuture<JSONObject> executeHttpRequestAsync(HttpUriRequest request, JsonSelection selection) {
+        return executeHttpRequestAsync(request).thenApply(selection::apply);
+    }
+}
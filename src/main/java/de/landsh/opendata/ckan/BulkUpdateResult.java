@@ -0,0 +1,25 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Ergebnis eines einzelnen <code>bulk_update_private</code> bzw. <code>bulk_update_public</code> Aufrufs.
+ */
+@Data
+public class BulkUpdateResult {
+    /**
+     * Die Organisation der Packages oder <code>null</code>, wenn die Packages nicht gefunden wurden.
+     */
+    private final String organizationId;
+    /**
+     * Die Packages dieses Aufrufs.
+     */
+    private final List<String> packageIds;
+    private final boolean success;
+    /**
+     * Die Fehlermeldung von CKAN oder <code>null</code>.
+     */
+    private final String error;
+}
@@ -0,0 +1,55 @@
+package de.landsh.opendata.ckan;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Prüfsummenverfahren mit ihren URIs aus dem DCAT-AP.de Vokabular, wie sie auch in <code>spdx:algorithm</code>
+ * verwendet werden.
+ */
+public enum ChecksumAlgorithm {
+    MD5("MD5", "http://dcat-ap.de/def/hashAlgorithms/md/5"),
+    SHA1("SHA-1", "http://dcat-ap.de/def/hashAlgorithms/sha/1"),
+    SHA256("SHA-256", "http://dcat-ap.de/def/hashAlgorithms/sha/256"),
+    SHA512("SHA-512", "http://dcat-ap.de/def/hashAlgorithms/sha/512");
+
+    private final String javaName;
+    private final String uri;
+
+    ChecksumAlgorithm(String javaName, String uri) {
+        this.javaName = javaName;
+        this.uri = uri;
+    }
+
+    /**
+     * Liefert das Verfahren zu einem URI oder <code>null</code>, wenn es unbekannt ist.
+     */
+    public static ChecksumAlgorithm fromURI(String uri) {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.uri.equals(uri)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    public String getURI() {
+        return uri;
+    }
+
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(javaName);
+        } catch (NoSuchAlgorithmException e) {
+            // MD5, SHA-1, SHA-256 und SHA-512 muss jede Java Laufzeitumgebung anbieten
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Länge der Prüfsumme als Hex-String.
+     */
+    int getHexLength() {
+        return newDigest().getDigestLength() * 2;
+    }
+}
@@ -4,89 +4,261 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
-public class CkanAPI {
+public class CkanAPI implements Closeable {
 
     private static final Logger log = LoggerFactory.getLogger(CkanAPI.class);
+    /**
+     * Für Schreibzugriffe, bei denen nur der Erfolg interessiert. CKAN liefert z.B. bei package_update das
+     * vollständige Package zurück, das so nicht eingelesen werden muss.
+     */
+    private static final JsonSelection SUCCESS = JsonSelection.of("success", "error");
+    private static final JsonSelection CREATED = JsonSelection.of("success", "error", "result.id");
+    private static final JsonSelection RELATIONSHIPS = JsonSelection.of("success", "result.relationships_as_subject");
+    private static final JsonSelection INDEX = JsonSelection.of("success", "error", "result.count",
+            "result.results.id", "result.results.name", "result.results.owner_org", "result.results.metadata_modified",
+            "result.results.extras_" + DcatUploader.FINGERPRINT_KEY, "result.results.extras");
+    /**
+     * Schlüssel für Packages ohne Organisation in {@link #groupByOrganization(Collection)}.
+     */
+    static final String NO_ORGANIZATION = "";
+    private static final JsonSelection SUCCESS_AND_RESULT = JsonSelection.of("success", "error", "result");
+    private static final JsonSelection ID_AND_NAME = JsonSelection.of("success", "error", "result.id", "result.name");
+    private static final JsonSelection ORGANIZATIONS = JsonSelection.of("success", "result.results.id",
+            "result.results.name", "result.results.owner_org");
     private final String baseURL;
     private final ApiKey apiKey;
+    private final ConnectionSettings connectionSettings;
     private RestClient restClient;
+    private AsyncRestClient asyncRestClient;
+    /**
+     * Die Clients für das Portal, solange {@link #record(RecordingRestClient)} Actions protokolliert.
+     */
+    private RestClient portalRestClient;
+    private AsyncRestClient portalAsyncRestClient;
+    private PackageCache packageCache;
+    private CkanMetrics metrics = CkanMetrics.NOOP;
+    private int bulkChunkSize = 100;
+    private long newestDatasetTTLNanos = TimeUnit.MINUTES.toNanos(1);
+    private NewestDatasetResolver newestDatasetResolver;
+    private ExecutorService newestDatasetExecutor;
+    private volatile long vocabularyTTLNanos = TimeUnit.MINUTES.toNanos(10);
+    private volatile LoadedVocabulary vocabulary;
+    /**
+     * Gleichzeitige Aufrufe von {@link #getPortalVocabulary()} warten auf dasselbe Laden, ohne dabei andere Methoden
+     * dieser Klasse zu blockieren.
+     */
+    private final SingleFlight<String, PortalVocabulary> vocabularyCalls = new SingleFlight<>();
+    private volatile RequestCompression requestCompression = RequestCompression.OFF;
+    /**
+     * Ob das Portal komprimierte Anfragen versteht; <code>null</code>, solange das bei
+     * {@link RequestCompression#AUTO} noch nicht ausprobiert wurde.
+     */
+    private volatile Boolean gzipAccepted;
+    /**
+     * Gleichzeitige package_show Abfragen desselben Packages teilen sich einen HTTP Aufruf.
+     */
+    private final SingleFlight<String, JSONObject> packageShowCalls = new SingleFlight<>();
+    /**
+     * Zählt die abgeschlossenen schreibenden Aufrufe. Er ist Teil des Schlüssels in {@link #packageShowCalls}, damit
+     * sich ein Aufrufer nach einem Schreibzugriff keiner Abfrage anschließt, die noch den alten Stand liefert.
+     */
+    private final AtomicLong writes = new AtomicLong();
 
     CkanAPI() {
         baseURL = null;
         apiKey = null;
+        connectionSettings = null;
     }
 
     public CkanAPI(final String baseURL, final ApiKey apiKey) {
+        this(baseURL, apiKey, new ConnectionSettings());
+    }
+
+    /**
+     * Erzeugt ein threadsicheres API, dessen Verbindungen zum Portal in einem Pool gehalten werden. Eine Instanz
+     * kann daher von mehreren Upload-Threads gemeinsam genutzt werden.
+     */
+    public CkanAPI(final String baseURL, final ApiKey apiKey, final ConnectionSettings connectionSettings) {
         this.apiKey = apiKey;
         this.baseURL = baseURL;
+        this.connectionSettings = connectionSettings;
 
-        int timeout = 10;
-        final RequestConfig config = RequestConfig.custom()
-                .setConnectTimeout(timeout * 1000)
-                .setConnectionRequestTimeout(timeout * 1000)
-                .setSocketTimeout(timeout * 1000).build();
-        final CloseableHttpClient client =
-                HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+        restClient = HttpRestClient.create(connectionSettings);
+    }
 
-        restClient = new HttpRestClient(client, HttpClientContext.create());
+    public void setRestClient(RestClient restClient) {
+        this.restClient = meter(restClient);
     }
 
     /**
-     * Calculate a file's checksum.
+     * Misst alle Aufrufe dieses API mit den übergebenen {@link CkanMetrics}. Auch später gesetzte Clients werden
+     * gemessen.
+     *
+     * @param metrics die Messwerte oder {@link CkanMetrics#NOOP}, um die Messung abzuschalten
      */
-    private static String getFileChecksum(MessageDigest digest, File file) throws IOException {
-        FileInputStream fis = new FileInputStream(file);
-        byte[] byteArray = new byte[1024];
-        int bytesCount = 0;
-        while ((bytesCount = fis.read(byteArray)) != -1) {
-            digest.update(byteArray, 0, bytesCount);
+    public synchronized void setMetrics(CkanMetrics metrics) {
+        this.metrics = metrics;
+        restClient = meter(restClient);
+        if (asyncRestClient != null) {
+            asyncRestClient = meter(asyncRestClient);
         }
+    }
 
-        fis.close();
+    /**
+     * Wiederholt fehlgeschlagene Aufrufe und passt die Anzahl gleichzeitiger Aufrufe an die Last von CKAN an.
+     *
+     * @see ResilientRestClient
+     */
+    public synchronized void enableRetries(ResilienceSettings settings) {
+        RestClient client = restClient;
+        if (client instanceof MeteredRestClient) {
+            client = ((MeteredRestClient) client).getDelegate();
+        }
+        if (client instanceof ResilientRestClient) {
+            client = ((ResilientRestClient) client).getDelegate();
+        }
+        setRestClient(new ResilientRestClient(client, settings));
+    }
 
-        byte[] bytes = digest.digest();
+    /**
+     * Schickt schreibende Actions ab jetzt nicht mehr an das Portal, sondern protokolliert sie. Das Protokoll kann
+     * später mit dem {@link ActionLogReplayer} an ein Portal geschickt werden. Die bisherigen Clients bleiben offen
+     * und werden mit {@link #stopRecording()} wieder verwendet oder mit {@link #close()} geschlossen.
+     */
+    public synchronized void record(RecordingRestClient recorder) {
+        if (!isRecording()) {
+            portalRestClient = restClient;
+            portalAsyncRestClient = asyncRestClient;
+        }
+        restClient = meter((RestClient) recorder);
+        asyncRestClient = meter((AsyncRestClient) recorder);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (byte aByte : bytes) {
-            sb.append(Integer.toString((aByte & 0xff) + 0x100, 16).substring(1));
+    /**
+     * Schickt Actions wieder an das Portal. Der {@link RecordingRestClient} wird nicht geschlossen.
+     */
+    public synchronized void stopRecording() {
+        if (isRecording()) {
+            restClient = meter(portalRestClient);
+            asyncRestClient = portalAsyncRestClient == null ? null : meter(portalAsyncRestClient);
+            portalRestClient = null;
+            portalAsyncRestClient = null;
         }
+    }
 
-        return sb.toString();
+    private boolean isRecording() {
+        return portalRestClient != null;
     }
 
-    public void setRestClient(RestClient restClient) {
-        this.restClient = restClient;
+    public CkanMetrics getMetrics() {
+        return metrics;
+    }
+
+    private RestClient meter(RestClient client) {
+        if (client instanceof MeteredRestClient) {
+            client = ((MeteredRestClient) client).getDelegate();
+        }
+        MeteredRestClient.setTransferListener(client, null);
+        return client == null || metrics == CkanMetrics.NOOP ? client : new MeteredRestClient(client, metrics);
+    }
+
+    private AsyncRestClient meter(AsyncRestClient client) {
+        if (client instanceof MeteredAsyncRestClient) {
+            client = ((MeteredAsyncRestClient) client).getDelegate();
+        }
+        if (client instanceof HttpAsyncRestClient) {
+            ((HttpAsyncRestClient) client).setTransferListener(null);
+        }
+        return client == null || metrics == CkanMetrics.NOOP ? client : new MeteredAsyncRestClient(client, metrics);
+    }
+
+    /**
+     * Aktiviert einen Zwischenspeicher für gelesene Packages. Eigene Schreibzugriffe über dieses API entfernen die
+     * betroffenen Packages aus dem Cache; Änderungen durch Dritte werden erst nach Ablauf der Lebensdauer sichtbar.
+     *
+     * @param packageCache der Cache oder <code>null</code>, um ihn abzuschalten
+     */
+    public void setPackageCache(PackageCache packageCache) {
+        this.packageCache = packageCache;
+    }
+
+    public PackageCache getPackageCache() {
+        return packageCache;
+    }
+
+    private void invalidate(String... packageIds) {
+        writes.incrementAndGet();
+        final PackageCache cache = packageCache;
+        if (cache != null) {
+            for (String packageId : packageIds) {
+                cache.invalidate(packageId);
+            }
+        }
+    }
+
+    private void invalidateResource(String resourceId) {
+        writes.incrementAndGet();
+        final PackageCache cache = packageCache;
+        if (cache != null) {
+            cache.invalidateResource(resourceId);
+        }
+    }
+
+    /**
+     * Der Schlüssel einer package_show Abfrage in {@link #packageShowCalls}.
+     */
+    private String flightKey(String kind, String packageId) {
+        return kind + ":" + packageId + "@" + writes.get();
+    }
+
+    public synchronized void setAsyncRestClient(AsyncRestClient asyncRestClient) {
+        this.asyncRestClient = meter(asyncRestClient);
+    }
+
+    /**
+     * Der asynchrone Client wird erst bei der ersten Verwendung erzeugt, da er eigene I/O-Threads startet.
+     */
+    private synchronized AsyncRestClient getAsyncRestClient() {
+        if (asyncRestClient == null) {
+            asyncRestClient = meter(HttpAsyncRestClient.create(connectionSettings));
+        }
+        return asyncRestClient;
     }
 
     /**
@@ -96,26 +268,205 @@ public class CkanAPI {
      * @return packageId des neuesten Dataset
      */
     public String findNewestDataset(String collectionId) throws IOException {
-        HttpGet request = new HttpGet(baseURL + "/collection/" + collectionId + "/aktuell");
-        HttpParams params = new BasicHttpParams();
-        params.setParameter(ClientPNames.HANDLE_REDIRECTS, false);
-        request.setParams(params);
-        CloseableHttpResponse response = restClient.executeRawHttpRequest(request);
+        final HttpGet request = new HttpGet(baseURL + "/collection/" + collectionId + "/aktuell");
+        final RequestConfig.Builder config = RequestConfig.custom().setRedirectsEnabled(false);
+        if (connectionSettings != null) {
+            // die Konfiguration des Requests ersetzt die des Clients vollständig
+            final int timeoutMillis = connectionSettings.getTimeoutSeconds() * 1000;
+            config.setConnectTimeout(timeoutMillis)
+                    .setConnectionRequestTimeout(timeoutMillis)
+                    .setSocketTimeout(timeoutMillis);
+        }
+        request.setConfig(config.build());
 
-        Header header = response.getFirstHeader("Location");
+        try (CloseableHttpResponse response = restClient.executeRawHttpRequest(request)) {
+            final Header header = response.getFirstHeader("Location");
+            final String redirectURL = header == null ? null : header.getValue();
+            return StringUtils.substringAfterLast(redirectURL, "/");
+        }
+    }
 
-        String redirectURL = header == null ? null : header.getValue();
+    /**
+     * Bestimmt das neueste Dataset vieler Collections gleichzeitig über den Connection-Pool. Die Ergebnisse werden
+     * für {@link #setNewestDatasetTTL(long, TimeUnit)} zwischengespeichert; {@link #putDatasetInCollection} und
+     * {@link #removeDatasetFromCollection} verwerfen den Eintrag der betroffenen Collection.
+     *
+     * @return das neueste Dataset je Collection; Collections, deren Abfrage fehlschlägt, fehlen
+     * @see NewestDatasetResolver#resolve(Collection)
+     */
+    public Map<String, String> findNewestDatasets(Collection<String> collectionIds) {
+        return getNewestDatasetResolver().resolve(collectionIds);
+    }
 
-        String packageId = StringUtils.substringAfterLast(redirectURL, "/");
+    /**
+     * Wie lange das Ergebnis von {@link #findNewestDatasets(Collection)} gültig bleibt, standardmäßig eine Minute.
+     */
+    public synchronized void setNewestDatasetTTL(long ttl, TimeUnit unit) {
+        newestDatasetTTLNanos = unit.toNanos(ttl);
+        newestDatasetResolver = null;
+    }
 
-        response.close();
+    private synchronized NewestDatasetResolver getNewestDatasetResolver() {
+        if (newestDatasetResolver == null) {
+            if (newestDatasetExecutor == null) {
+                final int threads = connectionSettings == null ? 4 : connectionSettings.getMaxPerRoute();
+                newestDatasetExecutor = TaskExecutors.newExecutor("ckan-newest-dataset", threads);
+            }
+            newestDatasetResolver = new NewestDatasetResolver(this::findNewestDataset, newestDatasetExecutor,
+                    newestDatasetTTLNanos, TimeUnit.NANOSECONDS, System::nanoTime);
+        }
+        return newestDatasetResolver;
+    }
 
-        return packageId;
+    /**
+     * Liefert die Organisationen, Gruppen und Lizenzen des Portals. Sie werden mit <code>organization_list</code>,
+     * <code>group_list</code> und <code>license_list</code> geladen und für {@link #setPortalVocabularyTTL} (standardmäßig
+     * zehn Minuten) zwischengespeichert. Gleichzeitige Aufrufe warten auf dasselbe Laden.
+     */
+    public PortalVocabulary getPortalVocabulary() throws IOException {
+        final LoadedVocabulary loaded = vocabulary;
+        if (loaded != null && System.nanoTime() - loaded.loadedAt <= vocabularyTTLNanos) {
+            return loaded.vocabulary;
+        }
+        // PortalVocabulary ist unveränderlich und kann ohne Kopie geteilt werden
+        return vocabularyCalls.execute("vocabulary", this::loadPortalVocabulary, UnaryOperator.identity());
+    }
+
+    private PortalVocabulary loadPortalVocabulary() throws IOException {
+        final long start = System.nanoTime();
+        final Set<String> organizations = new LinkedHashSet<>();
+        for (Object o : listAll("organization_list?all_fields=true", 25, ID_AND_NAME)) {
+            final JSONObject organization = (JSONObject) o;
+            organizations.add(organization.getString("id"));
+            organizations.add(organization.getString("name"));
+        }
+        final Set<String> groups = new LinkedHashSet<>();
+        for (Object group : listAll("group_list", 1000, SUCCESS_AND_RESULT)) {
+            groups.add(group.toString());
+        }
+        final Set<String> licenses = new LinkedHashSet<>();
+        for (Object license : list("license_list", ID_AND_NAME)) {
+            licenses.add(((JSONObject) license).getString("id"));
+        }
+        log.debug("Loaded {} organization ids and names, {} groups and {} licenses", organizations.size(),
+                groups.size(), licenses.size());
+        final PortalVocabulary result = new PortalVocabulary(organizations, groups, licenses);
+        vocabulary = new LoadedVocabulary(result, start);
+        return result;
+    }
+
+    /**
+     * Wie lange {@link #getPortalVocabulary()} gültig bleibt.
+     */
+    public void setPortalVocabularyTTL(long ttl, TimeUnit unit) {
+        vocabularyTTLNanos = unit.toNanos(ttl);
+        vocabulary = null;
+    }
+
+    private static final class LoadedVocabulary {
+        final PortalVocabulary vocabulary;
+        final long loadedAt;
+
+        LoadedVocabulary(PortalVocabulary vocabulary, long loadedAt) {
+            this.vocabulary = vocabulary;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Ruft eine <code>..._list</code> Action mit <code>limit</code> und <code>offset</code> auf, bis alle Einträge
+     * gelesen sind. Ältere CKAN Versionen ignorieren die Parameter und liefern immer alles.
+     */
+    private List<Object> listAll(String action, int limit, JsonSelection selection) throws IOException {
+        final List<Object> result = new ArrayList<>();
+        final Set<String> seen = new LinkedHashSet<>();
+        final String separator = action.contains("?") ? "&" : "?";
+        while (true) {
+            final JSONArray page = list(action + separator + "limit=" + limit + "&offset=" + result.size(), selection);
+            int added = 0;
+            for (Object entry : page) {
+                if (seen.add(entry.toString())) {
+                    result.add(entry);
+                    added++;
+                }
+            }
+            if (page.length() < limit || added == 0) {
+                return result;
+            }
+        }
+    }
+
+    private JSONArray list(String action, JsonSelection selection) throws IOException {
+        final HttpGet request = new HttpGet(baseURL + "/api/3/action/" + action);
+        if (apiKey != null) {
+            request.addHeader("Authorization", apiKey.toString());
+        }
+        final JSONObject responseJSON = restClient.executeHttpRequest(request, selection);
+        if (!isResponseSuccess(responseJSON)) {
+            throw new IOException(StringUtils.substringBefore(action, "?") + " failed: " + responseJSON.opt("error"));
+        }
+        return responseJSON.getJSONArray("result");
+    }
+
+    private void invalidateNewestDataset(String collectionId) {
+        final NewestDatasetResolver resolver;
+        synchronized (this) {
+            resolver = newestDatasetResolver;
+        }
+        if (resolver != null) {
+            resolver.invalidate(collectionId);
+        }
     }
 
     public JSONObject readDataset(String packageId) throws IOException {
-        HttpGet httpGet = new HttpGet(baseURL + "/api/3/action/package_show?id=" + packageId);
-        JSONObject responseJSON = restClient.executeHttpRequest(httpGet);
+        final PackageCache cache = packageCache;
+        if (cache != null) {
+            final JSONObject cached = cache.get(packageId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        return packageShowCalls.execute(flightKey("dataset", packageId), () -> {
+            // ein während des Aufrufs geändertes Package darf nicht veraltet im Cache landen
+            final long generation = cache == null ? 0 : cache.generation();
+            final JSONObject responseJSON = restClient.executeHttpRequest(packageShow(packageId));
+            final JSONObject dataset = extractResult(responseJSON);
+            if (cache != null && dataset != null) {
+                cache.put(packageId, dataset, generation);
+            }
+            return dataset;
+        }, CkanAPI::copy);
+    }
+
+    private static JSONObject copy(JSONObject json) {
+        return json == null ? null : new JSONObject(json.toString());
+    }
+
+    /**
+     * Nicht-blockierende Variante von {@link #readDataset(String)}.
+     */
+    public CompletableFuture<JSONObject> readDatasetAsync(String packageId) {
+        final PackageCache cache = packageCache;
+        if (cache != null) {
+            final JSONObject cached = cache.get(packageId);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        final long generation = cache == null ? 0 : cache.generation();
+        return getAsyncRestClient().executeHttpRequestAsync(packageShow(packageId))
+                .thenApply(responseJSON -> {
+                    final JSONObject dataset = extractResult(responseJSON);
+                    if (cache != null && dataset != null) {
+                        cache.put(packageId, dataset, generation);
+                    }
+                    return dataset;
+                });
+    }
+
+    private static JSONObject extractResult(JSONObject responseJSON) {
         if (responseJSON.has("result")) {
             return responseJSON.getJSONObject("result");
         } else {
@@ -123,6 +474,74 @@ public class CkanAPI {
         }
     }
 
+    private HttpGet packageShow(String packageId) {
+        return new HttpGet(baseURL + "/api/3/action/package_show?id=" + packageId);
+    }
+
+    /**
+     * Erzeugt einen authentifizierten POST Request, der das JSON Dokument beim Senden direkt in die Verbindung
+     * schreibt.
+     */
+    private HttpPost jsonPost(String path, JSONObject json) {
+        final HttpPost httpPost = new HttpPost(baseURL + path);
+        httpPost.addHeader("Authorization", apiKey.toString());
+        httpPost.addHeader("Content-Type", "application/json");
+        final RequestCompression compression = requestCompression;
+        httpPost.setEntity(new JsonEntity(json, compression == RequestCompression.GZIP
+                || compression == RequestCompression.AUTO && Boolean.TRUE.equals(gzipAccepted)));
+        return httpPost;
+    }
+
+    /**
+     * Führt einen schreibenden Aufruf aus. Bei {@link RequestCompression#AUTO} wird, solange unbekannt ist, ob das
+     * Portal komprimierte Anfragen versteht, komprimiert gesendet und bei Ablehnung unkomprimiert wiederholt.
+     */
+    private JSONObject execute(HttpPost request, JsonSelection selection) throws IOException {
+        if (requestCompression != RequestCompression.AUTO || gzipAccepted != null
+                || !(request.getEntity() instanceof JsonEntity)) {
+            return restClient.executeHttpRequest(request, selection);
+        }
+
+        final JSONObject json = ((JsonEntity) request.getEntity()).getJson();
+        request.setEntity(new JsonEntity(json, true));
+        final JSONObject responseJSON;
+        try {
+            responseJSON = restClient.executeHttpRequest(request, selection);
+        } catch (InvalidResponseException e) {
+            // 411: der Webserver nimmt keine chunked übertragenen Anfragen an
+            if (e.getStatusCode() != 400 && e.getStatusCode() != 411 && e.getStatusCode() != 415) {
+                throw e;
+            }
+            return retryUncompressed(request, json, selection);
+        }
+        if (isBadRequest(responseJSON)) {
+            return retryUncompressed(request, json, selection);
+        }
+        gzipAccepted = Boolean.TRUE;
+        return responseJSON;
+    }
+
+    private JSONObject retryUncompressed(HttpPost request, JSONObject json, JsonSelection selection) throws IOException {
+        log.info("{} does not accept gzip compressed requests, sending them uncompressed", baseURL);
+        gzipAccepted = Boolean.FALSE;
+        request.setEntity(new JsonEntity(json, false));
+        return restClient.executeHttpRequest(request, selection);
+    }
+
+    /**
+     * CKAN antwortet mit "Bad request - JSON Error", wenn es den Inhalt der Anfrage nicht lesen kann.
+     */
+    private static boolean isBadRequest(JSONObject response) {
+        if (response == null || response.optBoolean("success", true)) {
+            return false;
+        }
+        final Object error = response.opt("error");
+        final String message = error instanceof JSONObject
+                ? ((JSONObject) error).optString("message") + " " + ((JSONObject) error).optString("__type")
+                : String.valueOf(error);
+        return message.contains("JSON Error") || message.contains("Bad request") || message.contains("Bad Request");
+    }
+
     /**
      * Return the first accessURL of a dataset's resource.
      */
@@ -146,8 +565,37 @@ public class CkanAPI {
             throw new IllegalArgumentException("There is not dataset with id " + datasetId);
         }
 
-        final JSONObject collection = readDataset(collectionId);
+        checkCollection(collectionId, readDataset(collectionId));
+
+        final JSONObject responseJSON = execute(relationshipRequest("package_relationship_create", datasetId, collectionId), SUCCESS);
+        invalidate(datasetId, collectionId);
+        invalidateNewestDataset(collectionId);
+        return isResponseSuccess(responseJSON);
+    }
+
+    /**
+     * Nicht-blockierende Variante von {@link #putDatasetInCollection(String, String)}. Dataset und Kollektion werden
+     * gleichzeitig gelesen.
+     */
+    public CompletableFuture<Boolean> putDatasetInCollectionAsync(String datasetId, String collectionId) {
+        final CompletableFuture<JSONObject> dataset = readDatasetAsync(datasetId);
+        final CompletableFuture<JSONObject> collection = readDatasetAsync(collectionId);
 
+        return dataset.thenCombine(collection, (datasetJSON, collectionJSON) -> {
+            if (datasetJSON == null) {
+                throw new IllegalArgumentException("There is not dataset with id " + datasetId);
+            }
+            checkCollection(collectionId, collectionJSON);
+            return relationshipRequest("package_relationship_create", datasetId, collectionId);
+        }).thenCompose(request -> getAsyncRestClient().executeHttpRequestAsync(request, SUCCESS))
+                .whenComplete((response, e) -> {
+                    invalidate(datasetId, collectionId);
+                    invalidateNewestDataset(collectionId);
+                })
+                .thenApply(this::isResponseSuccess);
+    }
+
+    private static void checkCollection(String collectionId, JSONObject collection) {
         if (collection == null) {
             throw new IllegalArgumentException("There is not collection with id " + collectionId);
         }
@@ -155,19 +603,15 @@ public class CkanAPI {
         if (!"collection".equals(collection.getString("type"))) {
             throw new IllegalArgumentException(collectionId + " is no collection.");
         }
+    }
 
+    private HttpPost relationshipRequest(String action, String datasetId, String collectionId) {
         final JSONObject json = new JSONObject();
         json.put("subject", collectionId);
         json.put("type", "parent_of");
         json.put("object", datasetId);
 
-        final HttpPost httpPost = new HttpPost(baseURL + "/api/3/action/package_relationship_create");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
-
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
-        return isResponseSuccess(responseJSON);
+        return jsonPost("/api/3/action/" + action, json);
     }
 
     /**
@@ -179,27 +623,11 @@ public class CkanAPI {
             throw new IllegalArgumentException("There is not dataset with id " + datasetId);
         }
 
-        final JSONObject collection = readDataset(collectionId);
+        checkCollection(collectionId, readDataset(collectionId));
 
-        if (collection == null) {
-            throw new IllegalArgumentException("There is not collection with id " + collectionId);
-        }
-
-        if (!"collection".equals(collection.getString("type"))) {
-            throw new IllegalArgumentException(collectionId + " is no collection.");
-        }
-
-        final JSONObject json = new JSONObject();
-        json.put("subject", collectionId);
-        json.put("type", "parent_of");
-        json.put("object", datasetId);
-
-        final HttpPost httpPost = new HttpPost(baseURL + "/api/3/action/package_relationship_delete");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
-
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = execute(relationshipRequest("package_relationship_delete", datasetId, collectionId), SUCCESS);
+        invalidate(datasetId, collectionId);
+        invalidateNewestDataset(collectionId);
         return isResponseSuccess(responseJSON);
     }
 
@@ -212,23 +640,58 @@ public class CkanAPI {
 
         String packageId = json.getString("id");
 
-        HttpPost requestPackageUpdate = new HttpPost(baseURL + "/api/3/action/package_update?id=" + packageId);
-        requestPackageUpdate.addHeader("Authorization", apiKey.toString());
-        requestPackageUpdate.addHeader("Content-Type", "application/json");
-        requestPackageUpdate.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        final HttpPost requestPackageUpdate = jsonPost("/api/3/action/package_update?id=" + packageId, json);
 
-        final JSONObject responseJSON = restClient.executeHttpRequest(requestPackageUpdate);
+        final JSONObject responseJSON = execute(requestPackageUpdate, SUCCESS);
+        invalidate(packageId, json.optString("name", null));
         return isResponseSuccess(responseJSON);
     }
 
+    /**
+     * Ändert nur die übergebenen Felder eines Packages, alle anderen bleiben erhalten.
+     */
+    public boolean patchPackage(JSONObject json) throws IOException {
+        if (!json.has("id")) {
+            throw new IllegalArgumentException("Dataset without id");
+        }
+
+        final HttpPost httpPost = jsonPost("/api/3/action/package_patch", json);
+
+        final JSONObject responseJSON = execute(httpPost, SUCCESS);
+        invalidate(json.getString("id"));
+        return isResponseSuccess(responseJSON);
+    }
+
+    /**
+     * Ruft eine beliebige CKAN Action mit dem JSON Dokument als Inhalt auf.
+     *
+     * @return die Antwort mit <code>success</code>, <code>error</code> und der Id eines angelegten Objekts
+     */
+    public JSONObject callAction(String action, JSONObject json) throws IOException {
+        final JSONObject responseJSON = execute(jsonPost("/api/3/action/" + action, json), CREATED);
+        invalidate(json.optString("id", null), json.optString("name", null), json.optString("package_id", null));
+        return responseJSON;
+    }
+
     public String createPackage(JSONObject json) throws IOException {
-        HttpPost httpPost = new HttpPost(baseURL + "/api/3/action/package_create");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        final HttpPost httpPost = jsonPost("/api/3/action/package_create", json);
 
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = execute(httpPost, CREATED);
+        return extractCreatedId(responseJSON);
+    }
 
+    /**
+     * Nicht-blockierende Variante von {@link #createPackage(JSONObject)}.
+     */
+    public CompletableFuture<String> createPackageAsync(JSONObject json) {
+        return getAsyncRestClient().executeHttpRequestAsync(jsonPost("/api/3/action/package_create", json), CREATED)
+                .thenApply(CkanAPI::extractCreatedId);
+    }
+
+    /**
+     * Liefert die Id des neu angelegten Objekts oder wirft eine RuntimeException mit der Fehlermeldung von CKAN.
+     */
+    private static String extractCreatedId(JSONObject responseJSON) {
         if (!responseJSON.getBoolean("success")) {
             throw new RuntimeException(responseJSON.get("error").toString());
         }
@@ -256,12 +719,9 @@ public class CkanAPI {
         json.put("type", "collection");
         json.put("owner_org", organizationId);
 
-        HttpPost httpPost = new HttpPost(baseURL + "/api/3/action/package_create");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        final HttpPost httpPost = jsonPost("/api/3/action/package_create", json);
 
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = execute(httpPost, CREATED);
         return responseJSON.getJSONObject("result").getString("id");
     }
 
@@ -277,8 +737,12 @@ public class CkanAPI {
      * If the dataset should be part of more than one collection, only the first id will be returned.
      */
     public String getCollection(String packageId) throws IOException {
-        final HttpGet requestPackageShow = new HttpGet(baseURL + "/api/3/action/package_show?id=" + packageId);
-        final JSONObject response = restClient.executeHttpRequest(requestPackageShow);
+        final PackageCache cache = packageCache;
+        final JSONObject cached = cache == null ? null : cache.get(packageId);
+        final JSONObject response = cached != null
+                ? new JSONObject().put("success", true).put("result", cached)
+                : packageShowCalls.execute(flightKey("relationships", packageId),
+                () -> restClient.executeHttpRequest(packageShow(packageId), RELATIONSHIPS), UnaryOperator.identity());
 
         if (response.has("result")) {
             final JSONArray relationships = response.getJSONObject("result").getJSONArray("relationships_as_subject");
@@ -303,41 +767,70 @@ public class CkanAPI {
     }
 
     public String createResource(JSONObject json) throws IOException {
-        final HttpPost httpPost = new HttpPost(baseURL + "/api/action/resource_create");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        final HttpPost httpPost = jsonPost("/api/action/resource_create", json);
 
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = execute(httpPost, CREATED);
+        invalidate(json.optString("package_id", null));
+        return extractCreatedId(responseJSON);
+    }
 
-        if (!responseJSON.getBoolean("success")) {
-            throw new RuntimeException(responseJSON.get("error").toString());
+    /**
+     * Nicht-blockierende Variante von {@link #createResource(JSONObject)}.
+     */
+    public CompletableFuture<String> createResourceAsync(JSONObject json) {
+        return getAsyncRestClient().executeHttpRequestAsync(jsonPost("/api/action/resource_create", json), CREATED)
+                .whenComplete((response, e) -> invalidate(json.optString("package_id", null)))
+                .thenApply(CkanAPI::extractCreatedId);
+    }
+
+    /**
+     * Ändert nur die übergebenen Felder einer Resource, alle anderen bleiben erhalten.
+     */
+    public boolean patchResource(JSONObject json) throws IOException {
+        if (!json.has("id")) {
+            throw new IllegalArgumentException("Resource without id");
         }
-        return responseJSON.getJSONObject("result").getString("id");
+
+        final HttpPost httpPost = jsonPost("/api/action/resource_patch", json);
+
+        final JSONObject responseJSON = execute(httpPost, SUCCESS);
+        invalidateResource(json.getString("id"));
+        return isResponseSuccess(responseJSON);
     }
 
     public boolean uploadFile(final String packageId, final File file, final String name, final String format,
                               final String mimeType) throws IOException, NoSuchAlgorithmException {
-        final MessageDigest shaDigest = MessageDigest.getInstance("MD5");
-        final String checksum = getFileChecksum(shaDigest, file);
+        return uploadFile(packageId, file, name, format, mimeType, ChecksumAlgorithm.MD5);
+    }
 
+    /**
+     * Lädt eine Datei als neue Resource hoch. Die Prüfsumme wird beim Senden berechnet, sodass die Datei nur einmal
+     * gelesen wird, und als <code>hash</code> und <code>hash_algorithm</code> mitgeschickt.
+     */
+    public boolean uploadFile(final String packageId, final File file, final String name, final String format,
+                              final String mimeType, final ChecksumAlgorithm checksumAlgorithm) throws IOException {
         final HttpPost httpPost = new HttpPost(baseURL + "/api/action/resource_create");
         httpPost.addHeader("Authorization", apiKey.toString());
 
+        final DigestingFileBody fileBody = new DigestingFileBody(file, ContentType.create(mimeType), name, checksumAlgorithm);
+
         final MultipartEntityBuilder builder = MultipartEntityBuilder.create();
         builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
         builder.setCharset(StandardCharsets.UTF_8);
         builder.addPart("package_id", new StringBody(packageId, ContentType.MULTIPART_FORM_DATA));
         builder.addPart("name", new StringBody(name, ContentType.create("multipart/form-data", StandardCharsets.UTF_8)));
         builder.addPart("format", new StringBody(format, ContentType.MULTIPART_FORM_DATA));
-        builder.addPart("upload", new FileBody(file, ContentType.create(mimeType), name));
-        builder.addPart("hash", new StringBody(checksum, ContentType.MULTIPART_FORM_DATA));
+        builder.addPart("upload", fileBody);
+        // must follow the file, as the checksum is calculated while sending it
+        builder.addPart("hash", fileBody.checksumBody());
+        builder.addPart("hash_algorithm", new StringBody(checksumAlgorithm.getURI(), ContentType.MULTIPART_FORM_DATA));
         builder.addPart("mimetype", new StringBody(mimeType, ContentType.MULTIPART_FORM_DATA));
         HttpEntity entity = builder.build();
 
         log.debug("Sending file {}...", file.getName());
         httpPost.setEntity(entity);
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost, SUCCESS);
+        invalidate(packageId);
 
         boolean success = isResponseSuccess(responseJSON);
         if (!success) {
@@ -401,8 +894,13 @@ public class CkanAPI {
     }
 
     boolean doesDatasetExist(String packageId) throws IOException {
-        final HttpGet requestPackageShow = new HttpGet(baseURL + "/api/3/action/package_show?id=" + packageId);
-        final JSONObject response = restClient.executeHttpRequest(requestPackageShow);
+        final PackageCache cache = packageCache;
+        if (cache != null && cache.get(packageId) != null) {
+            return true;
+        }
+
+        final JSONObject response = packageShowCalls.execute(flightKey("exists", packageId),
+                () -> restClient.executeHttpRequest(packageShow(packageId), SUCCESS), UnaryOperator.identity());
 
         return isResponseSuccess(response);
     }
@@ -423,12 +921,10 @@ public class CkanAPI {
         final JSONObject json = new JSONObject();
         json.put("id", resourceId);
 
-        final HttpPost httpPost = new HttpPost(baseURL + "/api/action/resource_delete");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        final HttpPost httpPost = jsonPost("/api/action/resource_delete", json);
 
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = execute(httpPost, SUCCESS);
+        invalidateResource(resourceId);
 
         return responseJSON.getBoolean("success");
     }
@@ -439,12 +935,10 @@ public class CkanAPI {
         json.put("datasets", packageId);
         json.put("org_id", organization);
 
-        final HttpPost httpPost = new HttpPost(baseURL + "/api/action/bulk_update_private");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        final HttpPost httpPost = jsonPost("/api/action/bulk_update_private", json);
 
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = execute(httpPost, SUCCESS);
+        invalidate(packageId);
 
         return responseJSON.getBoolean("success");
     }
@@ -455,13 +949,295 @@ public class CkanAPI {
         json.put("datasets", packageId);
         json.put("org_id", organization);
 
-        final HttpPost httpPost = new HttpPost(baseURL + "/api/action/bulk_update_public");
-        httpPost.addHeader("Authorization", apiKey.toString());
-        httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        final HttpPost httpPost = jsonPost("/api/action/bulk_update_public", json);
 
-        final JSONObject responseJSON = restClient.executeHttpRequest(httpPost);
+        final JSONObject responseJSON = execute(httpPost, SUCCESS);
+        invalidate(packageId);
 
         return responseJSON.getBoolean("success");
     }
+
+    /**
+     * Legt fest, ob die JSON Dokumente schreibender Aufrufe mit gzip komprimiert werden. Standard ist
+     * {@link RequestCompression#OFF}. Antworten werden unabhängig davon komprimiert angefordert.
+     */
+    public void setRequestCompression(RequestCompression requestCompression) {
+        this.requestCompression = Objects.requireNonNull(requestCompression);
+        this.gzipAccepted = null;
+    }
+
+    public RequestCompression getRequestCompression() {
+        return requestCompression;
+    }
+
+    /**
+     * Höchstzahl Packages je <code>bulk_update_*</code> und <code>package_search</code> Aufruf.
+     */
+    public void setBulkChunkSize(int bulkChunkSize) {
+        if (bulkChunkSize < 1) {
+            throw new IllegalArgumentException("bulkChunkSize must be at least 1");
+        }
+        this.bulkChunkSize = bulkChunkSize;
+    }
+
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    /**
+     * Macht mehrere Packages privat. Die Organisationen werden gesammelt per <code>package_search</code> bestimmt.
+     *
+     * @param packageIds Ids oder Namen der Packages
+     * @return ein Ergebnis je Aufruf von <code>bulk_update_private</code>; nicht gefundene Packages werden in einem
+     * zusätzlichen, fehlgeschlagenen Ergebnis ohne Organisation gemeldet
+     */
+    public List<BulkUpdateResult> makePackagesPrivate(Collection<String> packageIds) throws IOException {
+        return bulkUpdate("bulk_update_private", groupByOrganization(packageIds));
+    }
+
+    /**
+     * Macht mehrere Packages öffentlich.
+     *
+     * @see #makePackagesPrivate(Collection)
+     */
+    public List<BulkUpdateResult> makePackagesPublic(Collection<String> packageIds) throws IOException {
+        return bulkUpdate("bulk_update_public", groupByOrganization(packageIds));
+    }
+
+    /**
+     * Macht mehrere Packages privat, deren Organisation bereits bekannt ist.
+     *
+     * @param packageIdsByOrganization Ids der Packages je Id der Organisation
+     */
+    public List<BulkUpdateResult> makePackagesPrivate(Map<String, ? extends Collection<String>> packageIdsByOrganization) throws IOException {
+        return bulkUpdate("bulk_update_private", packageIdsByOrganization);
+    }
+
+    /**
+     * Macht mehrere Packages öffentlich, deren Organisation bereits bekannt ist.
+     *
+     * @param packageIdsByOrganization Ids der Packages je Id der Organisation
+     */
+    public List<BulkUpdateResult> makePackagesPublic(Map<String, ? extends Collection<String>> packageIdsByOrganization) throws IOException {
+        return bulkUpdate("bulk_update_public", packageIdsByOrganization);
+    }
+
+    /**
+     * Die Organisation eines Packages oder {@link #NO_ORGANIZATION}.
+     */
+    private static String organizationOf(JSONObject dataset) {
+        final String organization = dataset.optString("owner_org", null);
+        return StringUtils.isEmpty(organization) ? NO_ORGANIZATION : organization;
+    }
+
+    /**
+     * Bestimmt die Organisation der Packages mit je einem <code>package_search</code> Aufruf für bis zu
+     * {@link #getBulkChunkSize()} Packages. Nicht gefundene Packages stehen unter dem Schlüssel <code>null</code>,
+     * Packages ohne Organisation unter {@link #NO_ORGANIZATION}.
+     */
+    Map<String, List<String>> groupByOrganization(Collection<String> packageIds) throws IOException {
+        final Map<String, List<String>> result = new LinkedHashMap<>();
+        final List<String> pending = new ArrayList<>(new LinkedHashSet<>(packageIds));
+
+        for (int from = 0; from < pending.size(); from += bulkChunkSize) {
+            final List<String> chunk = pending.subList(from, Math.min(pending.size(), from + bulkChunkSize));
+            final Set<String> missing = new LinkedHashSet<>(chunk);
+
+            final String terms = chunk.stream().map(CkanAPI::quoteSolr).collect(Collectors.joining(" OR "));
+            final String query = "id:(" + terms + ") OR name:(" + terms + ")";
+            final HttpGet request = new HttpGet(baseURL + "/api/3/action/package_search?rows=" + chunk.size()
+                    + "&include_private=true&fl=id,name,owner_org&fq=" + urlEncode(query));
+            if (apiKey != null) {
+                request.addHeader("Authorization", apiKey.toString());
+            }
+
+            final JSONObject responseJSON = restClient.executeHttpRequest(request, ORGANIZATIONS);
+            final JSONObject searchResult = responseJSON.optJSONObject("result");
+            final JSONArray results = searchResult == null ? null : searchResult.optJSONArray("results");
+            if (results != null) {
+                for (Object o : results) {
+                    final JSONObject dataset = (JSONObject) o;
+                    final String id = dataset.getString("id");
+                    if (missing.remove(id) | missing.remove(dataset.optString("name"))) {
+                        result.computeIfAbsent(organizationOf(dataset), k -> new ArrayList<>()).add(id);
+                    }
+                }
+            }
+
+            for (String packageId : missing) {
+                // z.B. weil der Suchindex noch nicht aktuell ist
+                final JSONObject dataset = readDataset(packageId);
+                if (dataset == null) {
+                    result.computeIfAbsent(null, k -> new ArrayList<>()).add(packageId);
+                } else {
+                    result.computeIfAbsent(organizationOf(dataset), k -> new ArrayList<>()).add(dataset.getString("id"));
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<BulkUpdateResult> bulkUpdate(String action, Map<String, ? extends Collection<String>> packageIdsByOrganization) throws IOException {
+        final List<BulkUpdateResult> results = new ArrayList<>();
+        for (Map.Entry<String, ? extends Collection<String>> entry : packageIdsByOrganization.entrySet()) {
+            final String organization = entry.getKey();
+            final List<String> ids = new ArrayList<>(entry.getValue());
+            if (organization == null) {
+                results.add(new BulkUpdateResult(null, ids, false, "Package not found"));
+                continue;
+            }
+            if (NO_ORGANIZATION.equals(organization)) {
+                results.add(new BulkUpdateResult(null, ids, false, "Package has no organization"));
+                continue;
+            }
+
+            for (int from = 0; from < ids.size(); from += bulkChunkSize) {
+                final List<String> chunk = new ArrayList<>(ids.subList(from, Math.min(ids.size(), from + bulkChunkSize)));
+                final JSONObject json = new JSONObject();
+                json.put("datasets", new JSONArray(chunk));
+                json.put("org_id", organization);
+
+                final JSONObject responseJSON;
+                try {
+                    responseJSON = execute(jsonPost("/api/action/" + action, json), SUCCESS);
+                } catch (IOException | RuntimeException e) {
+                    // die übrigen Teile werden trotzdem versucht
+                    log.warn("{} for organization {} failed: {}", action, organization, e.getMessage());
+                    results.add(new BulkUpdateResult(organization, chunk, false, e.toString()));
+                    continue;
+                } finally {
+                    invalidate(chunk.toArray(new String[0]));
+                }
+
+                final boolean success = isResponseSuccess(responseJSON);
+                results.add(new BulkUpdateResult(organization, chunk, success,
+                        success ? null : Objects.toString(responseJSON.opt("error"))));
+            }
+        }
+        return results;
+    }
+
+    private static String quoteSolr(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Liest alle Packages des Portals seitenweise ein.
+     *
+     * @see #forEachPackage(String, int, Consumer)
+     */
+    public PortalIndex buildPortalIndex() throws IOException {
+        return buildPortalIndex(null);
+    }
+
+    /**
+     * Liest alle Packages, die der Solr Filter Query entsprechen, in einen {@link PortalIndex} ein.
+     *
+     * @param filterQuery z.B. <code>organization:stadt-kiel</code> oder <code>null</code> für alle Packages
+     */
+    public PortalIndex buildPortalIndex(String filterQuery) throws IOException {
+        final PortalIndex index = new PortalIndex();
+        forEachPackage(filterQuery, 1000, entry -> index.add(entry.getName(), entry.getId(),
+                entry.getOrganizationId(), entry.getMetadataModified(), entry.getFingerprint()));
+        return index;
+    }
+
+    /**
+     * Blättert mit <code>package_search</code> durch alle Packages und übergibt jedes, sobald seine Seite gelesen
+     * wurde. Es werden nur die für den {@link PortalIndex} nötigen Felder angefordert (<code>fl</code>) und
+     * eingelesen; für 50.000 Packages genügen so 50 Aufrufe.
+     * <p>
+     * Die Seiten sind nach Id sortiert. Werden während des Durchlaufs Packages angelegt oder gelöscht, können
+     * einzelne Packages fehlen oder doppelt geliefert werden.
+     *
+     * @param rows Packages je Seite; CKAN begrenzt dies standardmäßig auf 1000
+     */
+    public void forEachPackage(String filterQuery, int rows, Consumer<PortalIndex.Entry> consumer) throws IOException {
+        final String fingerprintField = "extras_" + DcatUploader.FINGERPRINT_KEY;
+        int start = 0;
+        while (true) {
+            final StringBuilder url = new StringBuilder(baseURL).append("/api/3/action/package_search?include_private=true")
+                    .append("&sort=").append(urlEncode("id asc"))
+                    .append("&rows=").append(rows)
+                    .append("&start=").append(start)
+                    .append("&fl=").append(urlEncode("id,name,owner_org,metadata_modified," + fingerprintField));
+            if (filterQuery != null) {
+                url.append("&fq=").append(urlEncode(filterQuery));
+            }
+            final HttpGet request = new HttpGet(url.toString());
+            if (apiKey != null) {
+                request.addHeader("Authorization", apiKey.toString());
+            }
+
+            final JSONObject responseJSON = restClient.executeHttpRequest(request, INDEX);
+            if (!isResponseSuccess(responseJSON)) {
+                throw new IOException("package_search failed: " + responseJSON.opt("error"));
+            }
+            final JSONObject result = responseJSON.getJSONObject("result");
+            final JSONArray results = result.optJSONArray("results");
+            if (results == null || results.isEmpty()) {
+                return;
+            }
+
+            for (Object o : results) {
+                final JSONObject dataset = (JSONObject) o;
+                // Ältere CKAN Versionen ignorieren fl und liefern die Extras als Liste
+                String fingerprint = dataset.optString(fingerprintField, null);
+                if (fingerprint == null) {
+                    fingerprint = getExtraValue(dataset, DcatUploader.FINGERPRINT_KEY);
+                }
+                consumer.accept(new PortalIndex.Entry(dataset.getString("name"), dataset.getString("id"),
+                        dataset.optString("owner_org", null), dataset.optString("metadata_modified", null), fingerprint));
+            }
+
+            start += results.length();
+            if (start >= result.optInt("count", Integer.MAX_VALUE)) {
+                return;
+            }
+        }
+    }
+
+    private static String getExtraValue(JSONObject dataset, String key) {
+        final JSONArray extras = dataset.optJSONArray("extras");
+        if (extras == null) return null;
+        for (Object o : extras) {
+            final JSONObject extra = (JSONObject) o;
+            if (key.equals(extra.optString("key"))) {
+                return extra.optString("value", null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gibt die Verbindungen zum Portal frei.
+     */
+    @Override
+    public void close() throws IOException {
+        if (restClient instanceof Closeable) {
+            ((Closeable) restClient).close();
+        }
+        synchronized (this) {
+            if (newestDatasetExecutor != null) {
+                newestDatasetExecutor.shutdown();
+            }
+            if (asyncRestClient instanceof Closeable) {
+                ((Closeable) asyncRestClient).close();
+            }
+            if (portalRestClient instanceof Closeable) {
+                ((Closeable) portalRestClient).close();
+            }
+            if (portalAsyncRestClient instanceof Closeable) {
+                ((Closeable) portalAsyncRestClient).close();
+            }
+        }
+    }
 }
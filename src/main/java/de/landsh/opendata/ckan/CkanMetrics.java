@@ -0,0 +1,50 @@
+package de.landsh.opendata.ckan;
+
+/**
+ * Schnittstelle für Messwerte der CKAN Aufrufe und der Upload-Schritte. Alle Methoden haben eine leere
+ * Standardimplementierung, sodass eigene Anbindungen nur die benötigten Methoden überschreiben müssen.
+ * Implementierungen müssen threadsicher sein.
+ *
+ * @see InMemoryCkanMetrics
+ * @see MeteredRestClient
+ */
+public interface CkanMetrics {
+
+    /**
+     * Ergebnis eines erfolgreichen Aufrufs in {@link #callFinished(String, long, String)}.
+     */
+    String SUCCESS = "success";
+
+    /**
+     * Misst nichts.
+     */
+    CkanMetrics NOOP = new CkanMetrics() {
+    };
+
+    /**
+     * Ein Aufruf der CKAN Action (z.B. <code>package_create</code>) hat begonnen.
+     */
+    default void callStarted(String action) {
+    }
+
+    /**
+     * Ein Aufruf ist beendet.
+     *
+     * @param outcome {@link #SUCCESS} oder die Art des Fehlers, z.B. der <code>__type</code> des CKAN Fehlers
+     *                (<code>Validation Error</code>), <code>http_503</code> oder <code>io_error</code>
+     */
+    default void callFinished(String action, long durationNanos, String outcome) {
+    }
+
+    /**
+     * Größe von Anfrage und Antwort eines Aufrufs in Bytes.
+     */
+    default void bytesTransferred(String action, long requestBytes, long responseBytes) {
+    }
+
+    /**
+     * Ein Schritt des {@link DcatUploader} ist beendet, z.B. <code>map</code> oder <code>resources</code>.
+     */
+    default void stageFinished(String stage, long durationNanos) {
+    }
+}
@@ -0,0 +1,35 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Data;
+
+/**
+ * Einstellungen für den Connection-Pool, über den {@link HttpRestClient} mit CKAN kommuniziert.
+ */
+@Data
+public class ConnectionSettings {
+    /**
+     * Timeout in Sekunden für Verbindungsaufbau, Warten auf eine Verbindung aus dem Pool und Lesen vom Socket.
+     */
+    private int timeoutSeconds = 10;
+    /**
+     * Maximale Anzahl offener Verbindungen insgesamt.
+     */
+    private int maxTotal = 20;
+    /**
+     * Maximale Anzahl offener Verbindungen je Host. Da ein {@link CkanAPI} nur mit einem Portal spricht, ist dies
+     * die tatsächliche Obergrenze für parallele Aufrufe.
+     */
+    private int maxPerRoute = 10;
+    /**
+     * Wie lange eine Verbindung höchstens wiederverwendet wird, wenn der Server keinen Keep-Alive Wert vorgibt.
+     */
+    private int keepAliveSeconds = 30;
+    /**
+     * Nach dieser Zeit ohne Nutzung werden Verbindungen im Hintergrund geschlossen.
+     */
+    private int maxIdleSeconds = 30;
+    /**
+     * Nach dieser Zeit ohne Nutzung wird eine Verbindung vor der Wiederverwendung geprüft.
+     */
+    private int validateAfterInactivityMillis = 2000;
+}
@@ -0,0 +1,66 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Zählt die gelesenen Bytes einer Antwort für einen {@link TransferListener}.
+ */
+class CountingEntity extends HttpEntityWrapper {
+
+    private CountingInputStream content;
+
+    private CountingEntity(HttpEntity wrappedEntity) {
+        super(wrappedEntity);
+    }
+
+    /**
+     * Ersetzt die Entity der Antwort durch eine zählende, sofern ein Listener gesetzt ist.
+     */
+    static CountingEntity wrap(HttpResponse response, TransferListener listener) {
+        if (listener == null || response.getEntity() == null) {
+            return null;
+        }
+        final CountingEntity entity = new CountingEntity(response.getEntity());
+        response.setEntity(entity);
+        return entity;
+    }
+
+    static void report(TransferListener listener, HttpUriRequest request, CountingEntity entity) {
+        if (listener != null) {
+            listener.transferred(request, requestBytes(request), entity == null ? 0 : entity.getByteCount());
+        }
+    }
+
+    static long requestBytes(HttpUriRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity instanceof JsonEntity) {
+                return Math.max(0, ((JsonEntity) entity).getBytesWritten());
+            }
+            if (entity != null && entity.getContentLength() > 0) {
+                return entity.getContentLength();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized InputStream getContent() throws IOException {
+        if (content == null) {
+            content = new CountingInputStream(super.getContent());
+        }
+        return content;
+    }
+
+    synchronized long getByteCount() {
+        return content == null ? 0 : content.getByteCount();
+    }
+}
@@ -0,0 +1,205 @@
+package de.landsh.opendata.ckan;
+
+import de.landsh.opendata.SPDX;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Zerlegt einen RDF Datenstrom in einzelne dcat:Dataset Teilgraphen, ohne den ganzen Katalog in ein {@link Model} zu
+ * laden. Zu einem Dataset gehören seine eigenen Tripel sowie die Tripel der Knoten, auf die es über
+ * <code>dcat:distribution</code>, <code>dct:temporal</code>, <code>dct:spatial</code>, <code>spdx:checksum</code>
+ * oder einen Blank Node verweist.
+ * <p>
+ * Ein Dataset gilt als vollständig, wenn mehr als <code>window</code> neuere Datasets begonnen wurden, spätestens aber
+ * am Ende des Datenstroms. Übliche Katalog-Exporte beschreiben ein Dataset samt Distributionen an einem Stück, sodass
+ * der Speicherbedarf durch die größten <code>window</code> Datasets begrenzt ist. Tripel, deren Subjekt (noch) keinem
+ * Dataset zugeordnet werden kann, werden bis zur Obergrenze <code>maxPendingTriples</code> zurückgehalten.
+ */
+public class DatasetStreamSplitter implements StreamRDF {
+
+    private static final Logger log = LoggerFactory.getLogger(DatasetStreamSplitter.class);
+
+    private static final Set<Node> DEPENDENT_PROPERTIES = new HashSet<>(Arrays.asList(
+            DCAT.distribution.asNode(),
+            DCTerms.temporal.asNode(),
+            DCTerms.spatial.asNode(),
+            SPDX.checksum.asNode()));
+
+    private final Consumer<Resource> handler;
+    private final int window;
+    private final int maxPendingTriples;
+
+    private final LinkedHashMap<Node, Group> open = new LinkedHashMap<>();
+    private final Map<Node, Group> owners = new HashMap<>();
+    private final LinkedHashMap<Node, List<Triple>> pending = new LinkedHashMap<>();
+    private int pendingTriples;
+    private long droppedTriples;
+
+    public DatasetStreamSplitter(Consumer<Resource> handler) {
+        this(handler, 100, 100_000);
+    }
+
+    /**
+     * @param window            Anzahl der gleichzeitig offenen Datasets
+     * @param maxPendingTriples Anzahl der Tripel ohne zugeordnetes Dataset, die höchstens zurückgehalten werden
+     */
+    public DatasetStreamSplitter(Consumer<Resource> handler, int window, int maxPendingTriples) {
+        this.handler = handler;
+        this.window = window;
+        this.maxPendingTriples = maxPendingTriples;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        final Node subject = triple.getSubject();
+
+        if (RDF.type.asNode().equals(triple.getPredicate()) && DCAT.Dataset.asNode().equals(triple.getObject())
+                && !owners.containsKey(subject)) {
+            final Group group = new Group(subject);
+            open.put(subject, group);
+            own(subject, group);
+        }
+
+        final Group group = owners.get(subject);
+        if (group == null) {
+            pending.computeIfAbsent(subject, key -> new ArrayList<>()).add(triple);
+            pendingTriples++;
+            limitPending();
+        } else {
+            add(group, triple);
+        }
+
+        while (open.size() > window) {
+            flush(open.values().iterator().next());
+        }
+    }
+
+    private void add(Group group, Triple triple) {
+        group.triples.add(triple);
+        if (isDependent(triple) && !owners.containsKey(triple.getObject())) {
+            own(triple.getObject(), group);
+        }
+    }
+
+    /**
+     * Verweist das Tripel auf einen Knoten, der zum Dataset des Subjekts gehört?
+     */
+    private static boolean isDependent(Triple triple) {
+        final Node object = triple.getObject();
+        return object.isBlank() || (object.isURI() && DEPENDENT_PROPERTIES.contains(triple.getPredicate()));
+    }
+
+    /**
+     * Ordnet einen Knoten einem Dataset zu und übernimmt seine bereits gelesenen Tripel.
+     */
+    private void own(Node node, Group group) {
+        final Deque<Node> todo = new ArrayDeque<>();
+        todo.add(node);
+        while (!todo.isEmpty()) {
+            final Node current = todo.poll();
+            owners.put(current, group);
+            group.nodes.add(current);
+            final List<Triple> triples = pending.remove(current);
+            if (triples != null) {
+                pendingTriples -= triples.size();
+                for (Triple triple : triples) {
+                    group.triples.add(triple);
+                    final Node object = triple.getObject();
+                    if (isDependent(triple) && !owners.containsKey(object) && !todo.contains(object)) {
+                        todo.add(object);
+                    }
+                }
+            }
+        }
+    }
+
+    private void limitPending() {
+        final Iterator<List<Triple>> it = pending.values().iterator();
+        while (pendingTriples > maxPendingTriples && it.hasNext()) {
+            final List<Triple> triples = it.next();
+            it.remove();
+            pendingTriples -= triples.size();
+            if (droppedTriples == 0) {
+                log.warn("More than {} triples do not belong to a dataset, dropping the oldest ones", maxPendingTriples);
+            }
+            droppedTriples += triples.size();
+        }
+    }
+
+    private void flush(Group group) {
+        open.remove(group.dataset);
+        for (Node node : group.nodes) {
+            owners.remove(node);
+        }
+
+        final Model model = ModelFactory.createDefaultModel();
+        final Graph graph = model.getGraph();
+        for (Triple triple : group.triples) {
+            graph.add(triple);
+        }
+        handler.accept(model.wrapAsResource(group.dataset));
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        triple(quad.asTriple());
+    }
+
+    @Override
+    public void base(String base) {
+    }
+
+    @Override
+    public void prefix(String prefix, String iri) {
+    }
+
+    @Override
+    public void finish() {
+        while (!open.isEmpty()) {
+            flush(open.values().iterator().next());
+        }
+        if (pendingTriples > 0 || droppedTriples > 0) {
+            log.debug("{} triples did not belong to any dataset", pendingTriples + droppedTriples);
+        }
+        pending.clear();
+        pendingTriples = 0;
+    }
+
+    private static class Group {
+        private final Node dataset;
+        private final List<Triple> triples = new ArrayList<>();
+        private final List<Node> nodes = new ArrayList<>();
+
+        Group(Node dataset) {
+            this.dataset = dataset;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package de.landsh.opendata.ckan;
+
+import de.landsh.opendata.DCATAPde;
+import de.landsh.opendata.Locn;
+import de.landsh.opendata.SPDX;
+import de.landsh.opendata.SchemaOrg;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Deklarative Abbildung von DCAT-AP.de auf CKAN Packages und Resources. Die Regeln werden einmal je Property
+ * nachschlagbar abgelegt; beim Abbilden wird jedes Subjekt nur einmal mit <code>listProperties()</code> durchlaufen.
+ * Extras werden gesammelt und erst am Ende als <code>extras</code> Array geschrieben.
+ * <p>
+ * Eigene Erweiterungen des Profils lassen sich über {@link #defaults()} ergänzen:
+ * <pre>
+ * DcatMapping mapping = DcatMapping.defaults()
+ *         .dataset(DCATAPde.contributorID, DcatMapping.extra("contributorID"))
+ *         .build();
+ * </pre>
+ * Gibt es für ein Feld mehrere Werte, gewinnt der erste.
+ */
+public final class DcatMapping {
+
+    public static final String GEOJSON_DATATYPE = "https://www.iana.org/assignments/media-types/application/vnd.geo+json";
+
+    /**
+     * Die Abbildung, die {@link DcatUploader} standardmäßig verwendet.
+     */
+    public static final DcatMapping DEFAULT = defaults().build();
+
+    private final Map<Property, List<Rule>> datasetRules;
+    private final Map<Property, List<Rule>> distributionRules;
+    private final Set<String> datasetFields = new LinkedHashSet<>();
+    private final Set<String> datasetExtras = new LinkedHashSet<>();
+
+    private DcatMapping(Builder builder) {
+        this.datasetRules = compile(builder.datasetRules);
+        this.distributionRules = compile(builder.distributionRules);
+        datasetRules.values().forEach(list -> list.forEach(rule -> {
+            datasetFields.addAll(rule.getFields());
+            datasetExtras.addAll(rule.getExtras());
+        }));
+    }
+
+    private static Map<Property, List<Rule>> compile(Map<Property, List<Rule>> rules) {
+        final Map<Property, List<Rule>> result = new HashMap<>();
+        rules.forEach((property, list) -> result.put(property, Collections.unmodifiableList(new ArrayList<>(list))));
+        return result;
+    }
+
+    /**
+     * Eine leere Abbildung, die nur Distributionen als Resources übernimmt.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Die Regeln für DCAT-AP.de, wie sie das Landesportal verwendet.
+     */
+    public static Builder defaults() {
+        return new Builder()
+                .dataset(DCTerms.title, field("title"))
+                .dataset(DCTerms.description, field("notes"))
+                .dataset(DCTerms.license, field("license_id"))
+                .dataset(DCTerms.publisher, field("owner_org", uri -> StringUtils.substringAfterLast(uri, "/organization/")))
+                .dataset(DCAT.theme, names("groups", uri -> StringUtils.lowerCase(
+                        StringUtils.substringAfter(uri, "http://publications.europa.eu/resource/authority/data-theme/"))))
+                .dataset(DCAT.keyword, names("tags", UnaryOperator.identity()))
+                .dataset(DCTerms.temporal, nested(SchemaOrg.startDate, extra("temporal_start")))
+                .dataset(DCTerms.temporal, nested(SchemaOrg.endDate, extra("temporal_end")))
+                .dataset(DCTerms.modified, extra("modified"))
+                .dataset(DCTerms.issued, extra("issued"))
+                .dataset(DCATAPde.licenseAttributionByText, extra("licenseAttributionByText"))
+                .dataset(DCTerms.accrualPeriodicity, extra("frequency"))
+                .dataset(DCATAPde.politicalGeocodingURI, extra("spatial_uri"))
+                .dataset(DCATAPde.politicalGeocodingLevelURI, extra("politicalGeocodingLevelURI"))
+                .dataset(DCTerms.spatial, nested(Locn.geometry, typedLiteral(GEOJSON_DATATYPE, extra("spatial"))))
+
+                .distribution(DCAT.downloadURL, field("url"))
+                .distribution(DCAT.accessURL, field("access_url"))
+                .distribution(DCTerms.title, field("name"))
+                .distribution(DCTerms.description, field("description"))
+                .distribution(DCAT.mediaType, field("mimetype"))
+                .distribution(DCTerms.format, field("format", uri -> StringUtils.substringAfterLast(uri, "/")))
+                .distribution(DCTerms.license, field("license"))
+                .distribution(DCATAPde.licenseAttributionByText, field("licenseAttributionByText"))
+                .distribution(SPDX.checksum, nested(SPDX.checksumValue, field("hash")))
+                .distribution(SPDX.checksum, nested(SPDX.algorithm, field("hash_algorithm")));
+    }
+
+    /**
+     * Die Felder eines Packages, die diese Abbildung setzen kann. Fehlen sie im Ergebnis, hat die Quelle keinen Wert
+     * (mehr) dafür. Felder eigener Regeln, die nicht über die Fabrikmethoden erzeugt wurden, sind nicht enthalten.
+     */
+    public Set<String> getDatasetFields() {
+        return Collections.unmodifiableSet(datasetFields);
+    }
+
+    /**
+     * Die Extras eines Packages, die diese Abbildung setzen kann.
+     */
+    public Set<String> getDatasetExtras() {
+        return Collections.unmodifiableSet(datasetExtras);
+    }
+
+    /**
+     * Liefert den Wert (wenn es ein Literal ist) oder den URI (wenn es eine URIResource) ist des Objekts eines
+     * Statements zurück.
+     */
+    static String getString(Statement statement) {
+        final RDFNode object = statement.getObject();
+        if (object.isLiteral()) {
+            return object.asLiteral().getString();
+        } else if (object.isURIResource()) {
+            return object.asResource().getURI();
+        }
+        return null;
+    }
+
+    /**
+     * Übernimmt den Wert in ein Feld.
+     */
+    public static Rule field(String name) {
+        return field(name, UnaryOperator.identity());
+    }
+
+    public static Rule field(String name, UnaryOperator<String> transform) {
+        return rule(Collections.singleton(name), Collections.emptySet(),
+                (statement, target) -> target.putField(name, transform.apply(getString(statement))));
+    }
+
+    /**
+     * Übernimmt den Wert in ein Extra.
+     */
+    public static Rule extra(String key) {
+        return extra(key, UnaryOperator.identity());
+    }
+
+    public static Rule extra(String key, UnaryOperator<String> transform) {
+        return rule(Collections.emptySet(), Collections.singleton(key),
+                (statement, target) -> target.putExtra(key, transform.apply(getString(statement))));
+    }
+
+    /**
+     * Hängt jeden Wert als <code>{"name": ...}</code> an ein Array an, z.B. für Gruppen und Tags.
+     */
+    public static Rule names(String field, UnaryOperator<String> transform) {
+        return rule(Collections.singleton(field), Collections.emptySet(),
+                (statement, target) -> target.addName(field, transform.apply(getString(statement))));
+    }
+
+    /**
+     * Wendet eine Regel auf die Statements mit der angegebenen Property des Objekts an, z.B. auf schema:startDate eines
+     * dct:temporal.
+     */
+    public static Rule nested(Property property, Rule rule) {
+        return rule(rule.getFields(), rule.getExtras(), (statement, target) -> {
+            if (!statement.getObject().isResource()) return;
+            final StmtIterator it = statement.getObject().asResource().listProperties(property);
+            while (it.hasNext()) {
+                rule.apply(it.next(), target);
+            }
+        });
+    }
+
+    /**
+     * Wendet eine Regel nur auf Literale mit dem angegebenen Datentyp an.
+     */
+    public static Rule typedLiteral(String datatypeURI, Rule rule) {
+        return rule(rule.getFields(), rule.getExtras(), (statement, target) -> {
+            if (statement.getObject().isLiteral()
+                    && datatypeURI.equals(statement.getObject().asLiteral().getDatatypeURI())) {
+                rule.apply(statement, target);
+            }
+        });
+    }
+
+    /**
+     * Versieht eine Regel mit den Feldern und Extras, die sie setzen kann.
+     */
+    private static Rule rule(Set<String> fields, Set<String> extras, Rule body) {
+        return new Rule() {
+            @Override
+            public void apply(Statement statement, Target target) {
+                body.apply(statement, target);
+            }
+
+            @Override
+            public Set<String> getFields() {
+                return fields;
+            }
+
+            @Override
+            public Set<String> getExtras() {
+                return extras;
+            }
+        };
+    }
+
+    /**
+     * Bildet ein Dataset samt Distributionen ab. Der Name des Packages wird hier nicht gesetzt.
+     */
+    public Result map(Resource dataset) {
+        final Target target = apply(dataset, datasetRules, true);
+        final JSONObject json = target.toJSON();
+        return new Result(json, target.resources);
+    }
+
+    /**
+     * Bildet eine Distribution auf eine CKAN Resource ab.
+     */
+    public JSONObject mapDistribution(Resource distribution) {
+        return apply(distribution, distributionRules, false).toJSON();
+    }
+
+    private Target apply(Resource subject, Map<Property, List<Rule>> rules, boolean dataset) {
+        final Target target = new Target(dataset);
+        final StmtIterator it = subject.listProperties();
+        while (it.hasNext()) {
+            final Statement statement = it.next();
+            if (dataset && DCAT.distribution.equals(statement.getPredicate())) {
+                if (statement.getObject().isResource()) {
+                    target.resources.add(mapDistribution(statement.getObject().asResource()));
+                }
+                continue;
+            }
+            final List<Rule> list = rules.get(statement.getPredicate());
+            if (list != null) {
+                for (Rule rule : list) {
+                    rule.apply(statement, target);
+                }
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Eine einzelne Abbildungsregel für ein Statement.
+     */
+    @FunctionalInterface
+    public interface Rule {
+        void apply(Statement statement, Target target);
+
+        /**
+         * Die Felder, die diese Regel setzen kann. Beim Upsert werden nur sie geleert, wenn die Quelle keinen Wert
+         * mehr liefert.
+         */
+        default Set<String> getFields() {
+            return Collections.emptySet();
+        }
+
+        /**
+         * Die Extras, die diese Regel setzen kann. Beim Upsert werden nur sie entfernt, wenn die Quelle keinen Wert
+         * mehr liefert.
+         */
+        default Set<String> getExtras() {
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Das Ergebnis der Abbildung eines Datasets: das Package (mit <code>extras</code>, ohne Resources) und die
+     * Resources (ohne <code>package_id</code>).
+     */
+    public static final class Result {
+        private final JSONObject packageJSON;
+        private final List<JSONObject> resources;
+
+        private Result(JSONObject packageJSON, List<JSONObject> resources) {
+            this.packageJSON = packageJSON;
+            this.resources = resources;
+        }
+
+        public JSONObject getPackage() {
+            return packageJSON;
+        }
+
+        public List<JSONObject> getResources() {
+            return resources;
+        }
+    }
+
+    /**
+     * Das entstehende Package oder die entstehende Resource. Bei Resources landen Extras direkt als Felder.
+     */
+    public static final class Target {
+        private final boolean dataset;
+        private final JSONObject json = new JSONObject();
+        private final Map<String, String> extras = new LinkedHashMap<>();
+        private final Map<String, JSONArray> names = new LinkedHashMap<>();
+        private final List<JSONObject> resources = new ArrayList<>();
+
+        private Target(boolean dataset) {
+            this.dataset = dataset;
+        }
+
+        public void putField(String name, String value) {
+            if (value != null && !json.has(name)) {
+                json.put(name, value);
+            }
+        }
+
+        public void putExtra(String key, String value) {
+            if (value != null) {
+                extras.putIfAbsent(key, value);
+            }
+        }
+
+        public void addName(String field, String name) {
+            names.computeIfAbsent(field, k -> new JSONArray()).put(new JSONObject().put("name", name));
+        }
+
+        private JSONObject toJSON() {
+            names.forEach(json::put);
+            if (dataset) {
+                final JSONArray array = new JSONArray();
+                extras.forEach((key, value) -> array.put(new JSONObject().put("key", key).put("value", value)));
+                json.put("extras", array);
+            } else {
+                extras.forEach(this::putField);
+            }
+            return json;
+        }
+    }
+
+    public static final class Builder {
+        private final Map<Property, List<Rule>> datasetRules = new LinkedHashMap<>();
+        private final Map<Property, List<Rule>> distributionRules = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Fügt eine Regel für Statements eines dcat:Dataset hinzu. dcat:distribution wird immer über die Regeln für
+         * Distributionen abgebildet.
+         */
+        public Builder dataset(Property property, Rule rule) {
+            datasetRules.computeIfAbsent(property, p -> new ArrayList<>()).add(rule);
+            return this;
+        }
+
+        /**
+         * Fügt eine Regel für Statements einer dcat:Distribution hinzu.
+         */
+        public Builder distribution(Property property, Rule rule) {
+            distributionRules.computeIfAbsent(property, p -> new ArrayList<>()).add(rule);
+            return this;
+        }
+
+        /**
+         * Entfernt alle Regeln für eine Property eines Datasets, um sie z.B. durch eigene zu ersetzen.
+         */
+        public Builder removeDataset(Property property) {
+            datasetRules.remove(property);
+            return this;
+        }
+
+        /**
+         * Ersetzt die Regeln für <code>dct:spatial</code> durch eine, die die GeoJSON Geometrie
+         * (<code>locn:geometry</code>) vor der Übernahme in das <code>spatial</code> Extra umwandelt, z.B. mit einem
+         * {@link GeometryCompactor}.
+         */
+        public Builder geometry(UnaryOperator<String> transform) {
+            removeDataset(DCTerms.spatial);
+            return dataset(DCTerms.spatial, nested(Locn.geometry, typedLiteral(GEOJSON_DATATYPE, extra("spatial", transform))));
+        }
+
+        /**
+         * Entfernt alle Regeln für eine Property einer Distribution.
+         */
+        public Builder removeDistribution(Property property) {
+            distributionRules.remove(property);
+            return this;
+        }
+
+        public DcatMapping build() {
+            return new DcatMapping(this);
+        }
+    }
+}
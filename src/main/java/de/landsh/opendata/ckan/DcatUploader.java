@@ -1,20 +1,37 @@
 package de.landsh.opendata.ckan;
 
-import de.landsh.opendata.DCATAPde;
-import de.landsh.opendata.Locn;
-import de.landsh.opendata.SPDX;
-import de.landsh.opendata.SchemaOrg;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
 import org.apache.jena.vocabulary.DCAT;
 import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Fügt mit einem DCAT-AP.de Upload Datensätze zu CKAN hinzu.
@@ -22,29 +39,96 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class DcatUploader {
 
-    private static final String portalBaseURL = "https://opendata.schleswig-holstein.de";
+    private static final Logger log = LoggerFactory.getLogger(DcatUploader.class);
+    static final String portalBaseURL = "https://opendata.schleswig-holstein.de";
+    /**
+     * In diesem Extra wird beim Upsert der {@link Fingerprint} der hochgeladenen Metadaten abgelegt.
+     */
+    public static final String FINGERPRINT_KEY = "dcat_fingerprint";
+    /**
+     * Diese Felder einer Resource werden beim Upsert mit dem vorhandenen Stand verglichen.
+     */
+    private static final String[] RESOURCE_FIELDS = {"url", "access_url", "name", "description", "mimetype",
+            "format", "license", "licenseAttributionByText", "hash", "hash_algorithm"};
     private final CkanAPI ckanAPI;
 
-    private static String getString(Resource resource, Property property) {
-        if (!resource.hasProperty(property)) return null;
-        return getString(resource.getProperty(property));
-    }
+    /**
+     * Maximale Anzahl gleichzeitig hochgeladener Datasets bei {@link #uploadAll(Iterable)}.
+     */
+    @Getter
+    @Setter
+    private int parallelism = 4;
 
     /**
-     * Liefert den Wert (wenn es ein Literal ist) oder den URI (wenn es eine URIResource) ist des Objekts eines
-     * Statements zurück.
+     * Wenn gesetzt, werden die Distributionen direkt im <code>package_create</code> Aufruf mitgeschickt. Das spart
+     * je Distribution einen <code>resource_create</code> Aufruf und eine Neuindizierung des Packages in CKAN.
      */
-    private static String getString(Statement statement) {
-        RDFNode object = statement.getObject();
-        if (object.isLiteral()) {
-            return object.asLiteral().getString();
-        } else if (object.isURIResource()) {
-            return object.asResource().getURI();
-        }
-        return null;
+    @Getter
+    @Setter
+    private boolean embedResources = false;
+
+    /**
+     * Wenn gesetzt, werden bereits vorhandene Packages nicht neu angelegt, sondern nur bei geänderten Metadaten
+     * aktualisiert. Packages für Datasets außerhalb des Portals erhalten dabei einen aus dem URI abgeleiteten, stabilen
+     * Namen.
+     *
+     * @see #FINGERPRINT_KEY
+     */
+    @Getter
+    @Setter
+    private boolean upsert = false;
+
+    /**
+     * Ein vorab mit {@link CkanAPI#buildPortalIndex()} erstellter Index. Beim Upsert wird dann nur noch für geänderte
+     * Packages ein <code>package_show</code> ausgeführt; unveränderte werden anhand des Fingerprints im Index
+     * übersprungen, fehlende direkt angelegt.
+     */
+    @Getter
+    @Setter
+    private PortalIndex portalIndex;
+
+    /**
+     * Protokolliert jeden abgeschlossenen Schritt. Ist im Protokoll bereits ein Stand vorhanden, werden vollständig
+     * hochgeladene Datasets übersprungen und begonnene fortgesetzt. Packages für Datasets außerhalb des Portals
+     * erhalten dabei wie beim Upsert einen stabilen Namen.
+     */
+    @Getter
+    @Setter
+    private UploadJournal journal;
+
+    /**
+     * Die Regeln, nach denen Datasets und Distributionen auf CKAN abgebildet werden.
+     */
+    @Getter
+    @Setter
+    private DcatMapping mapping = DcatMapping.DEFAULT;
+
+    /**
+     * Prüft jedes abgebildete Package vor dem Senden, z.B. gegen die Organisationen und Lizenzen des Portals.
+     * Ungültige Datasets scheitern mit einer {@link InvalidPackageException}, ohne das Portal aufzurufen.
+     */
+    @Getter
+    @Setter
+    private PackageValidator validator;
+
+    /**
+     * Erhält die Dauer der einzelnen Schritte eines Uploads: <code>map</code>, <code>read</code>,
+     * <code>update</code>, <code>create</code>, <code>resources</code> und <code>collection</code>.
+     */
+    @Getter
+    @Setter
+    private CkanMetrics metrics = CkanMetrics.NOOP;
+
+    /**
+     * Meldet die Dauer eines Schritts und liefert den Beginn des nächsten.
+     */
+    private long stage(String stage, long start) {
+        final long now = System.nanoTime();
+        metrics.stageFinished(stage, now - start);
+        return now;
     }
 
-    private static void setExtraValue(JSONObject dataset, String key, String value) {
+    static void setExtraValue(JSONObject dataset, String key, String value) {
         final JSONObject entry = new JSONObject();
         entry.put("key", key);
         entry.put("value", value);
@@ -65,166 +149,462 @@ public class DcatUploader {
         }
     }
 
-    public String upload(Resource dataset) throws IOException {
+    private static String getExtraValue(JSONObject dataset, String key) {
+        final JSONArray extras = dataset.optJSONArray("extras");
+        if (extras == null) return null;
+        for (Object o : extras) {
+            final JSONObject extra = (JSONObject) o;
+            if (key.equals(extra.optString("key"))) {
+                return extra.optString("value", null);
+            }
+        }
+        return null;
+    }
 
-        final String packageName;
-        if (dataset.getURI().startsWith(portalBaseURL + "/dataset/")) {
-            // desired package name
-            packageName = StringUtils.substringAfter(dataset.getURI(), portalBaseURL + "/dataset/");
-        } else {
-            packageName = UUID.randomUUID().toString();
+    /**
+     * Lädt alle dcat:Dataset Instanzen eines Katalogs hoch.
+     *
+     * @see #uploadAll(Iterable)
+     */
+    public List<UploadResult> uploadCatalog(Model model) {
+        return uploadAll(model.listSubjectsWithProperty(RDF.type, DCAT.Dataset).toList());
+    }
+
+    /**
+     * Lädt mehrere Datasets mit höchstens {@link #getParallelism()} gleichzeitigen Uploads hoch. Ein fehlgeschlagener
+     * Upload bricht die übrigen nicht ab, sondern wird im Ergebnis vermerkt.
+     *
+     * @return ein {@link UploadResult} je Dataset in der Reihenfolge der Eingabe
+     */
+    public List<UploadResult> uploadAll(Iterable<? extends Resource> datasets) {
+        try (UploadRun run = new UploadRun()) {
+            for (Resource dataset : datasets) {
+                run.submit(dataset);
+            }
+            return run.getResults();
+        }
+    }
+
+    /**
+     * Liest einen Katalog als Datenstrom ein und lädt jedes Dataset hoch, sobald es vollständig gelesen wurde. Der
+     * Katalog wird dabei nie vollständig im Speicher gehalten.
+     *
+     * @see DatasetStreamSplitter
+     */
+    public List<UploadResult> uploadStream(InputStream in, Lang lang) {
+        try (UploadRun run = new UploadRun()) {
+            RDFParser.source(in).lang(lang).base(portalBaseURL + "/").parse(new DatasetStreamSplitter(run::submit));
+            return run.getResults();
+        }
+    }
+
+    private UploadResult uploadSafely(Resource dataset) {
+        try {
+            return new UploadResult(dataset.getURI(), upload(dataset), null);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Upload of {} failed: {}", dataset.getURI(), e.getMessage());
+            return new UploadResult(dataset.getURI(), null, e);
+        }
+    }
+
+    public String upload(Resource dataset) throws IOException {
+        final UploadJournal journal = this.journal;
+        final UploadJournal.DatasetState state = journal == null ? null : journal.get(dataset.getURI());
+        if (state != null && state.isDone()) {
+            log.debug("Dataset {} has already been uploaded", dataset.getURI());
+            return state.getPackageId();
         }
 
-        final JSONObject json = new JSONObject();
-        json.put("extras", new JSONArray());
+        final String packageName = getPackageName(dataset);
 
-        json.put("title", getString(dataset, DCTerms.title));
-        json.put("notes", getString(dataset, DCTerms.description));
-        json.put("license_id", getString(dataset, DCTerms.license));
+        long start = System.nanoTime();
+        final DcatMapping.Result mapped = mapping.map(dataset);
+        final JSONObject json = mapped.getPackage();
         json.put("name", packageName);
+        final List<JSONObject> resources = mapped.getResources();
+        if (validator != null) {
+            validator.check(dataset.getURI(), json, resources);
+        }
 
-        final String ownerOrg = StringUtils.substringAfterLast(getString(dataset, DCTerms.publisher), "/organization/");
-        json.put("owner_org", ownerOrg);
+        if (upsert) {
+            final String fingerprint = Fingerprint.of(json, resources, getCollectionNames(dataset), FINGERPRINT_KEY);
+            setExtraValue(json, FINGERPRINT_KEY, fingerprint);
+            start = stage("map", start);
 
-        if (dataset.hasProperty(DCAT.theme)) {
-            final JSONArray groups = new JSONArray();
-            json.put("groups", groups);
-            final StmtIterator it = dataset.listProperties(DCAT.theme);
-            while (it.hasNext()) {
-                final Statement stmt = it.next();
-                final String theme = StringUtils.lowerCase(StringUtils.substringAfter(getString(stmt), "http://publications.europa.eu/resource/authority/data-theme/"));
-                final JSONObject group = new JSONObject();
-                group.put("name", theme);
-                groups.put(group);
+            final PortalIndex index = portalIndex;
+            final PortalIndex.Entry indexed = index == null ? null : index.get(packageName);
+            if (indexed != null && fingerprint.equals(indexed.getFingerprint())) {
+                log.debug("Dataset {} is unchanged", dataset.getURI());
+                return completed(dataset, indexed.getId());
             }
-        }
 
-        if (dataset.hasProperty(DCAT.keyword)) {
-            final JSONArray tags = new JSONArray();
-            json.put("tags", tags);
-            final StmtIterator it = dataset.listProperties(DCAT.keyword);
-            while (it.hasNext()) {
-                final Statement stmt = it.next();
-                final JSONObject tag = new JSONObject();
-                tag.put("name", getString(stmt));
-                tags.put(tag);
+            final JSONObject existing = index != null && indexed == null ? null : ckanAPI.readDataset(packageName);
+            start = stage("read", start);
+            if (existing != null) {
+                final String packageId = existing.getString("id");
+                if (fingerprint.equals(getExtraValue(existing, FINGERPRINT_KEY))) {
+                    log.debug("Dataset {} is unchanged", dataset.getURI());
+                } else {
+                    updatePackage(existing, json);
+                    start = stage("update", start);
+                    updateResources(existing, resources, packageId);
+                    start = stage("resources", start);
+                    addToCollection(dataset, packageId, getLinkedCollections(existing));
+                    stage("collection", start);
+                }
+                return completed(dataset, packageId);
             }
+        } else {
+            start = stage("map", start);
         }
 
-        if (dataset.hasProperty(DCTerms.temporal)) {
-            final Resource temporal = dataset.getPropertyResourceValue(DCTerms.temporal);
-            if (temporal.hasProperty(SchemaOrg.startDate)) {
-                setExtraValue(json, "temporal_start",
-                        temporal.getProperty(SchemaOrg.startDate)
-                                .getObject().asLiteral().getString());
+        String packageId = state == null ? null : state.getPackageId();
+        // bei einem fortgesetzten Upload der vorhandene Stand in CKAN
+        JSONObject partial = null;
+        if (packageId == null) {
+            if (embedResources) {
+                json.put("resources", new JSONArray(resources));
+            }
+            try {
+                packageId = ckanAPI.createPackage(json);
+            } catch (RuntimeException e) {
+                // Das Package wurde womöglich vor einem Abbruch noch angelegt, aber nicht mehr protokolliert.
+                partial = journal == null ? null : ckanAPI.readDataset(packageName);
+                if (partial == null) {
+                    throw e;
+                }
+                packageId = partial.getString("id");
+            }
+            if (journal != null) {
+                journal.packageCreated(dataset.getURI(), packageId);
             }
-            if (temporal.hasProperty(SchemaOrg.endDate)) {
-                setExtraValue(json, "temporal_end",
-                        temporal.getProperty(SchemaOrg.endDate)
-                                .getObject().asLiteral().getString());
+            start = stage("create", start);
+        } else {
+            partial = ckanAPI.readDataset(packageId);
+            if (partial == null) {
+                throw new IllegalStateException("Package " + packageId + " from the journal does not exist anymore");
             }
         }
 
-        if (dataset.hasProperty(DCTerms.modified)) {
-            setExtraValue(json, "modified", dataset.getProperty(DCTerms.modified).getObject().asLiteral().getString());
+        if (!embedResources || partial != null) {
+            uploadResources(dataset.getURI(), resources, packageId, state, partial);
+            start = stage("resources", start);
         }
-        if (dataset.hasProperty(DCTerms.issued)) {
-            setExtraValue(json, "issued", getString(dataset, DCTerms.issued));
+
+        if (dataset.hasProperty(DCTerms.isVersionOf)) {
+            addToCollection(dataset, packageId, state == null ? Collections.emptySet() : state.getCollections());
+            stage("collection", start);
         }
-        if (dataset.hasProperty(DCATAPde.licenseAttributionByText)) {
-            setExtraValue(json, "licenseAttributionByText", getString(dataset, DCATAPde.licenseAttributionByText));
+
+        return completed(dataset, packageId);
+    }
+
+    /**
+     * Der Name des Packages: für Datasets des Portals der Name aus dem URI, sonst beim Upsert und mit Protokoll ein
+     * aus dem URI abgeleiteter, stabiler Name und ansonsten ein zufälliger.
+     */
+    String getPackageName(Resource dataset) {
+        if (dataset.getURI().startsWith(portalBaseURL + "/dataset/")) {
+            // desired package name
+            return StringUtils.substringAfter(dataset.getURI(), portalBaseURL + "/dataset/");
+        } else if (upsert || journal != null) {
+            // stable name, so that the package is found again on the next upload
+            return UUID.nameUUIDFromBytes(dataset.getURI().getBytes(StandardCharsets.UTF_8)).toString();
+        } else {
+            return UUID.randomUUID().toString();
         }
-        if (dataset.hasProperty(DCTerms.accrualPeriodicity)) {
-            setExtraValue(json, "frequency", getString(dataset, DCTerms.accrualPeriodicity));
+    }
+
+    CkanAPI getCkanAPI() {
+        return ckanAPI;
+    }
+
+    private String completed(Resource dataset, String packageId) throws IOException {
+        final UploadJournal journal = this.journal;
+        if (journal != null) {
+            journal.completed(dataset.getURI(), packageId);
         }
-        if (dataset.hasProperty(DCATAPde.politicalGeocodingURI)) {
-            setExtraValue(json, "spatial_uri", getString(dataset, DCATAPde.politicalGeocodingURI));
+        return packageId;
+    }
+
+    /**
+     * Sendet per <code>package_patch</code> nur die Felder, die sich gegenüber dem vorhandenen Package geändert
+     * haben. Felder der Abbildung, für die die Quelle keinen Wert mehr hat, werden geleert und ihre Extras entfernt.
+     * Extras, die nicht aus DCAT stammen, bleiben erhalten.
+     */
+    private void updatePackage(JSONObject existing, JSONObject json) throws IOException {
+        final JSONObject patch = new JSONObject();
+        patch.put("id", existing.getString("id"));
+
+        for (String key : json.keySet()) {
+            if ("extras".equals(key) || "name".equals(key)) continue;
+            final Object value = json.get(key);
+            if (value instanceof JSONArray) {
+                if (!getNames((JSONArray) value).equals(getNames(existing.optJSONArray(key)))) {
+                    patch.put(key, value);
+                }
+            } else if (!value.equals(existing.opt(key))) {
+                patch.put(key, value);
+            }
         }
-        if (dataset.hasProperty(DCATAPde.politicalGeocodingLevelURI)) {
-            setExtraValue(json, "politicalGeocodingLevelURI", getString(dataset, DCATAPde.politicalGeocodingLevelURI));
+        for (String key : mapping.getDatasetFields()) {
+            if (json.has(key) || "name".equals(key)) continue;
+            final Object previous = existing.opt(key);
+            if (previous instanceof JSONArray) {
+                if (!((JSONArray) previous).isEmpty()) {
+                    patch.put(key, new JSONArray());
+                }
+            } else if (previous != null && previous != JSONObject.NULL && !"".equals(previous)) {
+                patch.put(key, "");
+            }
         }
-        if (dataset.hasProperty(DCTerms.spatial)) {
-            final Resource location = dataset.getPropertyResourceValue(DCTerms.spatial);
-            final StmtIterator it = location.listProperties(Locn.geometry);
 
-            while (it.hasNext()) {
-                final Statement stmt = it.next();
-                if (stmt.getObject().isLiteral()) {
-                    final String datatype = stmt.getObject().asLiteral().getDatatypeURI();
-                    if ("https://www.iana.org/assignments/media-types/application/vnd.geo+json".equals(datatype)) {
-                        setExtraValue(json, "spatial", stmt.getObject().asLiteral().getString());
-                    }
-                }
+        final Map<String, Object> previousExtras = new LinkedHashMap<>();
+        final JSONArray existingExtras = existing.optJSONArray("extras");
+        if (existingExtras != null) {
+            for (Object o : existingExtras) {
+                final JSONObject extra = (JSONObject) o;
+                previousExtras.put(extra.getString("key"), extra.opt("value"));
             }
+        }
+        final Map<String, Object> extras = new LinkedHashMap<>(previousExtras);
+        extras.keySet().removeAll(mapping.getDatasetExtras());
+        for (Object o : json.getJSONArray("extras")) {
+            final JSONObject extra = (JSONObject) o;
+            extras.put(extra.getString("key"), extra.optString("value"));
+        }
+        if (!extras.equals(previousExtras)) {
+            final JSONArray array = new JSONArray();
+            extras.forEach((key, value) -> array.put(new JSONObject().put("key", key).put("value", value)));
+            patch.put("extras", array);
+        }
 
+        ckanAPI.patchPackage(patch);
+    }
+
+    private static Set<String> getNames(JSONArray array) {
+        final Set<String> result = new HashSet<>();
+        if (array != null) {
+            for (Object o : array) {
+                result.add(((JSONObject) o).optString("name"));
+            }
         }
+        return result;
+    }
 
-        final String packageId = ckanAPI.createPackage(json);
+    /**
+     * Gleicht die Resources eines vorhandenen Packages über ihre Schlüssel ({@link #getResourceKeys(List)}) ab:
+     * geänderte werden per <code>resource_patch</code> aktualisiert, neue angelegt und nicht mehr vorhandene gelöscht.
+     */
+    private void updateResources(JSONObject existing, List<JSONObject> resources, String packageId) throws IOException {
+        final Map<String, JSONObject> existingByKey = new LinkedHashMap<>();
+        final List<JSONObject> existingResources = getResources(existing);
+        final List<String> existingKeys = getResourceKeys(existingResources);
+        for (int i = 0; i < existingResources.size(); i++) {
+            existingByKey.put(existingKeys.get(i), existingResources.get(i));
+        }
 
-        uploadResources(dataset, packageId);
+        final List<String> keys = getResourceKeys(resources);
+        for (int i = 0; i < resources.size(); i++) {
+            final JSONObject resource = resources.get(i);
+            final JSONObject existingResource = existingByKey.remove(keys.get(i));
+            if (existingResource == null) {
+                resource.put("package_id", packageId);
+                ckanAPI.createResource(resource);
+                continue;
+            }
 
-        if (dataset.hasProperty(DCTerms.isVersionOf)) {
-            addToCollection(dataset, packageId);
+            final JSONObject patch = new JSONObject();
+            for (String field : RESOURCE_FIELDS) {
+                final Object value = resource.opt(field);
+                if (value != null && !value.equals(existingResource.opt(field))) {
+                    patch.put(field, value);
+                }
+            }
+            if (!patch.isEmpty()) {
+                patch.put("id", existingResource.getString("id"));
+                ckanAPI.patchResource(patch);
+            }
         }
 
-        return packageId;
+        for (JSONObject obsolete : existingByKey.values()) {
+            ckanAPI.deleteResource(obsolete.getString("id"));
+        }
     }
 
-    private void addToCollection(Resource dataset, String packageId) throws IOException {
+    private static List<JSONObject> getResources(JSONObject dataset) {
+        final List<JSONObject> result = new ArrayList<>();
+        final JSONArray resources = dataset == null ? null : dataset.optJSONArray("resources");
+        if (resources != null) {
+            for (Object o : resources) {
+                result.add((JSONObject) o);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Eindeutige Schlüssel der Resources eines Packages, in derselben Reihenfolge. Der Schlüssel ist die URL; teilen
+     * sich mehrere Resources eine URL oder haben keine, erhält die n-te ab der zweiten zusätzlich <code>#n</code>.
+     */
+    static List<String> getResourceKeys(List<JSONObject> resources) {
+        final Map<String, Integer> occurrences = new HashMap<>();
+        final List<String> result = new ArrayList<>(resources.size());
+        for (JSONObject resource : resources) {
+            final String url = resource.has("url") ? resource.optString("url") : resource.optString("access_url");
+            final int occurrence = occurrences.merge(url, 1, Integer::sum);
+            result.add(occurrence == 1 ? url : url + "#" + occurrence);
+        }
+        return result;
+    }
+
+    /**
+     * Die Namen und Ids der Collections, mit denen ein vorhandenes Package bereits verknüpft ist. CKAN liefert die
+     * Verknüpfung als <code>parent_of</code> in <code>relationships_as_object</code>, manche Versionen zusätzlich als
+     * <code>child_of</code> in <code>relationships_as_subject</code>.
+     */
+    static Set<String> getLinkedCollections(JSONObject existing) {
+        final Set<String> result = new HashSet<>();
+        collectLinks(existing.optJSONArray("relationships_as_object"), "parent_of", "subject", result);
+        collectLinks(existing.optJSONArray("relationships_as_subject"), "child_of", "object", result);
+        return result;
+    }
+
+    private static void collectLinks(JSONArray relationships, String type, String role, Set<String> result) {
+        if (relationships == null) return;
+        for (Object o : relationships) {
+            final JSONObject relationship = (JSONObject) o;
+            if (!type.equals(relationship.optString("type"))) continue;
+            final String name = relationship.optString(role, null);
+            if (name != null) {
+                result.add(name);
+            }
+            final JSONObject extras = relationship.optJSONObject("__extras");
+            final String id = extras == null ? null : extras.optString(role + "_package_id", null);
+            if (id != null) {
+                result.add(id);
+            }
+        }
+    }
+
+    List<String> getCollectionNames(Resource dataset) {
+        final List<String> result = new ArrayList<>();
         final StmtIterator it = dataset.listProperties(DCTerms.isVersionOf);
         while (it.hasNext()) {
             final Statement stmt = it.next();
             if (stmt.getObject().isResource()) {
                 final String uri = stmt.getObject().asResource().getURI();
                 if (uri.startsWith(portalBaseURL)) {
-                    final String collectionName = StringUtils.substringAfterLast(uri, "/");
-                    ckanAPI.putDatasetInCollection(packageId, collectionName);
+                    result.add(StringUtils.substringAfterLast(uri, "/"));
                 }
             }
         }
+        return result;
     }
 
-    private void uploadResources(Resource dataset, String packageId) throws IOException {
-        // add resources
-        final StmtIterator it = dataset.listProperties(DCAT.distribution);
-        while (it.hasNext()) {
-            final Statement stmt = it.next();
-            final Resource distribution = stmt.getObject().asResource();
-
-            final JSONObject jsonResource = new JSONObject();
-            jsonResource.put("package_id", packageId);
-            if (distribution.hasProperty(DCAT.downloadURL)) {
-                jsonResource.put("url", getString(distribution, DCAT.downloadURL));
-            }
-            if (distribution.hasProperty(DCAT.accessURL)) {
-                jsonResource.put("access_url", getString(distribution, DCAT.accessURL));
-            }
-            if (distribution.hasProperty(DCTerms.title)) {
-                jsonResource.put("name", getString(distribution, DCTerms.title));
-            }
-            if (distribution.hasProperty(DCTerms.description)) {
-                jsonResource.put("description", getString(distribution, DCTerms.description));
+    /**
+     * @param linked die bereits verknüpften Collections (Namen oder Ids), die übersprungen werden
+     */
+    private void addToCollection(Resource dataset, String packageId, Set<String> linked) throws IOException {
+        final UploadJournal journal = this.journal;
+        for (String collectionName : getCollectionNames(dataset)) {
+            if (linked.contains(collectionName)) continue;
+            ckanAPI.putDatasetInCollection(packageId, collectionName);
+            if (journal != null) {
+                journal.collectionLinked(dataset.getURI(), collectionName);
             }
-            if (distribution.hasProperty(DCAT.mediaType)) {
-                jsonResource.put("mimetype", getString(distribution, DCAT.mediaType));
+        }
+    }
+
+    /**
+     * Legt die Distributionen einzeln mit je einem <code>resource_create</code> Aufruf an. Bei einem fortgesetzten
+     * Upload werden protokollierte und bereits in CKAN vorhandene Resources übersprungen.
+     *
+     * @param partial das bereits vorhandene Package oder <code>null</code>
+     */
+    private void uploadResources(String datasetURI, List<JSONObject> resources, String packageId,
+                                 UploadJournal.DatasetState state, JSONObject partial) throws IOException {
+        final UploadJournal journal = this.journal;
+        final Map<String, String> existing = new HashMap<>();
+        final List<JSONObject> existingResources = getResources(partial);
+        final List<String> existingKeys = getResourceKeys(existingResources);
+        for (int i = 0; i < existingResources.size(); i++) {
+            existing.put(existingKeys.get(i), existingResources.get(i).getString("id"));
+        }
+
+        // nicht über die Position, da ein erneutes Einlesen die Distributionen anders ordnen kann
+        final List<String> keys = getResourceKeys(resources);
+        for (int i = 0; i < resources.size(); i++) {
+            final JSONObject jsonResource = resources.get(i);
+            final String key = keys.get(i);
+            if (state != null && state.getResources().containsKey(key)) continue;
+
+            String resourceId = existing.remove(key);
+            if (resourceId == null) {
+                jsonResource.put("package_id", packageId);
+                resourceId = ckanAPI.createResource(jsonResource);
             }
-            if (distribution.hasProperty(DCTerms.format)) {
-                jsonResource.put("format", StringUtils.substringAfterLast(getString(distribution, DCTerms.format), "/"));
+            if (journal != null) {
+                journal.resourceCreated(datasetURI, key, resourceId);
             }
-            if (distribution.hasProperty(DCTerms.license)) {
-                jsonResource.put("license", getString(distribution, DCTerms.license));
+        }
+    }
+
+    /**
+     * Ein Durchlauf von {@link #uploadAll(Iterable)} bzw. {@link #uploadStream(InputStream, Lang)}. Es werden höchstens
+     * {@link #getParallelism()} Uploads gleichzeitig ausgeführt; weitere Datasets werden erst angenommen, wenn ein
+     * Upload abgeschlossen ist, damit große Kataloge nicht vollständig in die Warteschlange wandern.
+     */
+    private class UploadRun implements AutoCloseable {
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final List<Future<UploadResult>> futures = new ArrayList<>();
+
+        UploadRun() {
+            if (parallelism < 1) {
+                throw new IllegalStateException("parallelism must be at least 1");
             }
-            if (distribution.hasProperty(DCATAPde.licenseAttributionByText)) {
-                jsonResource.put("licenseAttributionByText", getString(distribution, DCATAPde.licenseAttributionByText));
+            executor = TaskExecutors.newExecutor("dcat-upload", parallelism);
+            permits = new Semaphore(parallelism);
+        }
+
+        void submit(Resource dataset) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                throw new IllegalStateException("Upload interrupted", e);
             }
-            if( distribution.hasProperty(SPDX.checksum)) {
-                final Resource checksum = distribution.getPropertyResourceValue(SPDX.checksum);
-                jsonResource.put("hash", getString(checksum, SPDX.checksumValue));
-                jsonResource.put("hash_algorithm", getString(checksum, SPDX.algorithm));
+            futures.add(executor.submit(() -> {
+                try {
+                    return uploadSafely(dataset);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+
+        List<UploadResult> getResults() {
+            final List<UploadResult> results = new ArrayList<>(futures.size());
+            try {
+                for (Future<UploadResult> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                throw new IllegalStateException("Upload interrupted", e);
+            } catch (ExecutionException e) {
+                // uploadSafely fängt alle Exceptions, hier landen nur Errors
+                throw new IllegalStateException(e.getCause());
             }
+            return results;
+        }
 
-            ckanAPI.createResource(jsonResource);
+        @Override
+        public void close() {
+            executor.shutdown();
         }
     }
-
 }
@@ -0,0 +1,111 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Sendet eine Datei und berechnet dabei ihre Prüfsumme. Die Datei wird so nur einmal gelesen. Die Prüfsumme steht
+ * nach dem Senden über {@link #checksumBody()} als eigener Teil des Multipart-Requests zur Verfügung, der daher
+ * nach diesem Teil eingefügt werden muss.
+ */
+class DigestingFileBody extends AbstractContentBody {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final String filename;
+    private final ChecksumAlgorithm algorithm;
+    private volatile String checksum;
+
+    DigestingFileBody(File file, ContentType contentType, String filename, ChecksumAlgorithm algorithm) {
+        super(contentType);
+        this.file = file;
+        this.filename = filename;
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final MessageDigest digest = algorithm.newDigest();
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                digest.update(buffer.array(), 0, buffer.position());
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        checksum = toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder();
+        for (byte aByte : bytes) {
+            sb.append(Integer.toString((aByte & 0xff) + 0x100, 16).substring(1));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Die Prüfsumme der zuletzt gesendeten Datei oder <code>null</code>, wenn sie noch nicht gesendet wurde.
+     */
+    String getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_BINARY;
+    }
+
+    @Override
+    public long getContentLength() {
+        return file.length();
+    }
+
+    /**
+     * Ein Formularfeld, das die beim Senden dieses Teils berechnete Prüfsumme enthält.
+     */
+    ContentBody checksumBody() {
+        return new AbstractContentBody(ContentType.MULTIPART_FORM_DATA) {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                if (checksum == null) {
+                    throw new IllegalStateException("The checksum must be sent after the file");
+                }
+                out.write(checksum.getBytes(StandardCharsets.US_ASCII));
+            }
+
+            @Override
+            public String getFilename() {
+                return null;
+            }
+
+            @Override
+            public String getTransferEncoding() {
+                return MIME.ENC_8BIT;
+            }
+
+            @Override
+            public long getContentLength() {
+                return algorithm.getHexLength();
+            }
+        };
+    }
+}
@@ -0,0 +1,105 @@
+package de.landsh.opendata.ckan;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Berechnet einen stabilen Fingerabdruck der Metadaten eines Packages. Die Reihenfolge von Schlüsseln, Extras,
+ * Resources und Collections spielt dabei keine Rolle, da diese beim Einlesen aus RDF nicht festgelegt ist.
+ */
+public final class Fingerprint {
+
+    private Fingerprint() {
+    }
+
+    /**
+     * @param ignoredExtra Extra, das nicht in den Fingerabdruck eingeht, z.B. der Fingerabdruck selbst
+     */
+    public static String of(JSONObject dataset, List<JSONObject> resources, Collection<String> collections, String ignoredExtra) {
+        final StringBuilder sb = new StringBuilder();
+        appendCanonical(sb, withoutExtra(dataset, ignoredExtra));
+
+        final List<String> canonicalResources = new ArrayList<>();
+        for (JSONObject resource : resources) {
+            final StringBuilder resourceString = new StringBuilder();
+            appendCanonical(resourceString, resource);
+            canonicalResources.add(resourceString.toString());
+        }
+        canonicalResources.sort(null);
+        sb.append(canonicalResources);
+        sb.append(new TreeSet<>(collections));
+
+        return sha256(sb.toString());
+    }
+
+    private static JSONObject withoutExtra(JSONObject dataset, String key) {
+        final JSONArray extras = dataset.optJSONArray("extras");
+        if (extras == null || key == null) {
+            return dataset;
+        }
+
+        final JSONObject copy = new JSONObject(dataset, JSONObject.getNames(dataset));
+        final JSONArray filtered = new JSONArray();
+        for (Object extra : extras) {
+            if (!(extra instanceof JSONObject && key.equals(((JSONObject) extra).optString("key")))) {
+                filtered.put(extra);
+            }
+        }
+        copy.put("extras", filtered);
+        return copy;
+    }
+
+    /**
+     * Schreibt ein JSON Objekt mit sortierten Schlüsseln. Arrays von Objekten werden ebenfalls sortiert.
+     */
+    private static void appendCanonical(StringBuilder sb, Object value) {
+        if (value instanceof JSONObject) {
+            final JSONObject json = (JSONObject) value;
+            final Set<String> keys = new TreeSet<>(json.keySet());
+            sb.append('{');
+            for (String key : keys) {
+                sb.append(JSONObject.quote(key)).append(':');
+                appendCanonical(sb, json.get(key));
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            final List<String> elements = new ArrayList<>();
+            for (Object element : (JSONArray) value) {
+                final StringBuilder elementString = new StringBuilder();
+                appendCanonical(elementString, element);
+                elements.add(elementString.toString());
+            }
+            elements.sort(null);
+            sb.append(elements);
+        } else if (value instanceof String) {
+            sb.append(JSONObject.quote((String) value));
+        } else {
+            sb.append(JSONObject.valueToString(value));
+        }
+    }
+
+    static String sha256(String value) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] bytes = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder();
+            for (byte aByte : bytes) {
+                sb.append(Integer.toString((aByte & 0xff) + 0x100, 16).substring(1));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 ist in jeder Java Laufzeitumgebung vorhanden
+            throw new IllegalStateException(e);
+        }
+    }
+}
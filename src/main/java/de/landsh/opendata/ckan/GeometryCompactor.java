@@ -0,0 +1,280 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Verkleinert GeoJSON Geometrien für das <code>spatial</code> Extra: Koordinaten werden auf {@link #getPrecision()}
+ * Nachkommastellen gerundet, Linien und Ringe mit dem Douglas-Peucker-Verfahren und der Toleranz
+ * {@link #getTolerance()} (in Einheiten der Koordinaten, bei WGS 84 also Grad) vereinfacht und Leerzeichen entfernt.
+ * <p>
+ * Die Ergebnisse werden nach dem SHA-256 der Eingabe zwischengespeichert, sodass jede Geometrie, z.B. das Polygon
+ * einer Gemeinde, die tausende Datasets gemeinsam haben, nur einmal verarbeitet wird. Eine Instanz ist threadsicher
+ * und sollte je Upload-Lauf verwendet werden:
+ * <pre>
+ * uploader.setMapping(DcatMapping.defaults().geometry(new GeometryCompactor(5, 0.0001)).build());
+ * </pre>
+ * Ungültiges GeoJSON wird unverändert übernommen.
+ */
+public class GeometryCompactor implements UnaryOperator<String> {
+
+    private static final Logger log = LoggerFactory.getLogger(GeometryCompactor.class);
+
+    /**
+     * Anzahl der Nachkommastellen oder -1, um nicht zu runden. Fünf Stellen entsprechen bei WGS 84 etwa einem Meter.
+     */
+    @Getter
+    private final int precision;
+    /**
+     * Die größte Abweichung, um die ein weggelassener Punkt von der vereinfachten Linie entfernt sein darf, oder 0,
+     * um nicht zu vereinfachen.
+     */
+    @Getter
+    private final double tolerance;
+    private final double scale;
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Rundet auf fünf Nachkommastellen, ohne zu vereinfachen.
+     */
+    public GeometryCompactor() {
+        this(5, 0);
+    }
+
+    public GeometryCompactor(int precision, double tolerance) {
+        if (precision < -1) {
+            throw new IllegalArgumentException("precision must be -1 or at least 0");
+        }
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("tolerance must not be negative");
+        }
+        this.precision = precision;
+        this.tolerance = tolerance;
+        this.scale = Math.pow(10, precision);
+    }
+
+    @Override
+    public String apply(String geoJSON) {
+        if (geoJSON == null) {
+            return null;
+        }
+        return cache.computeIfAbsent(Fingerprint.sha256(geoJSON), hash -> compact(geoJSON));
+    }
+
+    /**
+     * Die Anzahl unterschiedlicher bisher verarbeiteter Geometrien.
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Verwirft alle zwischengespeicherten Geometrien.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    String compact(String geoJSON) {
+        try {
+            final JSONObject json = new JSONObject(geoJSON);
+            compactObject(json);
+            return json.toString();
+        } catch (JSONException | ClassCastException e) {
+            log.debug("Keeping invalid GeoJSON unchanged: {}", e.getMessage());
+            return geoJSON;
+        }
+    }
+
+    private void compactObject(JSONObject json) {
+        final String type = json.optString("type");
+        switch (type) {
+            case "Point":
+                json.put("coordinates", round(json.getJSONArray("coordinates")));
+                break;
+            case "MultiPoint":
+                json.put("coordinates", line(json.getJSONArray("coordinates"), 1));
+                break;
+            case "LineString":
+                json.put("coordinates", line(json.getJSONArray("coordinates"), 2));
+                break;
+            case "MultiLineString":
+                json.put("coordinates", lines(json.getJSONArray("coordinates"), 2));
+                break;
+            case "Polygon":
+                json.put("coordinates", lines(json.getJSONArray("coordinates"), 4));
+                break;
+            case "MultiPolygon":
+                final JSONArray polygons = json.getJSONArray("coordinates");
+                final JSONArray result = new JSONArray();
+                for (int i = 0; i < polygons.length(); i++) {
+                    result.put(lines(polygons.getJSONArray(i), 4));
+                }
+                json.put("coordinates", result);
+                break;
+            case "GeometryCollection":
+                forEachObject(json.getJSONArray("geometries"));
+                break;
+            case "Feature":
+                final JSONObject geometry = json.optJSONObject("geometry");
+                if (geometry != null) {
+                    compactObject(geometry);
+                }
+                break;
+            case "FeatureCollection":
+                forEachObject(json.getJSONArray("features"));
+                break;
+            default:
+                // unbekannte Typen bleiben unverändert
+                return;
+        }
+        final JSONArray bbox = json.optJSONArray("bbox");
+        if (bbox != null) {
+            json.put("bbox", round(bbox));
+        }
+    }
+
+    private void forEachObject(JSONArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            compactObject(array.getJSONObject(i));
+        }
+    }
+
+    private JSONArray lines(JSONArray lines, int minPoints) {
+        final JSONArray result = new JSONArray();
+        for (int i = 0; i < lines.length(); i++) {
+            result.put(line(lines.getJSONArray(i), minPoints));
+        }
+        return result;
+    }
+
+    /**
+     * Vereinfacht eine Linie oder einen Ring und rundet die Koordinaten. Punkte, die durch das Runden mit ihrem
+     * Vorgänger zusammenfallen, entfallen. Hätte das Ergebnis weniger als <code>minPoints</code> Punkte, wird nur
+     * gerundet.
+     */
+    private JSONArray line(JSONArray positions, int minPoints) {
+        final int n = positions.length();
+        final double[][] points = new double[n][];
+        for (int i = 0; i < n; i++) {
+            points[i] = toDoubles(positions.getJSONArray(i));
+        }
+
+        final boolean[] keep = minPoints > 1 && tolerance > 0 ? douglasPeucker(points) : null;
+        JSONArray result = collect(points, keep, minPoints > 1);
+        if (result.length() < Math.min(minPoints, n)) {
+            result = collect(points, null, false);
+        }
+        return result;
+    }
+
+    private JSONArray collect(double[][] points, boolean[] keep, boolean dropDuplicates) {
+        final JSONArray result = new JSONArray();
+        double[] previous = null;
+        for (int i = 0; i < points.length; i++) {
+            if (keep != null && !keep[i]) continue;
+            final double[] rounded = round(points[i]);
+            if (dropDuplicates && previous != null && previous[0] == rounded[0] && previous[1] == rounded[1]) continue;
+            result.put(toArray(rounded));
+            previous = rounded;
+        }
+        return result;
+    }
+
+    /**
+     * Markiert die Punkte, die bei der Vereinfachung erhalten bleiben. Iterativ, da Ringe mit zehntausenden Punkten
+     * die Rekursion zu tief werden ließen.
+     */
+    private boolean[] douglasPeucker(double[][] points) {
+        final int n = points.length;
+        final boolean[] keep = new boolean[n];
+        if (n < 3) {
+            Arrays.fill(keep, true);
+            return keep;
+        }
+        keep[0] = true;
+        keep[n - 1] = true;
+        final double toleranceSquared = tolerance * tolerance;
+        final Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{0, n - 1});
+        while (!ranges.isEmpty()) {
+            final int[] range = ranges.pop();
+            final int first = range[0];
+            final int last = range[1];
+            double maxDistance = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                final double distance = distanceSquared(points[i], points[first], points[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+            if (index > 0 && maxDistance > toleranceSquared) {
+                keep[index] = true;
+                ranges.push(new int[]{first, index});
+                ranges.push(new int[]{index, last});
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Das Quadrat des Abstands des Punkts p von der Strecke a-b.
+     */
+    static double distanceSquared(double[] p, double[] a, double[] b) {
+        final double dx = b[0] - a[0];
+        final double dy = b[1] - a[1];
+        double x = a[0];
+        double y = a[1];
+        final double length = dx * dx + dy * dy;
+        if (length > 0) {
+            final double t = Math.max(0, Math.min(1, ((p[0] - a[0]) * dx + (p[1] - a[1]) * dy) / length));
+            x += t * dx;
+            y += t * dy;
+        }
+        return (p[0] - x) * (p[0] - x) + (p[1] - y) * (p[1] - y);
+    }
+
+    private JSONArray round(JSONArray position) {
+        return toArray(round(toDoubles(position)));
+    }
+
+    private double[] round(double[] position) {
+        if (precision < 0) {
+            return position;
+        }
+        final double[] result = new double[position.length];
+        for (int i = 0; i < position.length; i++) {
+            result[i] = Math.round(position[i] * scale) / scale;
+        }
+        return result;
+    }
+
+    private static double[] toDoubles(JSONArray position) {
+        final double[] result = new double[position.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = position.getDouble(i);
+        }
+        return result;
+    }
+
+    private static JSONArray toArray(double[] position) {
+        final JSONArray result = new JSONArray();
+        for (double value : position) {
+            result.put(value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link AsyncRestClient} auf Basis des Apache HttpAsyncClient. Wenige I/O-Threads bedienen beliebig viele
+ * gleichzeitige Aufrufe, begrenzt nur durch den Connection-Pool.
+ * <p>
+ * Die Futures werden auf den I/O-Threads abgeschlossen. Blockierende Folgeschritte sollten daher mit den
+ * <code>...Async</code> Methoden von {@link CompletableFuture} auf einem eigenen Executor laufen.
+ */
+public class HttpAsyncRestClient implements AsyncRestClient, Closeable {
+
+    private final CloseableHttpAsyncClient client;
+    private volatile TransferListener transferListener;
+
+    public HttpAsyncRestClient(CloseableHttpAsyncClient client) {
+        this.client = client;
+        if (!client.isRunning()) {
+            client.start();
+        }
+    }
+
+    public static HttpAsyncRestClient create(ConnectionSettings settings) {
+        final int timeoutMillis = settings.getTimeoutSeconds() * 1000;
+        final RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis).build();
+
+        final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(config)
+                .setMaxConnTotal(settings.getMaxTotal())
+                .setMaxConnPerRoute(settings.getMaxPerRoute())
+                .addInterceptorLast(new RequestAcceptEncoding(Collections.singletonList("gzip")))
+                .build();
+
+        return new HttpAsyncRestClient(client);
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> executeHttpRequestAsync(HttpUriRequest request) {
+        return executeHttpRequestAsync(request, JsonSelection.ALL);
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> executeHttpRequestAsync(HttpUriRequest request, JsonSelection selection) {
+        final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+        client.execute(request, HttpClientContext.create(), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                final TransferListener listener = transferListener;
+                final CountingEntity entity = CountingEntity.wrap(response, listener);
+                HttpRestClient.decodeGzip(response);
+                try {
+                    result.complete(StreamingJsonReader.read(response, selection));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    CountingEntity.report(listener, request, entity);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                result.completeExceptionally(new CancellationException("Request cancelled: " + request.getURI()));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Setzt einen Listener, der nach jedem Aufruf die Größe von Anfrage und Antwort erhält.
+     */
+    public void setTransferListener(TransferListener transferListener) {
+        this.transferListener = transferListener;
+    }
+
+    /**
+     * Beendet die I/O-Threads und schließt alle Verbindungen.
+     */
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
@@ -1,39 +1,140 @@
 package de.landsh.opendata.ckan;
 
-import lombok.RequiredArgsConstructor;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONException;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.json.JSONObject;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
-@RequiredArgsConstructor
-public class HttpRestClient implements RestClient {
+/**
+ * {@link RestClient} auf Basis des Apache HttpClient. Eine Instanz kann von mehreren Threads gleichzeitig genutzt
+ * werden, da für jeden Aufruf ein eigener {@link HttpClientContext} angelegt wird.
+ */
+public class HttpRestClient implements RestClient, Closeable {
 
     private final CloseableHttpClient client;
-    private final HttpClientContext context;
+    private volatile TransferListener transferListener;
+
+    public HttpRestClient(CloseableHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @deprecated Ein gemeinsamer Context ist nicht threadsicher. Der übergebene Context wird ignoriert, stattdessen
+     * wird je Aufruf ein neuer angelegt.
+     */
+    @Deprecated
+    public HttpRestClient(CloseableHttpClient client, HttpClientContext context) {
+        this(client);
+    }
+
+    /**
+     * Erzeugt einen Client mit einem Connection-Pool, der Verbindungen per Keep-Alive wiederverwendet und
+     * ungenutzte Verbindungen im Hintergrund schließt. Antworten werden mit gzip angefordert und erst nach dem
+     * Zählen der übertragenen Bytes entpackt.
+     */
+    public static HttpRestClient create(ConnectionSettings settings) {
+        final int timeoutMillis = settings.getTimeoutSeconds() * 1000;
+        final RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis).build();
+
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(settings.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(settings.getValidateAfterInactivityMillis());
+
+        final long maxKeepAlive = TimeUnit.SECONDS.toMillis(settings.getKeepAliveSeconds());
+        final ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            final long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? Math.min(keepAlive, maxKeepAlive) : maxKeepAlive;
+        };
+
+        final CloseableHttpClient client = HttpClientBuilder.create()
+                .setDefaultRequestConfig(config)
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getMaxIdleSeconds(), TimeUnit.SECONDS)
+                .disableContentCompression()
+                .addInterceptorLast(new RequestAcceptEncoding(Collections.singletonList("gzip")))
+                .build();
+
+        return new HttpRestClient(client);
+    }
 
     @Override
     public JSONObject executeHttpRequest(HttpUriRequest request) throws IOException {
-        final CloseableHttpResponse response = client.execute(request, context);
-        final String rawJSON = EntityUtils.toString(response.getEntity());
-
-        response.close();
-        try {
-            return new JSONObject(rawJSON);
-        } catch (JSONException e) {
-            throw new RuntimeException("Invalid response from CKAN server: " + rawJSON);
+        return executeHttpRequest(request, JsonSelection.ALL);
+    }
+
+    /**
+     * Liest die Antwort direkt vom Socket ein und baut nur die ausgewählten Felder auf.
+     *
+     * @throws InvalidResponseException wenn CKAN kein JSON Dokument liefert
+     */
+    @Override
+    public JSONObject executeHttpRequest(HttpUriRequest request, JsonSelection selection) throws IOException {
+        try (CloseableHttpResponse response = client.execute(request, HttpClientContext.create())) {
+            final TransferListener listener = transferListener;
+            final CountingEntity entity = CountingEntity.wrap(response, listener);
+            decodeGzip(response);
+            try {
+                return StreamingJsonReader.read(response, selection);
+            } finally {
+                CountingEntity.report(listener, request, entity);
+            }
         }
     }
 
+    /**
+     * Setzt einen Listener, der nach jedem JSON Aufruf die Größe von Anfrage und Antwort erhält.
+     */
+    public void setTransferListener(TransferListener transferListener) {
+        this.transferListener = transferListener;
+    }
+
     @Override
     public CloseableHttpResponse executeRawHttpRequest(HttpUriRequest request) throws IOException {
-        return client.execute(request, context);
+        final CloseableHttpResponse response = client.execute(request, HttpClientContext.create());
+        decodeGzip(response);
+        return response;
     }
 
+    /**
+     * Entpackt eine mit gzip komprimierte Antwort beim Lesen.
+     */
+    static void decodeGzip(HttpResponse response) {
+        final HttpEntity entity = response.getEntity();
+        final Header encoding = entity == null ? null : entity.getContentEncoding();
+        if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+            response.setEntity(new GzipDecompressingEntity(entity));
+            response.removeHeaders("Content-Encoding");
+            response.removeHeaders("Content-Length");
+        }
+    }
 
+    /**
+     * Schließt den HttpClient samt Connection-Pool.
+     */
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
 }
@@ -0,0 +1,166 @@
+package de.landsh.opendata.ckan;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hält alle Messwerte im Speicher, ohne weitere Abhängigkeiten. Die Werte können direkt abgefragt oder mit
+ * {@link PrometheusTextFormat} exportiert werden.
+ */
+public class InMemoryCkanMetrics implements CkanMetrics {
+
+    private final Map<String, CallStats> calls = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> stages = new ConcurrentHashMap<>();
+
+    private CallStats call(String action) {
+        return calls.computeIfAbsent(action, a -> new CallStats());
+    }
+
+    @Override
+    public void callStarted(String action) {
+        call(action).inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void callFinished(String action, long durationNanos, String outcome) {
+        final CallStats stats = call(action);
+        stats.inFlight.decrementAndGet();
+        stats.duration.record(durationNanos);
+        stats.outcomes.computeIfAbsent(outcome, o -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void bytesTransferred(String action, long requestBytes, long responseBytes) {
+        final CallStats stats = call(action);
+        stats.requestBytes.add(requestBytes);
+        stats.responseBytes.add(responseBytes);
+    }
+
+    @Override
+    public void stageFinished(String stage, long durationNanos) {
+        stages.computeIfAbsent(stage, s -> new Histogram()).record(durationNanos);
+    }
+
+    /**
+     * Die bisher aufgerufenen Actions, sortiert.
+     */
+    public Set<String> getActions() {
+        return new TreeSet<>(calls.keySet());
+    }
+
+    /**
+     * Die Messwerte einer Action oder <code>null</code>, wenn sie noch nicht aufgerufen wurde.
+     */
+    public CallStats getCallStats(String action) {
+        return calls.get(action);
+    }
+
+    public Set<String> getStages() {
+        return new TreeSet<>(stages.keySet());
+    }
+
+    public Histogram getStage(String stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * Messwerte einer CKAN Action.
+     */
+    public static class CallStats {
+        private final Histogram duration = new Histogram();
+        private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+
+        public Histogram getDuration() {
+            return duration;
+        }
+
+        /**
+         * Anzahl der Aufrufe je Ergebnis ({@link CkanMetrics#SUCCESS} oder Art des Fehlers).
+         */
+        public Map<String, Long> getOutcomes() {
+            final Map<String, Long> result = new TreeMap<>();
+            outcomes.forEach((outcome, count) -> result.put(outcome, count.sum()));
+            return result;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getRequestBytes() {
+            return requestBytes.sum();
+        }
+
+        public long getResponseBytes() {
+            return responseBytes.sum();
+        }
+    }
+
+    /**
+     * Histogramm mit festen Grenzen von 5ms bis 10s.
+     */
+    public static class Histogram {
+        /**
+         * Obere Grenzen der Buckets in Sekunden. Werte darüber zählen nur in {@link #getCount()}.
+         */
+        public static final double[] BOUNDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            count.increment();
+            sumNanos.add(nanos);
+            for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+                if (nanos <= BOUNDS_NANOS[i]) {
+                    buckets[i].increment();
+                    return;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSumNanos() {
+            return sumNanos.sum();
+        }
+
+        /**
+         * Kumulierte Anzahl der Werte bis einschließlich der jeweiligen Grenze aus {@link #BOUNDS}.
+         */
+        public long[] getCumulativeCounts() {
+            final long[] result = new long[buckets.length];
+            long sum = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                sum += buckets[i].sum();
+                result[i] = sum;
+            }
+            return result;
+        }
+    }
+}
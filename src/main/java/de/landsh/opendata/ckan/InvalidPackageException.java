@@ -0,0 +1,33 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ein Package wurde schon vor dem Senden als ungültig erkannt, z.B. weil es eine unbekannte Organisation oder
+ * Lizenz verwendet.
+ *
+ * @see PackageValidator
+ */
+@Getter
+public class InvalidPackageException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Der URI des Datasets, aus dem das Package abgebildet wurde.
+     */
+    private final String datasetURI;
+    /**
+     * Alle gefundenen Fehler.
+     */
+    private final List<String> problems;
+
+    public InvalidPackageException(String datasetURI, List<String> problems) {
+        super("Invalid package for " + datasetURI + ": " + String.join("; ", problems));
+        this.datasetURI = datasetURI;
+        this.problems = Collections.unmodifiableList(new ArrayList<>(problems));
+    }
+}
@@ -0,0 +1,26 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Getter;
+
+/**
+ * CKAN hat kein gültiges JSON Dokument geliefert, z.B. eine HTML Fehlerseite eines vorgeschalteten Proxys.
+ */
+@Getter
+public class InvalidResponseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * HTTP Status der Antwort.
+     */
+    private final int statusCode;
+    /**
+     * Der Anfang der Antwort, höchstens {@link StreamingJsonReader#MAX_EXCERPT_LENGTH} Bytes.
+     */
+    private final String excerpt;
+
+    public InvalidResponseException(int statusCode, String excerpt) {
+        super("Invalid response from CKAN server: " + excerpt);
+        this.statusCode = statusCode;
+        this.excerpt = excerpt;
+    }
+}
@@ -0,0 +1,202 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Ein JSON Dokument als Inhalt einer Anfrage, optional mit gzip komprimiert (<code>Content-Encoding: gzip</code>).
+ * <p>
+ * Das Dokument wird beim Senden direkt in den Ausgabestrom der Verbindung geschrieben, ohne vorher als String oder
+ * Byte-Array aufgebaut zu werden. Unkomprimiert wird dafür vorab in einem Durchlauf ohne Ausgabe die Länge in Bytes
+ * bestimmt und als <code>Content-Length</code> gesendet, da nicht jeder Webserver vor CKAN chunked übertragene
+ * Anfragen annimmt (mod_wsgi antwortet mit 411, uWSGI nur mit <code>chunked-input</code>). Komprimiert ist die Länge
+ * erst nach dem Senden bekannt, der Inhalt wird chunked übertragen; das setzt ohnehin einen Webserver voraus, der die
+ * Anfrage entpackt.
+ * <p>
+ * Die Entity kann mehrfach gesendet werden, z.B. bei Wiederholungen. Das Dokument darf danach nicht mehr verändert
+ * werden.
+ */
+public class JsonEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final JSONObject json;
+    private final boolean gzip;
+    /**
+     * Die Länge des unkomprimierten Inhalts in Bytes, bei gzip -1.
+     */
+    private final long contentLength;
+    private volatile long bytesWritten = -1;
+
+    public JsonEntity(JSONObject json, boolean gzip) {
+        this.json = json;
+        this.gzip = gzip;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        if (gzip) {
+            setContentEncoding("gzip");
+            setChunked(true);
+            contentLength = -1;
+        } else {
+            final Utf8CountingWriter counting = new Utf8CountingWriter();
+            json.write(counting);
+            contentLength = counting.getCount();
+        }
+    }
+
+    public JSONObject getJson() {
+        return json;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Die beim letzten Senden übertragenen (ggf. komprimierten) Bytes oder -1, wenn noch nicht gesendet wurde.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Liefert den (ggf. komprimierten) Inhalt, z.B. für den asynchronen Client, der die Entity liest statt sie zu
+     * schreiben. Der Inhalt wird dafür im Speicher aufgebaut.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final CountingOutputStream counting = new CountingOutputStream(out);
+        final GZIPOutputStream compressed = gzip ? new GZIPOutputStream(counting, BUFFER_SIZE) : null;
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                compressed != null ? compressed : counting, StandardCharsets.UTF_8), BUFFER_SIZE);
+        json.write(writer);
+        writer.flush();
+        if (compressed != null) {
+            compressed.finish();
+        }
+        counting.flush();
+        bytesWritten = counting.count;
+    }
+
+    /**
+     * Zählt die Bytes, die die geschriebenen Zeichen in UTF-8 belegen, ohne sie auszugeben.
+     */
+    private static final class Utf8CountingWriter extends Writer {
+        private long count;
+        private boolean highSurrogate;
+
+        @Override
+        public void write(int c) {
+            final char ch = (char) c;
+            if (highSurrogate) {
+                highSurrogate = false;
+                if (Character.isLowSurrogate(ch)) {
+                    // das Paar belegt zusammen vier Bytes
+                    count += 4;
+                    return;
+                }
+                // ein einzelnes Surrogat schreibt der OutputStreamWriter als '?'
+                count++;
+            }
+            if (ch < 0x80) {
+                count++;
+            } else if (ch < 0x800) {
+                count += 2;
+            } else if (Character.isHighSurrogate(ch)) {
+                highSurrogate = true;
+            } else if (Character.isLowSurrogate(ch)) {
+                count++;
+            } else {
+                count += 3;
+            }
+        }
+
+        long getCount() {
+            return highSurrogate ? count + 1 : count;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(str.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Zählt die geschriebenen Bytes und schließt den Strom der Verbindung nicht.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
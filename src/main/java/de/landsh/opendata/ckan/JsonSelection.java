@@ -0,0 +1,100 @@
+package de.landsh.opendata.ckan;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Beschreibt, welche Felder einer JSON Antwort tatsächlich benötigt werden. Pfade werden mit Punkten getrennt,
+ * z.B. <code>result.id</code>. Wird ein Feld ausgewählt, wird es samt allen Unterelementen übernommen. Arrays sind
+ * transparent: <code>result.resources.url</code> bzw. <code>result.resources[*].url</code> wählt die URL jeder
+ * Resource aus.
+ */
+public final class JsonSelection {
+
+    /**
+     * Wählt das vollständige Dokument aus.
+     */
+    public static final JsonSelection ALL = new JsonSelection(true, Collections.emptyMap());
+
+    private final boolean all;
+    private final Map<String, JsonSelection> children;
+
+    private JsonSelection(boolean all, Map<String, JsonSelection> children) {
+        this.all = all;
+        this.children = children;
+    }
+
+    public static JsonSelection of(String... paths) {
+        final Node root = new Node();
+        for (String path : paths) {
+            Node node = root;
+            for (String segment : path.split("\\.")) {
+                final String name = segment.endsWith("[*]") ? segment.substring(0, segment.length() - 3) : segment;
+                node = node.children.computeIfAbsent(name, key -> new Node());
+            }
+            node.all = true;
+        }
+        return root.toSelection();
+    }
+
+    public boolean isAll() {
+        return all;
+    }
+
+    /**
+     * Liefert die Auswahl für ein Feld oder <code>null</code>, wenn das Feld nicht benötigt wird.
+     */
+    JsonSelection child(String name) {
+        return all ? this : children.get(name);
+    }
+
+    /**
+     * Entfernt alle nicht ausgewählten Felder aus einem bereits eingelesenen Dokument.
+     */
+    public JSONObject apply(JSONObject json) {
+        if (all || json == null) {
+            return json;
+        }
+
+        final JSONObject result = new JSONObject();
+        for (Map.Entry<String, JsonSelection> entry : children.entrySet()) {
+            if (json.has(entry.getKey())) {
+                result.put(entry.getKey(), entry.getValue().applyToValue(json.get(entry.getKey())));
+            }
+        }
+        return result;
+    }
+
+    private Object applyToValue(Object value) {
+        if (all) {
+            return value;
+        } else if (value instanceof JSONObject) {
+            return apply((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            final JSONArray result = new JSONArray();
+            for (Object element : (JSONArray) value) {
+                result.put(applyToValue(element));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean all;
+
+        private JsonSelection toSelection() {
+            if (all) {
+                return ALL;
+            }
+            final Map<String, JsonSelection> result = new HashMap<>();
+            children.forEach((name, node) -> result.put(name, node.toSelection()));
+            return new JsonSelection(false, Collections.unmodifiableMap(result));
+        }
+    }
+}
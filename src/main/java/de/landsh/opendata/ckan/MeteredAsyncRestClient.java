@@ -0,0 +1,64 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Gegenstück zu {@link MeteredRestClient} für einen {@link AsyncRestClient}. Die Dauer reicht bis zum Abschluss des
+ * Futures.
+ */
+public class MeteredAsyncRestClient implements AsyncRestClient, Closeable {
+
+    private final AsyncRestClient delegate;
+    private final CkanMetrics metrics;
+
+    public MeteredAsyncRestClient(AsyncRestClient delegate, CkanMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        if (delegate instanceof HttpAsyncRestClient) {
+            ((HttpAsyncRestClient) delegate).setTransferListener(MeteredRestClient.transferListener(metrics));
+        }
+    }
+
+    public AsyncRestClient getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> executeHttpRequestAsync(HttpUriRequest request) {
+        return executeHttpRequestAsync(request, JsonSelection.ALL);
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> executeHttpRequestAsync(HttpUriRequest request, JsonSelection selection) {
+        final String action = MeteredRestClient.actionOf(request);
+        metrics.callStarted(action);
+        final long start = System.nanoTime();
+        final CompletableFuture<JSONObject> future;
+        try {
+            future = selection.isAll()
+                    ? delegate.executeHttpRequestAsync(request)
+                    : delegate.executeHttpRequestAsync(request, selection);
+        } catch (RuntimeException e) {
+            metrics.callFinished(action, System.nanoTime() - start, MeteredRestClient.outcomeOf(e));
+            throw e;
+        }
+        return future.whenComplete((response, e) -> {
+            final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            metrics.callFinished(action, System.nanoTime() - start,
+                    cause == null ? MeteredRestClient.outcomeOf(response) : MeteredRestClient.outcomeOf(cause));
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Misst jeden Aufruf eines {@link RestClient}: Dauer, Ergebnis und laufende Aufrufe je CKAN Action. Ist der
+ * umhüllte Client ein {@link HttpRestClient}, auch unter einem {@link ResilientRestClient}, werden auch die
+ * übertragenen Bytes gemessen.
+ */
+public class MeteredRestClient implements RestClient, Closeable {
+
+    private final RestClient delegate;
+    private final CkanMetrics metrics;
+
+    public MeteredRestClient(RestClient delegate, CkanMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        setTransferListener(delegate, transferListener(metrics));
+    }
+
+    /**
+     * Setzt den {@link TransferListener} des innersten {@link HttpRestClient}, auch wenn er von weiteren Clients
+     * umhüllt ist.
+     *
+     * @param listener der Listener oder <code>null</code>, um ihn zu entfernen
+     */
+    static void setTransferListener(RestClient client, TransferListener listener) {
+        while (client instanceof MeteredRestClient || client instanceof ResilientRestClient) {
+            client = client instanceof MeteredRestClient
+                    ? ((MeteredRestClient) client).getDelegate()
+                    : ((ResilientRestClient) client).getDelegate();
+        }
+        if (client instanceof HttpRestClient) {
+            ((HttpRestClient) client).setTransferListener(listener);
+        }
+    }
+
+    static TransferListener transferListener(CkanMetrics metrics) {
+        return (request, requestBytes, responseBytes) ->
+                metrics.bytesTransferred(actionOf(request), requestBytes, responseBytes);
+    }
+
+    public RestClient getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Der Name der CKAN Action, z.B. <code>package_show</code> für <code>/api/3/action/package_show?id=...</code>.
+     * Aufrufe außerhalb der API (z.B. der Weboberfläche) werden als <code>other</code> gezählt.
+     */
+    static String actionOf(HttpUriRequest request) {
+        final String path = request.getURI().getPath();
+        if (path == null || !path.contains("/action/")) {
+            return "other";
+        }
+        return StringUtils.substringAfterLast(path, "/action/");
+    }
+
+    /**
+     * Das Ergebnis einer CKAN Antwort: {@link CkanMetrics#SUCCESS} oder der <code>__type</code> des Fehlers.
+     */
+    static String outcomeOf(JSONObject response) {
+        if (response == null || response.optBoolean("success", true)) {
+            return CkanMetrics.SUCCESS;
+        }
+        final JSONObject error = response.optJSONObject("error");
+        if (error != null && error.has("__type")) {
+            return error.optString("__type");
+        }
+        return "error";
+    }
+
+    static String outcomeOf(Throwable e) {
+        if (e instanceof InvalidResponseException) {
+            return "http_" + ((InvalidResponseException) e).getStatusCode();
+        } else if (e instanceof IOException) {
+            return "io_error";
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    @Override
+    public JSONObject executeHttpRequest(HttpUriRequest request) throws IOException {
+        return executeHttpRequest(request, JsonSelection.ALL);
+    }
+
+    @Override
+    public JSONObject executeHttpRequest(HttpUriRequest request, JsonSelection selection) throws IOException {
+        final String action = actionOf(request);
+        metrics.callStarted(action);
+        final long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            final JSONObject response = selection.isAll()
+                    ? delegate.executeHttpRequest(request)
+                    : delegate.executeHttpRequest(request, selection);
+            outcome = outcomeOf(response);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            outcome = outcomeOf(e);
+            throw e;
+        } finally {
+            metrics.callFinished(action, System.nanoTime() - start, outcome);
+        }
+    }
+
+    /**
+     * Misst die Zeit bis zum Eintreffen der Antwort. Das Ergebnis ergibt sich aus dem HTTP Status.
+     */
+    @Override
+    public CloseableHttpResponse executeRawHttpRequest(HttpUriRequest request) throws IOException {
+        final String action = actionOf(request);
+        metrics.callStarted(action);
+        final long start = System.nanoTime();
+        String outcome = "error";
+        try {
+            final CloseableHttpResponse response = delegate.executeRawHttpRequest(request);
+            final int status = response == null ? 0 : response.getStatusLine().getStatusCode();
+            outcome = status >= 400 ? "http_" + status : CkanMetrics.SUCCESS;
+            return response;
+        } catch (IOException | RuntimeException e) {
+            outcome = outcomeOf(e);
+            throw e;
+        } finally {
+            metrics.callFinished(action, System.nanoTime() - start, outcome);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+}
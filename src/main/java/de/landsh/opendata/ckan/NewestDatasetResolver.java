@@ -0,0 +1,136 @@
+package de.landsh.opendata.ckan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bestimmt das neueste Dataset vieler Collections gleichzeitig und hält die Ergebnisse für kurze Zeit vor.
+ *
+ * @see CkanAPI#findNewestDatasets(Collection)
+ */
+public class NewestDatasetResolver {
+
+    private static final Logger log = LoggerFactory.getLogger(NewestDatasetResolver.class);
+
+    private final Lookup lookup;
+    private final Executor executor;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    NewestDatasetResolver(Lookup lookup, Executor executor, long ttl, TimeUnit unit, LongSupplier ticker) {
+        this.lookup = lookup;
+        this.executor = executor;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Liefert das neueste Dataset je Collection. Nicht zwischengespeicherte Collections werden gleichzeitig
+     * abgefragt. Collections, deren Abfrage fehlschlägt, fehlen im Ergebnis; Collections ohne Dataset haben den
+     * Wert <code>null</code>.
+     */
+    public Map<String, String> resolve(Collection<String> collectionIds) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        final Map<String, CompletableFuture<String>> pending = new LinkedHashMap<>();
+        final long now = ticker.getAsLong();
+
+        for (String collectionId : collectionIds) {
+            final Entry entry = entries.get(collectionId);
+            if (isValid(entry, now)) {
+                result.put(collectionId, entry.packageId);
+            } else if (!pending.containsKey(collectionId)) {
+                pending.put(collectionId, CompletableFuture.supplyAsync(() -> load(collectionId), executor));
+            }
+        }
+
+        final List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<String>> call : pending.entrySet()) {
+            try {
+                result.put(call.getKey(), call.getValue().join());
+            } catch (CompletionException e) {
+                failed.add(call.getKey());
+                log.warn("Could not find the newest dataset of {}: {}", call.getKey(), e.getCause().getMessage());
+            }
+        }
+        if (!failed.isEmpty()) {
+            log.warn("{} of {} collections could not be resolved", failed.size(), pending.size());
+        }
+        return result;
+    }
+
+    /**
+     * Wie {@link #resolve(Collection)} für eine einzelne Collection, aber Fehler werden weitergegeben.
+     */
+    public String resolve(String collectionId) throws IOException {
+        final Entry entry = entries.get(collectionId);
+        if (isValid(entry, ticker.getAsLong())) {
+            return entry.packageId;
+        }
+        try {
+            return load(collectionId);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean isValid(Entry entry, long now) {
+        return entry != null && !entry.invalidated && now - entry.created <= ttlNanos;
+    }
+
+    private String load(String collectionId) {
+        final long started = ticker.getAsLong();
+        final String packageId;
+        try {
+            packageId = lookup.find(collectionId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // nicht zwischenspeichern, wenn die Collection während der Abfrage geändert wurde
+        entries.compute(collectionId, (key, old) ->
+                old != null && old.invalidated && old.created - started >= 0 ? old : new Entry(packageId, started, false));
+        return packageId;
+    }
+
+    /**
+     * Entfernt eine Collection aus dem Zwischenspeicher, z.B. nachdem ein Dataset hinzugefügt wurde.
+     */
+    public void invalidate(String collectionId) {
+        entries.put(collectionId, new Entry(null, ticker.getAsLong(), true));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    @FunctionalInterface
+    interface Lookup {
+        String find(String collectionId) throws IOException;
+    }
+
+    private static class Entry {
+        private final String packageId;
+        private final long created;
+        private final boolean invalidated;
+
+        Entry(String packageId, long created, boolean invalidated) {
+            this.packageId = packageId;
+            this.created = created;
+            this.invalidated = invalidated;
+        }
+    }
+}
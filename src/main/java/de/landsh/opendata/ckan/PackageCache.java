@@ -0,0 +1,222 @@
+package de.landsh.opendata.ckan;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Begrenzter Zwischenspeicher für die Ergebnisse von <code>package_show</code>. Es werden höchstens
+ * <code>maxEntries</code> Packages gehalten; bei Überlauf wird das am längsten nicht genutzte entfernt (LRU). Einträge
+ * verfallen nach der angegebenen Lebensdauer.
+ * <p>
+ * Die Packages werden serialisiert abgelegt und bei jedem Treffer neu erzeugt, damit Aufrufer das gelieferte
+ * {@link JSONObject} verändern können, ohne den Cache zu beeinflussen.
+ * <p>
+ * Ein Lesezugriff, der vor einer Invalidierung begonnen hat, darf seinen womöglich veralteten Stand nicht mehr
+ * ablegen: Dazu merkt er sich vorher {@link #generation()} und legt das Ergebnis mit
+ * {@link #put(String, JSONObject, long)} ab.
+ */
+public class PackageCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    /**
+     * Zählt die Invalidierungen; je Id, Name oder Resource-Id die Nummer der letzten.
+     */
+    private long generation;
+    private final Map<String, Invalidation> invalidations = new HashMap<>();
+    /**
+     * Bis zu dieser Generation sind Invalidierungen bereits vergessen.
+     */
+    private long forgottenGeneration;
+
+    public PackageCache(int maxEntries, long ttl, TimeUnit unit) {
+        this(maxEntries, ttl, unit, System::nanoTime);
+    }
+
+    PackageCache(int maxEntries, long ttl, TimeUnit unit, LongSupplier ticker) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Liefert eine Kopie des Packages, das unter der Id oder dem Namen abgelegt wurde, oder <code>null</code>.
+     */
+    public JSONObject get(String idOrName) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(idOrName);
+            if (entry != null && ticker.getAsLong() - entry.created > ttlNanos) {
+                entries.remove(idOrName);
+                evictions.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new JSONObject(entry.json);
+    }
+
+    /**
+     * Legt ein Package unter dem angefragten Schlüssel (Id oder Name) ab.
+     */
+    public void put(String idOrName, JSONObject dataset) {
+        final Entry entry = new Entry(dataset, ticker.getAsLong());
+        synchronized (this) {
+            entries.put(idOrName, entry);
+            final Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Der aktuelle Stand der Invalidierungen, den ein Lesezugriff vor dem Aufruf von CKAN abfragt.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Legt ein Package nur ab, wenn es seit <code>generation</code> nicht invalidiert wurde, weder über den
+     * angefragten Schlüssel noch über Id, Name oder eine seiner Resources.
+     */
+    public void put(String idOrName, JSONObject dataset, long generation) {
+        final Entry entry = new Entry(dataset, ticker.getAsLong());
+        synchronized (this) {
+            if (generation < forgottenGeneration || invalidatedSince(idOrName, generation)
+                    || invalidatedSince(entry.id, generation) || invalidatedSince(entry.name, generation)) {
+                return;
+            }
+            for (String resourceId : entry.resourceIds) {
+                if (invalidatedSince(resourceId, generation)) return;
+            }
+        }
+        put(idOrName, dataset);
+    }
+
+    private boolean invalidatedSince(String key, long generation) {
+        final Invalidation invalidation = key == null ? null : invalidations.get(key);
+        return invalidation != null && invalidation.generation > generation;
+    }
+
+    /**
+     * Vermerkt die Invalidierung. Vermerke, die älter als die Lebensdauer sind, werden vergessen; Lesezugriffe, die
+     * davor begonnen haben, legen ihr Ergebnis dann nicht mehr ab.
+     */
+    private void invalidated(String key) {
+        final long now = ticker.getAsLong();
+        invalidations.put(key, new Invalidation(++generation, now));
+        if (invalidations.size() > maxEntries) {
+            final Iterator<Invalidation> it = invalidations.values().iterator();
+            while (it.hasNext()) {
+                final Invalidation invalidation = it.next();
+                if (now - invalidation.time > ttlNanos) {
+                    forgottenGeneration = Math.max(forgottenGeneration, invalidation.generation);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Entfernt ein Package unabhängig davon, ob es über die Id oder den Namen abgelegt wurde.
+     */
+    public synchronized void invalidate(String idOrName) {
+        if (idOrName == null) return;
+        invalidated(idOrName);
+        entries.entrySet().removeIf(it -> idOrName.equals(it.getKey())
+                || idOrName.equals(it.getValue().id)
+                || idOrName.equals(it.getValue().name));
+    }
+
+    /**
+     * Entfernt das Package, zu dem die Resource gehört.
+     */
+    public synchronized void invalidateResource(String resourceId) {
+        if (resourceId == null) return;
+        invalidated(resourceId);
+        entries.values().removeIf(it -> it.resourceIds.contains(resourceId));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        invalidations.clear();
+        forgottenGeneration = ++generation;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private static class Invalidation {
+        private final long generation;
+        private final long time;
+
+        Invalidation(long generation, long time) {
+            this.generation = generation;
+            this.time = time;
+        }
+    }
+
+    private static class Entry {
+        private final String json;
+        private final String id;
+        private final String name;
+        private final Set<String> resourceIds = new HashSet<>();
+        private final long created;
+
+        Entry(JSONObject dataset, long created) {
+            this.json = dataset.toString();
+            this.id = dataset.optString("id", null);
+            this.name = dataset.optString("name", null);
+            this.created = created;
+            final JSONArray resources = dataset.optJSONArray("resources");
+            if (resources != null) {
+                for (Object resource : resources) {
+                    if (resource instanceof JSONObject) {
+                        resourceIds.add(((JSONObject) resource).optString("id", null));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Prüft ein abgebildetes Package vor dem Senden gegen das {@link PortalVocabulary} des Portals: Name,
+ * <code>owner_org</code>, <code>groups</code>, <code>license_id</code> und optional die Formate der Resources.
+ * Ungültige Datasets scheitern so ohne einen einzigen Aufruf mit einer {@link InvalidPackageException}, statt erst
+ * nach einem vollständigen <code>package_create</code>.
+ * <p>
+ * Mit einem {@link CkanAPI} wird das Vokabular über {@link CkanAPI#getPortalVocabulary()} einmal geladen und für
+ * dessen TTL wiederverwendet.
+ */
+public class PackageValidator {
+
+    /**
+     * Die Regel von CKAN für Namen von Packages.
+     */
+    private static final Pattern NAME = Pattern.compile("[a-z0-9_-]{2,100}");
+
+    private final CkanAPI ckanAPI;
+    private final PortalVocabulary vocabulary;
+    /**
+     * Die erlaubten Formate der Resources (ohne Beachtung der Groß- und Kleinschreibung) oder <code>null</code>, um
+     * sie nicht zu prüfen. CKAN selbst kennt keine Liste der Formate.
+     */
+    @Getter
+    private Set<String> formats;
+
+    public PackageValidator(CkanAPI ckanAPI) {
+        this.ckanAPI = ckanAPI;
+        this.vocabulary = null;
+    }
+
+    public PackageValidator(PortalVocabulary vocabulary) {
+        this.ckanAPI = null;
+        this.vocabulary = vocabulary;
+    }
+
+    public void setFormats(Collection<String> formats) {
+        this.formats = formats == null ? null
+                : formats.stream().map(it -> it.toUpperCase(Locale.ROOT)).collect(Collectors.toSet());
+    }
+
+    /**
+     * Wirft eine {@link InvalidPackageException} mit allen Fehlern, wenn das Package ungültig ist.
+     */
+    public void check(String datasetURI, JSONObject packageJSON, List<JSONObject> resources) throws IOException {
+        final List<String> problems = validate(packageJSON, resources);
+        if (!problems.isEmpty()) {
+            throw new InvalidPackageException(datasetURI, problems);
+        }
+    }
+
+    /**
+     * Liefert alle Fehler des Packages; eine leere Liste, wenn es gültig ist.
+     */
+    public List<String> validate(JSONObject packageJSON, List<JSONObject> resources) throws IOException {
+        final PortalVocabulary vocabulary = ckanAPI == null ? this.vocabulary : ckanAPI.getPortalVocabulary();
+        final List<String> problems = new ArrayList<>();
+
+        final String name = packageJSON.optString("name", null);
+        if (name != null && !NAME.matcher(name).matches()) {
+            problems.add("Invalid name '" + name + "'");
+        }
+        final String organization = packageJSON.optString("owner_org", null);
+        if (organization != null && !vocabulary.isOrganization(organization)) {
+            problems.add("Unknown organization '" + organization + "'");
+        }
+        final JSONArray groups = packageJSON.optJSONArray("groups");
+        if (groups != null) {
+            for (Object o : groups) {
+                final String group = ((JSONObject) o).optString("name");
+                if (!vocabulary.isGroup(group)) {
+                    problems.add("Unknown group '" + group + "'");
+                }
+            }
+        }
+        final String license = packageJSON.optString("license_id", null);
+        if (license != null && !vocabulary.isLicense(license)) {
+            problems.add("Unknown license '" + license + "'");
+        }
+
+        final Set<String> formats = this.formats;
+        if (formats != null && resources != null) {
+            for (JSONObject resource : resources) {
+                final String format = resource.optString("format", null);
+                if (format != null && !formats.contains(format.toUpperCase(Locale.ROOT))) {
+                    problems.add("Unknown format '" + format + "' of resource " + resource.optString("url"));
+                }
+            }
+        }
+        return problems;
+    }
+}
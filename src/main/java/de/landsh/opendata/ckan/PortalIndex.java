@@ -0,0 +1,69 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kompakter Index aller Packages eines Portals: Name, Id, Organisation, letzte Änderung und der beim Upsert
+ * abgelegte {@link DcatUploader#FINGERPRINT_KEY}. Damit lässt sich ohne je einen <code>package_show</code> Aufruf
+ * feststellen, ob ein Package existiert und ob es sich geändert hat.
+ * <p>
+ * Ein Index ist nach dem Aufbau unveränderlich und kann von mehreren Threads gleichzeitig gelesen werden.
+ *
+ * @see CkanAPI#buildPortalIndex()
+ */
+public class PortalIndex {
+
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<String, Entry> byId = new HashMap<>();
+    /**
+     * Die Ids der Organisationen wiederholen sich sehr oft und werden daher nur einmal gehalten.
+     */
+    private final Map<String, String> organizations = new HashMap<>();
+
+    void add(String name, String id, String organizationId, String metadataModified, String fingerprint) {
+        final String organization = organizationId == null ? null : organizations.computeIfAbsent(organizationId, o -> o);
+        final Entry entry = new Entry(name, id, organization, metadataModified, fingerprint);
+        byName.put(name, entry);
+        byId.put(id, entry);
+    }
+
+    /**
+     * Liefert den Eintrag zum Namen oder zur Id eines Packages oder <code>null</code>.
+     */
+    public Entry get(String nameOrId) {
+        final Entry entry = byName.get(nameOrId);
+        return entry != null ? entry : byId.get(nameOrId);
+    }
+
+    public boolean contains(String nameOrId) {
+        return get(nameOrId) != null;
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(byName.values());
+    }
+
+    /**
+     * Ein Package im Index.
+     */
+    @Data
+    public static class Entry {
+        private final String name;
+        private final String id;
+        private final String organizationId;
+        private final String metadataModified;
+        /**
+         * Der gespeicherte Fingerprint oder <code>null</code>, wenn das Package nicht per Upsert angelegt wurde.
+         */
+        private final String fingerprint;
+    }
+}
@@ -0,0 +1,51 @@
+package de.landsh.opendata.ckan;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Die Organisationen, Gruppen und Lizenzen eines Portals, gegen die ein Package vor dem Anlegen geprüft wird.
+ * Organisationen sind mit Id und Namen enthalten, Gruppen mit ihrem Namen und Lizenzen mit ihrer Id.
+ * <p>
+ * Unveränderlich und daher von mehreren Threads gleichzeitig lesbar.
+ *
+ * @see CkanAPI#getPortalVocabulary()
+ * @see PackageValidator
+ */
+public class PortalVocabulary {
+
+    private final Set<String> organizations;
+    private final Set<String> groups;
+    private final Set<String> licenses;
+
+    public PortalVocabulary(Set<String> organizations, Set<String> groups, Set<String> licenses) {
+        this.organizations = Collections.unmodifiableSet(new HashSet<>(organizations));
+        this.groups = Collections.unmodifiableSet(new HashSet<>(groups));
+        this.licenses = Collections.unmodifiableSet(new HashSet<>(licenses));
+    }
+
+    public Set<String> getOrganizations() {
+        return organizations;
+    }
+
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    public Set<String> getLicenses() {
+        return licenses;
+    }
+
+    public boolean isOrganization(String idOrName) {
+        return organizations.contains(idOrName);
+    }
+
+    public boolean isGroup(String name) {
+        return groups.contains(name);
+    }
+
+    public boolean isLicense(String id) {
+        return licenses.contains(id);
+    }
+}
@@ -0,0 +1,110 @@
+package de.landsh.opendata.ckan;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schreibt die Messwerte eines {@link InMemoryCkanMetrics} im Textformat von Prometheus, z.B. für einen eigenen
+ * <code>/metrics</code> Endpunkt oder ein Pushgateway.
+ */
+public class PrometheusTextFormat {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final InMemoryCkanMetrics metrics;
+    private final String prefix;
+
+    public PrometheusTextFormat(InMemoryCkanMetrics metrics) {
+        this(metrics, "ckan_client");
+    }
+
+    /**
+     * @param prefix wird allen Namen vorangestellt
+     */
+    public PrometheusTextFormat(InMemoryCkanMetrics metrics, String prefix) {
+        this.metrics = metrics;
+        this.prefix = prefix;
+    }
+
+    public void write(Writer out) throws IOException {
+        header(out, "request_duration_seconds", "histogram", "Duration of CKAN API calls");
+        for (String action : metrics.getActions()) {
+            histogram(out, "request_duration_seconds", "action", action, metrics.getCallStats(action).getDuration());
+        }
+
+        header(out, "requests_total", "counter", "CKAN API calls by outcome");
+        for (String action : metrics.getActions()) {
+            for (Map.Entry<String, Long> entry : metrics.getCallStats(action).getOutcomes().entrySet()) {
+                out.write(prefix + "_requests_total{action=\"" + escape(action) + "\",outcome=\""
+                        + escape(entry.getKey()) + "\"} " + entry.getValue() + "\n");
+            }
+        }
+
+        header(out, "requests_in_flight", "gauge", "CKAN API calls currently running");
+        for (String action : metrics.getActions()) {
+            sample(out, "requests_in_flight", "action", action, metrics.getCallStats(action).getInFlight());
+        }
+
+        header(out, "request_bytes_total", "counter", "Bytes sent to CKAN");
+        for (String action : metrics.getActions()) {
+            sample(out, "request_bytes_total", "action", action, metrics.getCallStats(action).getRequestBytes());
+        }
+
+        header(out, "response_bytes_total", "counter", "Bytes received from CKAN");
+        for (String action : metrics.getActions()) {
+            sample(out, "response_bytes_total", "action", action, metrics.getCallStats(action).getResponseBytes());
+        }
+
+        header(out, "stage_duration_seconds", "histogram", "Duration of DcatUploader stages");
+        for (String stage : metrics.getStages()) {
+            histogram(out, "stage_duration_seconds", "stage", stage, metrics.getStage(stage));
+        }
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        final StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    private void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + prefix + "_" + name + " " + help + "\n");
+        out.write("# TYPE " + prefix + "_" + name + " " + type + "\n");
+    }
+
+    private void sample(Writer out, String name, String label, String value, long sample) throws IOException {
+        out.write(prefix + "_" + name + "{" + label + "=\"" + escape(value) + "\"} " + sample + "\n");
+    }
+
+    private void histogram(Writer out, String name, String label, String value,
+                           InMemoryCkanMetrics.Histogram histogram) throws IOException {
+        final String labels = label + "=\"" + escape(value) + "\"";
+        final long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            out.write(prefix + "_" + name + "_bucket{" + labels + ",le=\""
+                    + format(InMemoryCkanMetrics.Histogram.BOUNDS[i]) + "\"} " + counts[i] + "\n");
+        }
+        out.write(prefix + "_" + name + "_bucket{" + labels + ",le=\"+Inf\"} " + histogram.getCount() + "\n");
+        out.write(prefix + "_" + name + "_sum{" + labels + "} " + format(histogram.getSumNanos() / NANOS_PER_SECOND) + "\n");
+        out.write(prefix + "_" + name + "_count{" + labels + "} " + histogram.getCount() + "\n");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%s", value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,214 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Schickt schreibende CKAN Actions nicht an das Portal, sondern schreibt sie als Aktionsprotokoll im NDJSON Format
+ * (eine JSON Zeile je Action):
+ * <pre>
+ * {"action":"package_create","key":"mein-dataset","data":{...}}
+ * {"action":"resource_create","key":"mein-dataset","data":{"package_id":"mein-dataset",...}}
+ * </pre>
+ * <code>key</code> ist das betroffene Package; der {@link ActionLogReplayer} hält die Reihenfolge je Package ein.
+ * Der API-Key wird nicht protokolliert.
+ * <p>
+ * Angelegte Packages erhalten ihren Namen als Id, damit spätere Actions sie beim Abspielen finden. Ids angelegter
+ * Resources sind Platzhalter, die den Namen des Packages enthalten. <code>package_show</code> für im Protokoll
+ * angelegte Packages wird lokal beantwortet, allerdings nur mit Id, Name, Typ, Organisation und Sichtbarkeit und ohne
+ * Resources, damit der Speicherbedarf auch bei sehr großen Katalogen klein bleibt. Alle übrigen lesenden Aufrufe gehen
+ * an den optionalen <code>reads</code> Client (z.B. für die Prüfung von Collections) oder werden ohne ihn mit "nicht
+ * gefunden" beantwortet.
+ * <p>
+ * Nur Actions mit JSON-Dokument lassen sich abspielen. Das Hochladen von Dateien
+ * ({@link CkanAPI#uploadFile(String, java.io.File, String, String, String)}) wird daher mit einer
+ * {@link IOException} abgelehnt, ohne etwas zu protokollieren; ebenso Aufrufe, die die rohe HTTP-Antwort benötigen
+ * (z.B. {@link CkanAPI#findNewestDataset(String)}), wenn kein <code>reads</code> Client angegeben ist.
+ *
+ * @see CkanAPI#record(RecordingRestClient)
+ */
+public class RecordingRestClient implements RestClient, AsyncRestClient, Closeable {
+
+    private final Writer out;
+    private final RestClient reads;
+    /**
+     * Die Felder, die von im Protokoll angelegten Packages behalten werden.
+     */
+    private static final String[] SUMMARY_FIELDS = {"id", "name", "type", "owner_org", "private"};
+    /**
+     * Trennt in Platzhalter-Ids von Resources den Namen des Packages ab; er kann in CKAN keinen Doppelpunkt enthalten.
+     */
+    private static final char RESOURCE_ID_SEPARATOR = ':';
+
+    /**
+     * Die im Protokoll angelegten Packages nach Name, nur mit {@link #SUMMARY_FIELDS}.
+     */
+    private final Map<String, JSONObject> created = new ConcurrentHashMap<>();
+    private long lines;
+    private boolean closed;
+
+    /**
+     * @param reads beantwortet lesende Aufrufe, die nicht aus dem Protokoll beantwortet werden können, oder
+     *              <code>null</code>
+     */
+    public RecordingRestClient(Writer out, RestClient reads) {
+        this.out = out;
+        this.reads = reads;
+    }
+
+    public RecordingRestClient(Writer out) {
+        this(out, null);
+    }
+
+    /**
+     * Schreibt das Protokoll in eine neue Datei; eine vorhandene wird überschrieben.
+     */
+    public static RecordingRestClient create(Path file, RestClient reads) throws IOException {
+        return new RecordingRestClient(Files.newBufferedWriter(file, StandardCharsets.UTF_8), reads);
+    }
+
+    /**
+     * Die Anzahl bisher protokollierter Actions.
+     */
+    public synchronized long getRecordedActions() {
+        return lines;
+    }
+
+    /**
+     * @throws IOException wenn eine schreibende Action kein JSON-Dokument hat, z.B. beim Hochladen von Dateien
+     */
+    @Override
+    public JSONObject executeHttpRequest(HttpUriRequest request) throws IOException {
+        final String action = MeteredRestClient.actionOf(request);
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return read(action, request);
+        }
+
+        final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        final Header contentType = request.getFirstHeader("Content-Type");
+        if (entity == null || contentType == null || !contentType.getValue().startsWith("application/json")) {
+            // z.B. das Hochladen von Dateien
+            throw new IOException(action + " without a JSON body cannot be recorded");
+        }
+        // die Kopie entkoppelt das Protokoll vom Dokument des Aufrufers, auch wenn die Entity komprimiert ist
+        final JSONObject data = entity instanceof JsonEntity
+                ? new JSONObject(((JsonEntity) entity).getJson().toString())
+                : new JSONObject(EntityUtils.toString(entity, StandardCharsets.UTF_8));
+        return new JSONObject().put("success", true).put("result", record(action, data));
+    }
+
+    private JSONObject read(String action, HttpUriRequest request) throws IOException {
+        if ("package_show".equals(action)) {
+            for (NameValuePair parameter : URLEncodedUtils.parse(request.getURI(), StandardCharsets.UTF_8)) {
+                final JSONObject dataset = "id".equals(parameter.getName()) ? created.get(parameter.getValue()) : null;
+                if (dataset != null) {
+                    return new JSONObject().put("success", true)
+                            .put("result", new JSONObject(dataset.toString()).put("resources", new JSONArray()));
+                }
+            }
+        }
+        if (reads != null) {
+            return reads.executeHttpRequest(request);
+        }
+        return new JSONObject().put("success", false)
+                .put("error", new JSONObject().put("__type", "Not Found Error").put("message", "Not found"));
+    }
+
+    /**
+     * Protokolliert eine Action und liefert das Ergebnis, das CKAN vermutlich zurückgegeben hätte.
+     */
+    private JSONObject record(String action, JSONObject data) throws IOException {
+        final JSONObject result = new JSONObject(data.toString());
+        final String key;
+        if ("package_create".equals(action)) {
+            if (!data.has("name")) {
+                data.put("name", UUID.randomUUID().toString());
+            }
+            key = data.getString("name");
+            result.put("id", key).put("name", key);
+            if (!result.has("resources")) {
+                result.put("resources", new JSONArray());
+            }
+            final JSONObject summary = new JSONObject();
+            for (String field : SUMMARY_FIELDS) {
+                summary.putOpt(field, result.opt(field));
+            }
+            created.put(key, summary);
+        } else if ("resource_create".equals(action)) {
+            key = data.optString("package_id");
+            result.put("id", key + RESOURCE_ID_SEPARATOR + UUID.randomUUID());
+        } else if (action.startsWith("resource_")) {
+            final String resourceId = data.optString("id");
+            final int separator = resourceId.indexOf(RESOURCE_ID_SEPARATOR);
+            key = separator < 0 ? resourceId : resourceId.substring(0, separator);
+        } else if (action.startsWith("package_relationship_")) {
+            key = data.optString("object");
+        } else {
+            key = data.has("id") ? data.optString("id") : data.optString("name", action);
+        }
+
+        final String line = new JSONObject().put("action", action).put("key", key).put("data", data).toString();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The action log has been closed");
+            }
+            out.write(line);
+            out.write('\n');
+            lines++;
+        }
+        return result;
+    }
+
+    /**
+     * @throws IOException wenn kein <code>reads</code> Client angegeben ist
+     */
+    @Override
+    public CloseableHttpResponse executeRawHttpRequest(HttpUriRequest request) throws IOException {
+        if (reads == null) {
+            throw new IOException("No client for reads while recording " + request.getURI());
+        }
+        return reads.executeRawHttpRequest(request);
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> executeHttpRequestAsync(HttpUriRequest request) {
+        final CompletableFuture<JSONObject> future = new CompletableFuture<>();
+        try {
+            future.complete(executeHttpRequest(request));
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Data;
+
+/**
+ * Ergebnis des Abspielens eines Aktionsprotokolls mit dem {@link ActionLogReplayer}.
+ */
+@Data
+public class ReplayResult {
+    /**
+     * Die Anzahl erfolgreich ausgeführter Actions.
+     */
+    private final long succeeded;
+    /**
+     * Die Anzahl von CKAN abgelehnter oder nicht zustellbarer Actions.
+     */
+    private final long failed;
+    /**
+     * Die Anzahl übersprungener Actions, weil eine vorherige Action desselben Packages fehlgeschlagen ist.
+     */
+    private final long skipped;
+    /**
+     * Die letzte Zeile, bis zu der alle Actions abgearbeitet sind.
+     */
+    private final long checkpoint;
+}
@@ -0,0 +1,22 @@
+package de.landsh.opendata.ckan;
+
+/**
+ * Ob {@link CkanAPI} die JSON Dokumente schreibender Aufrufe mit gzip komprimiert.
+ *
+ * @see CkanAPI#setRequestCompression(RequestCompression)
+ */
+public enum RequestCompression {
+    /**
+     * Nie komprimieren. CKAN selbst entpackt keine Anfragen; das muss ein vorgeschalteter Webserver übernehmen.
+     */
+    OFF,
+    /**
+     * Immer komprimieren.
+     */
+    GZIP,
+    /**
+     * Der erste schreibende Aufruf wird komprimiert gesendet. Lehnt das Portal ihn ab, weil es den Inhalt nicht
+     * lesen kann, wird er unkomprimiert wiederholt und für dieses Portal nicht mehr komprimiert.
+     */
+    AUTO
+}
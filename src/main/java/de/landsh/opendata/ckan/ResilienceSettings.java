@@ -0,0 +1,33 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Data;
+
+/**
+ * Einstellungen für Wiederholungen und die adaptive Begrenzung paralleler Aufrufe in {@link ResilientRestClient}.
+ */
+@Data
+public class ResilienceSettings {
+    /**
+     * Maximale Anzahl Versuche je Aufruf, einschließlich des ersten.
+     */
+    private int maxAttempts = 4;
+    /**
+     * Obergrenze der Wartezeit vor der ersten Wiederholung. Sie verdoppelt sich mit jedem weiteren Versuch; gewartet
+     * wird eine zufällige Zeit zwischen 0 und dieser Grenze.
+     */
+    private long initialBackoffMillis = 200;
+    /**
+     * Höchste Wartezeit zwischen zwei Versuchen.
+     */
+    private long maxBackoffMillis = 10_000;
+    /**
+     * Anzahl gleichzeitiger Aufrufe zu Beginn.
+     */
+    private int initialLimit = 4;
+    private int minLimit = 1;
+    private int maxLimit = 32;
+    /**
+     * Dauert ein Aufruf länger, gilt CKAN als überlastet und die Anzahl gleichzeitiger Aufrufe wird halbiert.
+     */
+    private long latencyThresholdMillis = 5_000;
+}
@@ -0,0 +1,261 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ein {@link RestClient}, der fehlgeschlagene Aufrufe wiederholt und die Anzahl gleichzeitiger Aufrufe an die Last
+ * von CKAN anpasst.
+ * <p>
+ * Wiederholt werden Verbindungsfehler, Timeouts, HTTP 5xx/429 und Antworten ohne JSON Dokument, und zwar nur für
+ * lesende und idempotente Actions. <code>package_create</code> wird nur wiederholt, wenn das Package einen Namen
+ * hat: Vor der Wiederholung wird per <code>package_show</code> geprüft, ob der erste Versuch das Package doch
+ * angelegt hat. Andere Fehler von CKAN (<code>"success": false</code>) werden nie wiederholt.
+ * <p>
+ * Zwischen den Versuchen wird exponentiell zunehmend und zufällig gestreut gewartet, damit viele Threads CKAN nach
+ * einer Störung nicht gleichzeitig treffen.
+ *
+ * @see AdaptiveLimiter
+ */
+public class ResilientRestClient implements RestClient, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResilientRestClient.class);
+
+    /**
+     * POST Actions, die mehrfach ausgeführt werden dürfen, ohne dass sich das Ergebnis ändert.
+     */
+    private static final Set<String> IDEMPOTENT_ACTIONS = new HashSet<>(Arrays.asList(
+            "package_show", "package_search", "package_list", "resource_show", "organization_list",
+            "organization_show", "group_list", "license_list", "package_patch", "package_update", "resource_patch",
+            "resource_update", "package_relationship_create", "package_relationship_delete",
+            "bulk_update_public", "bulk_update_private"));
+
+    private final RestClient delegate;
+    private final ResilienceSettings settings;
+    private final AdaptiveLimiter limiter;
+    private final Sleeper sleeper;
+
+    public ResilientRestClient(RestClient delegate, ResilienceSettings settings) {
+        this(delegate, settings, Thread::sleep);
+    }
+
+    ResilientRestClient(RestClient delegate, ResilienceSettings settings, Sleeper sleeper) {
+        this.delegate = delegate;
+        this.settings = settings;
+        this.limiter = new AdaptiveLimiter(settings.getInitialLimit(), settings.getMinLimit(), settings.getMaxLimit());
+        this.sleeper = sleeper;
+    }
+
+    public RestClient getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Die derzeit erlaubte Anzahl gleichzeitiger Aufrufe.
+     */
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    static boolean isRetryable(Exception e) {
+        if (e instanceof InvalidResponseException) {
+            final int status = ((InvalidResponseException) e).getStatusCode();
+            return status < 400 || status >= 500 || status == 408 || status == 429;
+        }
+        if (e instanceof InterruptedIOException) {
+            // Timeouts ja, Abbruch des Threads nein
+            return e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException;
+        }
+        return e instanceof IOException;
+    }
+
+    private static boolean isOverloaded(Exception e) {
+        if (e instanceof InvalidResponseException) {
+            final int status = ((InvalidResponseException) e).getStatusCode();
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+        return e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException;
+    }
+
+    static boolean isIdempotent(HttpUriRequest request, String action) {
+        final String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) || IDEMPOTENT_ACTIONS.contains(action);
+    }
+
+    @Override
+    public JSONObject executeHttpRequest(HttpUriRequest request) throws IOException {
+        return executeHttpRequest(request, JsonSelection.ALL);
+    }
+
+    @Override
+    public JSONObject executeHttpRequest(HttpUriRequest request, JsonSelection selection) throws IOException {
+        final String action = MeteredRestClient.actionOf(request);
+        final boolean idempotent = isIdempotent(request, action);
+        final String packageName = !idempotent && "package_create".equals(action) ? getPackageName(request) : null;
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return limited(() -> execute(request, selection));
+            } catch (IOException | InvalidResponseException e) {
+                if (!isRetryable(e) || attempt >= settings.getMaxAttempts() || (!idempotent && packageName == null)) {
+                    throw e;
+                }
+                if (packageName != null) {
+                    final JSONObject created = findPackage(request, packageName, selection);
+                    if (created != null) {
+                        log.info("Package {} was created despite {}", packageName, e.getMessage());
+                        return created;
+                    }
+                }
+                backoff(action, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Wiederholt GET Aufrufe bei Verbindungsfehlern und HTTP 5xx/429.
+     */
+    @Override
+    public CloseableHttpResponse executeRawHttpRequest(HttpUriRequest request) throws IOException {
+        final String action = MeteredRestClient.actionOf(request);
+        final boolean idempotent = isIdempotent(request, action);
+
+        for (int attempt = 1; ; attempt++) {
+            final CloseableHttpResponse response;
+            try {
+                response = limited(() -> delegate.executeRawHttpRequest(request));
+            } catch (IOException e) {
+                if (!idempotent || !isRetryable(e) || attempt >= settings.getMaxAttempts()) {
+                    throw e;
+                }
+                backoff(action, attempt, e);
+                continue;
+            }
+
+            final int status = response.getStatusLine().getStatusCode();
+            if (!idempotent || (status < 500 && status != 429) || attempt >= settings.getMaxAttempts()) {
+                return response;
+            }
+            response.close();
+            backoff(action, attempt, new InvalidResponseException(status, ""));
+        }
+    }
+
+    private JSONObject execute(HttpUriRequest request, JsonSelection selection) throws IOException {
+        return selection.isAll() ? delegate.executeHttpRequest(request) : delegate.executeHttpRequest(request, selection);
+    }
+
+    private <T> T limited(Call<T> call) throws IOException {
+        limiter.acquire();
+        final long start = System.nanoTime();
+        boolean overloaded = false;
+        try {
+            final T result = call.execute();
+            overloaded = System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(settings.getLatencyThresholdMillis());
+            return result;
+        } catch (IOException | RuntimeException e) {
+            overloaded = isOverloaded(e);
+            throw e;
+        } finally {
+            limiter.release(overloaded);
+        }
+    }
+
+    private void backoff(String action, int attempt, Exception cause) throws IOException {
+        final long cap = Math.min(settings.getMaxBackoffMillis(), settings.getInitialBackoffMillis() << Math.min(attempt - 1, 20));
+        final long millis = ThreadLocalRandom.current().nextLong(cap + 1);
+        log.warn("{} failed (attempt {}): {}; retrying in {} ms", action, attempt, cause.getMessage(), millis);
+        try {
+            sleeper.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry " + action);
+        }
+    }
+
+    /**
+     * Der Name des anzulegenden Packages aus dem JSON Dokument der Anfrage oder <code>null</code>.
+     */
+    private static String getPackageName(HttpUriRequest request) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) return null;
+        final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null || !entity.isRepeatable()) return null;
+        try {
+            // eine JsonEntity ist ggf. komprimiert, das Dokument liegt aber noch vor
+            final JSONObject json = entity instanceof JsonEntity
+                    ? ((JsonEntity) entity).getJson()
+                    : new JSONObject(EntityUtils.toString(entity, StandardCharsets.UTF_8));
+            final String name = json.optString("name");
+            return name.isEmpty() ? null : name;
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Liefert das Package im Format der Antwort von <code>package_create</code>, wenn es bereits existiert.
+     */
+    private JSONObject findPackage(HttpUriRequest request, String packageName, JsonSelection selection) {
+        final String uri = request.getURI().toString();
+        final HttpGet packageShow = new HttpGet(uri.substring(0, uri.lastIndexOf("package_create"))
+                + "package_show?id=" + urlEncode(packageName));
+        for (Header header : request.getHeaders("Authorization")) {
+            packageShow.addHeader(header);
+        }
+        try {
+            final JSONObject response = limited(() -> execute(packageShow, selection));
+            return response.optBoolean("success") ? response : null;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Could not check for package {}: {}", packageName, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T execute() throws IOException;
+    }
+}
@@ -1,6 +1,5 @@
 package de.landsh.opendata.ckan;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.json.JSONObject;
@@ -13,6 +12,14 @@ import java.io.IOException;
 public interface RestClient {
     JSONObject executeHttpRequest(HttpUriRequest request) throws IOException;
 
+    /**
+     * Wie {@link #executeHttpRequest(HttpUriRequest)}, liefert aber nur die ausgewählten Felder der Antwort.
+     * Implementierungen können die übrigen Felder beim Einlesen überspringen.
+     */
+    default JSONObject executeHttpRequest(HttpUriRequest request, JsonSelection selection) throws IOException {
+        return selection.apply(executeHttpRequest(request));
+    }
+
     CloseableHttpResponse executeRawHttpRequest(HttpUriRequest request) throws IOException;
 
 }
@@ -0,0 +1,73 @@
+package de.landsh.opendata.ckan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Fasst gleichzeitige Abfragen mit demselben Schlüssel zusammen: Nur der erste Aufrufer führt die Abfrage aus, alle
+ * weiteren warten auf dessen Ergebnis. Nach Abschluss wird nichts zwischengespeichert, die nächste Abfrage geht
+ * wieder an den Server.
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * @param copy erzeugt für die wartenden Aufrufer eine eigene Kopie des Ergebnisses, falls es veränderlich ist
+     */
+    V execute(K key, Loader<V> loader, UnaryOperator<V> copy) throws IOException {
+        final CompletableFuture<V> call = new CompletableFuture<>();
+        final CompletableFuture<V> running = calls.putIfAbsent(key, call);
+        if (running != null) {
+            sharedCount.incrementAndGet();
+            return copy.apply(await(running));
+        }
+
+        try {
+            final V result = loader.load();
+            call.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    private V await(CompletableFuture<V> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared request");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Anzahl der Aufrufe, die sich einer bereits laufenden Abfrage angeschlossen haben.
+     */
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    interface Loader<V> {
+        V load() throws IOException;
+    }
+}
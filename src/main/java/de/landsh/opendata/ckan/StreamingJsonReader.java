@@ -0,0 +1,150 @@
+package de.landsh.opendata.ckan;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Liest CKAN Antworten direkt aus dem Datenstrom ein. Es werden nur die Felder einer {@link JsonSelection}
+ * als {@link JSONObject} aufgebaut, alle anderen Teilbäume werden überlesen, ohne sie im Speicher abzulegen.
+ */
+public final class StreamingJsonReader {
+
+    /**
+     * So viele Bytes einer ungültigen Antwort werden in die Fehlermeldung übernommen.
+     */
+    public static final int MAX_EXCERPT_LENGTH = 1024;
+
+    private static final JsonFactory factory = JsonFactory.builder()
+            .disable(JsonFactory.Feature.INTERN_FIELD_NAMES)
+            .build()
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private StreamingJsonReader() {
+    }
+
+    /**
+     * Liest die Antwort ein und gibt die Verbindung anschließend für die Wiederverwendung frei.
+     *
+     * @throws InvalidResponseException wenn die Antwort kein JSON Objekt ist
+     */
+    static JSONObject read(HttpResponse response, JsonSelection selection) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            throw new InvalidResponseException(response.getStatusLine().getStatusCode(), "");
+        }
+
+        final ExcerptInputStream in = new ExcerptInputStream(entity.getContent());
+        try {
+            return read(in, selection);
+        } catch (JsonProcessingException e) {
+            throw new InvalidResponseException(response.getStatusLine().getStatusCode(), in.getExcerpt());
+        } finally {
+            // Restliche Bytes lesen, damit die Verbindung im Pool bleiben kann.
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * Liest ein JSON Objekt aus dem Datenstrom ein. Der Datenstrom wird nicht geschlossen.
+     */
+    public static JSONObject read(InputStream in, JsonSelection selection) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON object");
+            }
+            return readObject(parser, selection);
+        }
+    }
+
+    private static JSONObject readObject(JsonParser parser, JsonSelection selection) throws IOException {
+        final JSONObject result = new JSONObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            final JsonSelection child = selection.child(name);
+            if (child == null) {
+                parser.skipChildren();
+            } else {
+                result.put(name, readValue(parser, child));
+            }
+        }
+        return result;
+    }
+
+    private static Object readValue(JsonParser parser, JsonSelection selection) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                return readObject(parser, selection);
+            case START_ARRAY:
+                final JSONArray array = new JSONArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    array.put(readValue(parser, selection));
+                }
+                return array;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDecimalValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return JSONObject.NULL;
+            default:
+                throw new JsonParseException(parser, "Unexpected token " + parser.currentToken());
+        }
+    }
+
+    /**
+     * Merkt sich den Anfang des Datenstroms für Fehlermeldungen.
+     */
+    private static class ExcerptInputStream extends FilterInputStream {
+        private final byte[] excerpt = new byte[MAX_EXCERPT_LENGTH];
+        private int length;
+
+        ExcerptInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0 && length < excerpt.length) {
+                excerpt[length++] = (byte) b;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int count = super.read(b, off, len);
+            if (count > 0 && length < excerpt.length) {
+                final int copy = Math.min(count, excerpt.length - length);
+                System.arraycopy(b, off, excerpt, length, copy);
+                length += copy;
+            }
+            return count;
+        }
+
+        String getExcerpt() {
+            return new String(Arrays.copyOf(excerpt, length), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package de.landsh.opendata.ckan;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Erzeugt die Threads für parallele Uploads und CKAN Aufrufe. Diese Variante für Java 8 bis 20 verwendet einen
+ * begrenzten Pool von Daemon-Threads; ab Java 21 wird aus <code>META-INF/versions/21</code> eine Variante mit
+ * virtuellen Threads geladen (Multi-Release JAR).
+ */
+final class TaskExecutors {
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * Gibt an, ob virtuelle Threads verwendet werden.
+     */
+    static boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * Erzeugt Threads mit dem Namen <code>name-1</code>, <code>name-2</code> usw.
+     */
+    static ThreadFactory threadFactory(String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Ein Executor für höchstens <code>maxThreads</code> gleichzeitige Aufgaben. Weitere Aufgaben warten.
+     */
+    static ExecutorService newExecutor(String name, int maxThreads) {
+        return Executors.newFixedThreadPool(maxThreads, threadFactory(name));
+    }
+}
@@ -0,0 +1,11 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Wird nach dem Einlesen einer Antwort mit der Anzahl der übertragenen Bytes aufgerufen.
+ */
+@FunctionalInterface
+public interface TransferListener {
+    void transferred(HttpUriRequest request, long requestBytes, long responseBytes);
+}
@@ -0,0 +1,253 @@
+package de.landsh.opendata.ckan;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lokales Protokoll eines Katalog-Uploads, das nach einem Abbruch das Fortsetzen ermöglicht. Für jedes Dataset wird
+ * festgehalten, welches Package angelegt wurde, welche Distributionen als Resource angelegt wurden, in welche
+ * Collections es eingeordnet wurde und ob es vollständig hochgeladen ist.
+ * <p>
+ * Jeder Schritt wird sofort als Zeile an die Datei angehängt und übersteht damit einen Absturz des Prozesses. Auf
+ * den Datenträger geschrieben (<code>fsync</code>) wird gebündelt nach <code>syncEvery</code> Einträgen bzw.
+ * <code>syncIntervalMillis</code>, spätestens beim Schließen.
+ * <p>
+ * Eine beim Absturz nur teilweise geschriebene letzte Zeile wird beim Öffnen verworfen.
+ *
+ * @see DcatUploader#setJournal(UploadJournal)
+ */
+public class UploadJournal implements Closeable {
+
+    private static final String PACKAGE = "P";
+    private static final String RESOURCE = "R";
+    private static final String COLLECTION = "C";
+    private static final String DONE = "D";
+
+    private final FileChannel channel;
+    private final int syncEvery;
+    private final long syncIntervalNanos;
+    private final Map<String, DatasetState> datasets = new HashMap<>();
+    private int unsynced;
+    private long lastSync = System.nanoTime();
+
+    private UploadJournal(Path file, boolean resume, int syncEvery, long syncIntervalMillis) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (resume) {
+                channel.truncate(completeLength());
+                read(file);
+            } else {
+                channel.truncate(0);
+            }
+            channel.position(channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.syncEvery = syncEvery;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+    }
+
+    /**
+     * Öffnet ein vorhandenes Protokoll, um einen abgebrochenen Upload fortzusetzen, oder legt ein neues an.
+     */
+    public static UploadJournal open(Path file) throws IOException {
+        return new UploadJournal(file, true, 100, 1000);
+    }
+
+    /**
+     * Beginnt ein neues, leeres Protokoll. Eine vorhandene Datei wird überschrieben.
+     */
+    public static UploadJournal create(Path file) throws IOException {
+        return new UploadJournal(file, false, 100, 1000);
+    }
+
+    static UploadJournal open(Path file, int syncEvery, long syncIntervalMillis) throws IOException {
+        return new UploadJournal(file, true, syncEvery, syncIntervalMillis);
+    }
+
+    /**
+     * Länge der Datei bis einschließlich des letzten Zeilenumbruchs. Dahinter steht höchstens eine beim Absturz
+     * unvollständig geschriebene Zeile.
+     */
+    private long completeLength() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long end = channel.size();
+        while (end > 0) {
+            final long start = Math.max(0, end - buffer.capacity());
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) break;
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    private void read(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                apply(line.split("\t", -1));
+            }
+        }
+    }
+
+    private void apply(String[] fields) {
+        if (fields.length < 3) return;
+        final DatasetState state = datasets.computeIfAbsent(fields[1], uri -> new DatasetState());
+        switch (fields[0]) {
+            case PACKAGE:
+                state.packageId = fields[2];
+                break;
+            case RESOURCE:
+                if (fields.length == 4) {
+                    state.resources.put(fields[2], fields[3]);
+                }
+                break;
+            case COLLECTION:
+                state.collections.add(fields[2]);
+                break;
+            case DONE:
+                state.packageId = fields[2];
+                state.done = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Der bisher protokollierte Stand eines Datasets oder <code>null</code>, wenn es noch nicht begonnen wurde.
+     */
+    public synchronized DatasetState get(String datasetURI) {
+        final DatasetState state = datasets.get(datasetURI);
+        return state == null ? null : state.copy();
+    }
+
+    public synchronized boolean isDone(String datasetURI) {
+        final DatasetState state = datasets.get(datasetURI);
+        return state != null && state.done;
+    }
+
+    public void packageCreated(String datasetURI, String packageId) throws IOException {
+        append(PACKAGE, datasetURI, packageId);
+    }
+
+    /**
+     * @param key der Schlüssel der Distribution, mit dem sie auch nach erneutem Einlesen wiedergefunden wird (ihre
+     *            URL, siehe {@link DcatUploader#getResourceKeys(java.util.List)}); die Reihenfolge der Distributionen
+     *            ist dabei nicht garantiert
+     */
+    public void resourceCreated(String datasetURI, String key, String resourceId) throws IOException {
+        append(RESOURCE, datasetURI, key, resourceId == null ? "" : resourceId);
+    }
+
+    public void collectionLinked(String datasetURI, String collectionName) throws IOException {
+        append(COLLECTION, datasetURI, collectionName);
+    }
+
+    public void completed(String datasetURI, String packageId) throws IOException {
+        append(DONE, datasetURI, packageId);
+    }
+
+    private synchronized void append(String... fields) throws IOException {
+        for (String field : fields) {
+            if (field.indexOf('\t') >= 0 || field.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Journal fields must not contain tabs or line breaks: " + field);
+            }
+        }
+        apply(fields);
+
+        final ByteBuffer buffer = ByteBuffer.wrap((String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        unsynced++;
+        if (unsynced >= syncEvery || System.nanoTime() - lastSync >= syncIntervalNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * Schreibt alle bisherigen Einträge auf den Datenträger.
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0) {
+            channel.force(false);
+            unsynced = 0;
+        }
+        lastSync = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Der protokollierte Stand eines Datasets.
+     */
+    public static class DatasetState {
+        private String packageId;
+        private final Map<String, String> resources = new HashMap<>();
+        private final Set<String> collections = new HashSet<>();
+        private boolean done;
+
+        private DatasetState copy() {
+            final DatasetState copy = new DatasetState();
+            copy.packageId = packageId;
+            copy.resources.putAll(resources);
+            copy.collections.addAll(collections);
+            copy.done = done;
+            return copy;
+        }
+
+        /**
+         * Id des angelegten Packages oder <code>null</code>.
+         */
+        public String getPackageId() {
+            return packageId;
+        }
+
+        /**
+         * Id der Resource je Schlüssel (URL) der Distribution. Bei mit dem Package angelegten Resources ist die Id
+         * leer.
+         */
+        public Map<String, String> getResources() {
+            return Collections.unmodifiableMap(resources);
+        }
+
+        public Set<String> getCollections() {
+            return Collections.unmodifiableSet(collections);
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Lädt Datasets in getrennten Stufen hoch, die über begrenzte Warteschlangen verbunden sind:
+ * <ol>
+ * <li>Extraktion der Datasets (beim Einlesen mit {@link DatasetStreamSplitter} im aufrufenden Thread)</li>
+ * <li>Abbildung auf JSON ({@link DcatMapping})</li>
+ * <li><code>package_create</code></li>
+ * <li><code>resource_create</code> je Distribution; die Resources eines Packages nacheinander in der Reihenfolge der
+ * Distributionen, da CKAN bei gleichzeitigen Aufrufen für dasselbe Package Resources verliert</li>
+ * <li>Einordnung in Collections</li>
+ * </ol>
+ * Jede Stufe hat eine eigene Anzahl Threads. Ist die Warteschlange einer Stufe voll, warten die vorherigen, sodass
+ * nie mehr als <code>queueCapacity</code> Einträge je Stufe im Speicher liegen. So laufen die Schreibzugriffe auf
+ * CKAN, üblicherweise die langsamste Stufe, ständig ausgelastet, während das Abbilden parallel weiterläuft.
+ * <p>
+ * Es gelten die Einstellungen des {@link DcatUploader} (Mapping, eingebettete Resources, Messwerte, Protokoll).
+ * Begonnene Datasets aus einem {@link UploadJournal} werden mit {@link DcatUploader#upload(Resource)} fortgesetzt. Der
+ * Upsert wird nicht unterstützt, dafür ist {@link DcatUploader#uploadAll(Iterable)} zu verwenden.
+ */
+public class UploadPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadPipeline.class);
+    private static final Object POISON = new Object();
+
+    private final DcatUploader uploader;
+
+    @Getter
+    @Setter
+    private int mapWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    @Getter
+    @Setter
+    private int packageWorkers = 4;
+    @Getter
+    @Setter
+    private int resourceWorkers = 4;
+    @Getter
+    @Setter
+    private int linkWorkers = 2;
+    /**
+     * Maximale Anzahl wartender Einträge je Stufe.
+     */
+    @Getter
+    @Setter
+    private int queueCapacity = 100;
+
+    public UploadPipeline(DcatUploader uploader) {
+        this.uploader = uploader;
+    }
+
+    public List<UploadResult> run(Iterable<? extends Resource> datasets) {
+        checkSupported();
+        final Run run = new Run();
+        try {
+            for (Resource dataset : datasets) {
+                run.submit(dataset);
+            }
+        } finally {
+            run.finish();
+        }
+        return run.getResults();
+    }
+
+    /**
+     * Liest einen Katalog als Datenstrom ein und übergibt jedes Dataset der Pipeline, sobald es vollständig gelesen
+     * wurde.
+     */
+    public List<UploadResult> run(InputStream in, Lang lang) {
+        checkSupported();
+        final Run run = new Run();
+        try {
+            RDFParser.source(in).lang(lang).base(DcatUploader.portalBaseURL + "/").parse(new DatasetStreamSplitter(run::submit));
+        } finally {
+            run.finish();
+        }
+        return run.getResults();
+    }
+
+    private void checkSupported() {
+        if (uploader.isUpsert()) {
+            throw new IllegalStateException("The upload pipeline does not support upsert");
+        }
+    }
+
+    /**
+     * Ein Dataset auf dem Weg durch die Pipeline.
+     */
+    private static final class Job {
+        final int index;
+        final Resource dataset;
+        JSONObject json;
+        List<JSONObject> resources;
+        List<String> collections;
+        volatile String packageId;
+
+        Job(int index, Resource dataset) {
+            this.index = index;
+            this.dataset = dataset;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Worker<T> {
+        void process(T item) throws Exception;
+    }
+
+    /**
+     * Eine Stufe mit eigenen Threads und begrenzter Warteschlange. Die Threads laufen erst nach {@link #start()}, damit
+     * eine ungültige Einstellung einer späteren Stufe keine bereits gestarteten Threads zurücklässt.
+     */
+    private static final class Stage<T> {
+        private final BlockingQueue<Object> queue;
+        private final List<Thread> threads = new ArrayList<>();
+
+        Stage(String name, int workers, int capacity, Worker<T> worker) {
+            if (workers < 1) {
+                throw new IllegalArgumentException(name + " workers must be at least 1");
+            }
+            if (capacity < 1) {
+                throw new IllegalArgumentException("queueCapacity must be at least 1");
+            }
+            queue = new ArrayBlockingQueue<>(capacity);
+            final ThreadFactory threadFactory = TaskExecutors.threadFactory("dcat-" + name);
+            for (int i = 0; i < workers; i++) {
+                threads.add(threadFactory.newThread(() -> work(worker)));
+            }
+        }
+
+        void start() {
+            threads.forEach(Thread::start);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work(Worker<T> worker) {
+            try {
+                while (true) {
+                    final Object item = queue.take();
+                    if (item == POISON) {
+                        return;
+                    }
+                    try {
+                        worker.process((T) item);
+                    } catch (Exception e) {
+                        // die Worker behandeln ihre Fehler selbst, hier landen nur unerwartete
+                        log.error("Unexpected error in upload pipeline", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void put(T item) {
+            try {
+                queue.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Upload interrupted", e);
+            }
+        }
+
+        /**
+         * Wartet, bis alle bisher eingereihten Einträge verarbeitet sind, und beendet die Threads.
+         */
+        void finish() {
+            try {
+                for (int i = 0; i < threads.size(); i++) {
+                    queue.put(POISON);
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                threads.forEach(Thread::interrupt);
+                throw new IllegalStateException("Upload interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Ein Durchlauf der Pipeline.
+     */
+    private final class Run {
+        private final CkanAPI ckanAPI = uploader.getCkanAPI();
+        private final DcatMapping mapping = uploader.getMapping();
+        private final PackageValidator validator = uploader.getValidator();
+        private final boolean embedResources = uploader.isEmbedResources();
+        private final CkanMetrics metrics = uploader.getMetrics();
+        private final UploadJournal journal = uploader.getJournal();
+        private final Map<Integer, UploadResult> results = new ConcurrentHashMap<>();
+        private int submitted;
+
+        private final Stage<Job> linkStage = new Stage<>("link", linkWorkers, queueCapacity, this::link);
+        private final Stage<Job> resourceStage = new Stage<>("resource", resourceWorkers, queueCapacity, this::createResources);
+        private final Stage<Job> packageStage = new Stage<>("package", packageWorkers, queueCapacity, this::createPackage);
+        private final Stage<Job> mapStage = new Stage<>("map", mapWorkers, queueCapacity, this::map);
+
+        Run() {
+            linkStage.start();
+            resourceStage.start();
+            packageStage.start();
+            mapStage.start();
+        }
+
+        void submit(Resource dataset) {
+            mapStage.put(new Job(submitted++, dataset));
+        }
+
+        void finish() {
+            mapStage.finish();
+            packageStage.finish();
+            resourceStage.finish();
+            linkStage.finish();
+        }
+
+        List<UploadResult> getResults() {
+            final List<UploadResult> list = new ArrayList<>(submitted);
+            for (int i = 0; i < submitted; i++) {
+                list.add(results.get(i));
+            }
+            return list;
+        }
+
+        private void failed(Job job, Exception e) {
+            log.warn("Upload of {} failed: {}", job.dataset.getURI(), e.getMessage());
+            results.put(job.index, new UploadResult(job.dataset.getURI(), null, e));
+        }
+
+        private void completed(Job job) {
+            try {
+                if (journal != null) {
+                    journal.completed(job.dataset.getURI(), job.packageId);
+                }
+                results.put(job.index, new UploadResult(job.dataset.getURI(), job.packageId, null));
+            } catch (Exception e) {
+                failed(job, e);
+            }
+        }
+
+        private void map(Job job) {
+            final long start = System.nanoTime();
+            try {
+                final UploadJournal.DatasetState state = journal == null ? null : journal.get(job.dataset.getURI());
+                if (state != null && state.isDone()) {
+                    results.put(job.index, new UploadResult(job.dataset.getURI(), state.getPackageId(), null));
+                    return;
+                }
+                if (state == null) {
+                    final DcatMapping.Result mapped = mapping.map(job.dataset);
+                    job.json = mapped.getPackage();
+                    job.json.put("name", uploader.getPackageName(job.dataset));
+                    job.resources = mapped.getResources();
+                    if (validator != null) {
+                        validator.check(job.dataset.getURI(), job.json, job.resources);
+                    }
+                    job.collections = uploader.getCollectionNames(job.dataset);
+                }
+            } catch (Exception e) {
+                failed(job, e);
+                return;
+            }
+            metrics.stageFinished("map", System.nanoTime() - start);
+            packageStage.put(job);
+        }
+
+        private void createPackage(Job job) {
+            final long start = System.nanoTime();
+            try {
+                if (job.json == null) {
+                    // begonnenes Dataset aus dem Protokoll
+                    job.packageId = uploader.upload(job.dataset);
+                    results.put(job.index, new UploadResult(job.dataset.getURI(), job.packageId, null));
+                    return;
+                }
+                if (embedResources) {
+                    job.json.put("resources", new JSONArray(job.resources));
+                }
+                try {
+                    job.packageId = ckanAPI.createPackage(job.json);
+                } catch (RuntimeException e) {
+                    if (journal == null) {
+                        throw e;
+                    }
+                    // Das Package wurde womöglich vor einem Abbruch noch angelegt, aber nicht mehr protokolliert.
+                    job.packageId = uploader.upload(job.dataset);
+                    results.put(job.index, new UploadResult(job.dataset.getURI(), job.packageId, null));
+                    return;
+                }
+                if (journal != null) {
+                    journal.packageCreated(job.dataset.getURI(), job.packageId);
+                }
+            } catch (Exception e) {
+                failed(job, e);
+                return;
+            }
+            metrics.stageFinished("create", System.nanoTime() - start);
+
+            if (embedResources || job.resources.isEmpty()) {
+                forwardToLink(job);
+            } else {
+                resourceStage.put(job);
+            }
+        }
+
+        /**
+         * Legt die Resources eines Packages nacheinander an. <code>resource_create</code> liest in CKAN das Package,
+         * hängt die Resource an und speichert es wieder; gleichzeitige Aufrufe für dasselbe Package überschreiben
+         * sich daher gegenseitig.
+         */
+        private void createResources(Job job) {
+            // wie im DcatUploader einmal je Dataset gemessen
+            final long start = System.nanoTime();
+            try {
+                final List<String> keys = DcatUploader.getResourceKeys(job.resources);
+                for (int i = 0; i < job.resources.size(); i++) {
+                    final JSONObject resource = job.resources.get(i);
+                    resource.put("package_id", job.packageId);
+                    final String resourceId = ckanAPI.createResource(resource);
+                    if (journal != null) {
+                        journal.resourceCreated(job.dataset.getURI(), keys.get(i), resourceId);
+                    }
+                }
+            } catch (Exception e) {
+                failed(job, e);
+                return;
+            }
+            metrics.stageFinished("resources", System.nanoTime() - start);
+            forwardToLink(job);
+        }
+
+        private void forwardToLink(Job job) {
+            if (job.collections.isEmpty()) {
+                completed(job);
+            } else {
+                linkStage.put(job);
+            }
+        }
+
+        private void link(Job job) {
+            final long start = System.nanoTime();
+            try {
+                for (String collectionName : job.collections) {
+                    ckanAPI.putDatasetInCollection(job.packageId, collectionName);
+                    if (journal != null) {
+                        journal.collectionLinked(job.dataset.getURI(), collectionName);
+                    }
+                }
+            } catch (Exception e) {
+                failed(job, e);
+                return;
+            }
+            metrics.stageFinished("collection", System.nanoTime() - start);
+            completed(job);
+        }
+    }
+}
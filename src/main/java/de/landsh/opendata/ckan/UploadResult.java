@@ -0,0 +1,26 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Data;
+
+/**
+ * Ergebnis des Uploads eines einzelnen Datasets bei einem Katalog-Upload.
+ */
+@Data
+public class UploadResult {
+    /**
+     * URI des hochgeladenen dcat:Dataset.
+     */
+    private final String datasetURI;
+    /**
+     * Id des angelegten CKAN Packages oder <code>null</code>, wenn der Upload fehlgeschlagen ist.
+     */
+    private final String packageId;
+    /**
+     * Der aufgetretene Fehler oder <code>null</code>, wenn der Upload erfolgreich war.
+     */
+    private final Exception error;
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -0,0 +1,91 @@
+package de.landsh.opendata.ckan;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variante für Java 21 und neuer: Jede Aufgabe erhält einen eigenen virtuellen Thread. Ein blockierender CKAN
+ * Aufruf belegt so keinen Thread des Betriebssystems. Wie viele Aufgaben gleichzeitig laufen, begrenzt weiterhin
+ * <code>maxThreads</code>, damit z.B. {@link DcatUploader#getParallelism()} das Portal nicht mit beliebig vielen
+ * Aufrufen belastet.
+ */
+final class TaskExecutors {
+
+    private TaskExecutors() {
+    }
+
+    static boolean isVirtual() {
+        return true;
+    }
+
+    static ThreadFactory threadFactory(String name) {
+        return Thread.ofVirtual().name(name + "-", 1).factory();
+    }
+
+    /**
+     * Ein Executor für höchstens <code>maxThreads</code> gleichzeitige Aufgaben. Weitere Aufgaben warten in ihrem
+     * virtuellen Thread auf eine Freigabe.
+     */
+    static ExecutorService newExecutor(String name, int maxThreads) {
+        return new BoundedExecutor(Executors.newThreadPerTaskExecutor(threadFactory(name)), maxThreads);
+    }
+
+    private static final class BoundedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        BoundedExecutor(ExecutorService delegate, int maxThreads) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxThreads);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // shutdownNow() während des Wartens
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActionLogReplayerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CkanAPI ckanAPI = Mockito.mock(CkanAPI.class);
+
+    private static String action(String action, String key, JSONObject data) {
+        return new JSONObject().put("action", action).put("key", key).put("data", data).toString();
+    }
+
+    private Path writeLog(int packages) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        for (int i = 0; i < packages; i++) {
+            lines.add(action("package_create", "p" + i, new JSONObject().put("name", "p" + i)));
+        }
+        for (int i = 0; i < packages; i++) {
+            lines.add(action("resource_create", "p" + i, new JSONObject().put("package_id", "p" + i).put("url", "a")));
+            lines.add(action("resource_create", "p" + i, new JSONObject().put("package_id", "p" + i).put("url", "b")));
+        }
+        final Path file = folder.newFile("actions.ndjson").toPath();
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void record() throws IOException {
+        final StringWriter out = new StringWriter();
+        final CkanAPI recordingAPI = new CkanAPI("https://example.org", new ApiKey("secret"));
+        recordingAPI.record(new RecordingRestClient(out));
+
+        final Model model = ModelFactory.createDefaultModel();
+        model.read(getClass().getResourceAsStream("/dataset.xml"), "https://opendata.schleswig-holstein.de/");
+        final DcatUploader uploader = new DcatUploader(recordingAPI);
+        final String packageId = uploader.upload(model.listSubjectsWithProperty(RDF.type, DCAT.Dataset).nextResource());
+        recordingAPI.close();
+
+        assertEquals("demo", packageId);
+        assertEquals(packageId, recordingAPI.readDataset("demo").getString("id"));
+        final List<String> lines = Arrays.asList(out.toString().split("\n"));
+        assertEquals(2, lines.size());
+        final JSONObject first = new JSONObject(lines.get(0));
+        assertEquals("package_create", first.getString("action"));
+        assertEquals("demo", first.getString("key"));
+        assertEquals("My first dataset", first.getJSONObject("data").getString("title"));
+        final JSONObject second = new JSONObject(lines.get(1));
+        assertEquals("resource_create", second.getString("action"));
+        assertEquals("demo", second.getString("key"));
+        assertEquals("demo", second.getJSONObject("data").getString("package_id"));
+        assertTrue(!out.toString().contains("secret"));
+    }
+
+    /**
+     * Die Clients für das Portal bleiben während des Protokollierens offen und werden danach wieder verwendet.
+     */
+    @Test
+    public void stopRecording() throws IOException {
+        final RestClient portal = Mockito.mock(RestClient.class, Mockito.withSettings().extraInterfaces(Closeable.class));
+        Mockito.when(portal.executeHttpRequest(Mockito.any())).thenReturn(new JSONObject().put("success", true)
+                .put("result", new JSONObject().put("id", "4711").put("name", "portal")));
+        final CkanAPI recordingAPI = new CkanAPI("https://example.org", new ApiKey("secret"));
+        recordingAPI.setRestClient(portal);
+        final StringWriter out = new StringWriter();
+
+        recordingAPI.record(new RecordingRestClient(out));
+        recordingAPI.createPackage(new JSONObject().put("name", "demo").put("title", "Demo"));
+        final JSONObject recorded = recordingAPI.readDataset("demo");
+        recordingAPI.stopRecording();
+
+        assertEquals("demo", recorded.getString("id"));
+        assertTrue(recorded.has("resources"));
+        assertFalse(recorded.has("title"));
+        Mockito.verify((Closeable) portal, Mockito.never()).close();
+        assertEquals("4711", recordingAPI.readDataset("demo").getString("id"));
+        assertEquals(1, out.toString().split("\n").length);
+
+        recordingAPI.record(new RecordingRestClient(out));
+        recordingAPI.close();
+        Mockito.verify((Closeable) portal).close();
+    }
+
+    /**
+     * Dateien lassen sich nicht abspielen und werden daher abgelehnt, ohne etwas zu protokollieren.
+     */
+    @Test
+    public void record_uploadFile() throws Exception {
+        final StringWriter out = new StringWriter();
+        final CkanAPI recordingAPI = new CkanAPI("https://example.org", new ApiKey("secret"));
+        final RecordingRestClient recorder = new RecordingRestClient(out);
+        recordingAPI.record(recorder);
+        final File file = folder.newFile("data.csv");
+
+        try {
+            recordingAPI.uploadFile("demo", file, "data.csv", "CSV", "text/csv");
+            Assert.fail("expected an IOException");
+        } catch (IOException e) {
+            assertEquals("resource_create without a JSON body cannot be recorded", e.getMessage());
+        }
+        try {
+            recordingAPI.findNewestDataset("collection");
+            Assert.fail("expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("No client for reads"));
+        }
+        assertEquals(0, recorder.getRecordedActions());
+        assertEquals("", out.toString());
+    }
+
+    /**
+     * Alle Actions eines Packages kommen in der Reihenfolge des Protokolls an.
+     */
+    @Test
+    public void replay() throws IOException {
+        final Map<String, List<String>> calls = Collections.synchronizedMap(new HashMap<>());
+        Mockito.when(ckanAPI.callAction(Mockito.anyString(), Mockito.any())).thenAnswer(invocation -> {
+            final JSONObject data = invocation.getArgument(1);
+            final String key = data.has("name") ? data.getString("name") : data.getString("package_id");
+            calls.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(invocation.getArgument(0) + ":" + data.optString("url"));
+            return new JSONObject().put("success", true);
+        });
+        final Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+        final ActionLogReplayer replayer = new ActionLogReplayer(ckanAPI);
+        replayer.setParallelism(4);
+        replayer.setQueueCapacity(2);
+        replayer.setCheckpointInterval(5);
+
+        final ReplayResult result = replayer.replay(writeLog(20), checkpoint);
+
+        assertEquals(60, result.getSucceeded());
+        assertEquals(0, result.getFailed());
+        assertEquals(60, result.getCheckpoint());
+        assertEquals("60", new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Arrays.asList("package_create:", "resource_create:a", "resource_create:b"), calls.get("p" + i));
+        }
+
+        // ein erneuter Start setzt hinter dem Checkpoint fort
+        final ReplayResult again = replayer.replay(folder.getRoot().toPath().resolve("actions.ndjson"), checkpoint);
+        assertEquals(0, again.getSucceeded());
+        Mockito.verify(ckanAPI, Mockito.times(60)).callAction(Mockito.anyString(), Mockito.any());
+    }
+
+    @Test
+    public void replay_failure() throws IOException {
+        Mockito.when(ckanAPI.callAction(Mockito.anyString(), Mockito.any())).thenAnswer(invocation -> {
+            final JSONObject data = invocation.getArgument(1);
+            if ("p1".equals(data.optString("name"))) {
+                return new JSONObject().put("success", false).put("error", new JSONObject().put("name", "already in use"));
+            }
+            return new JSONObject().put("success", true);
+        });
+        final Path rejects = folder.getRoot().toPath().resolve("rejects.ndjson");
+        final ActionLogReplayer replayer = new ActionLogReplayer(ckanAPI);
+        replayer.setRejectFile(rejects);
+
+        final ReplayResult result = replayer.replay(writeLog(3), null);
+
+        assertEquals(6, result.getSucceeded());
+        assertEquals(1, result.getFailed());
+        assertEquals(2, result.getSkipped());
+        final List<String> rejected = Files.readAllLines(rejects, StandardCharsets.UTF_8);
+        assertEquals(3, rejected.size());
+        for (String line : rejected) {
+            final JSONObject entry = new JSONObject(line);
+            assertEquals("p1", entry.getString("key"));
+            assertTrue(entry.has("error"));
+        }
+    }
+}
@@ -1,37 +1,63 @@
 package de.landsh.opendata.ckan;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.message.BasicHeader;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class CkanApiTest {
 
     private final ApiKey apiKey = new ApiKey("dummy");
     private final RestClient restClient = Mockito.mock(RestClient.class);
+    private final AsyncRestClient asyncRestClient = Mockito.mock(AsyncRestClient.class);
     private CkanAPI ckanAPI;
 
     private JSONObject datasetNotFound;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setUp() {
         ckanAPI = new CkanAPI("http://localhost", apiKey);
         ckanAPI.setRestClient(restClient);
+        ckanAPI.setAsyncRestClient(asyncRestClient);
 
         datasetNotFound = new JSONObject();
         datasetNotFound.put("success", false);
@@ -57,7 +83,7 @@ public class CkanApiTest {
         JSONObject json = new JSONObject(IOUtils.toString(getClass().getResourceAsStream("/package_show__kindertagesstatten1.json"), StandardCharsets.UTF_8));
 
         final ArgumentCaptor<HttpUriRequest> argument = ArgumentCaptor.forClass(HttpUriRequest.class);
-        Mockito.when(restClient.executeHttpRequest(argument.capture())).thenReturn(json);
+        Mockito.when(restClient.executeHttpRequest(argument.capture(), Mockito.any(JsonSelection.class))).thenReturn(json);
 
         String result = ckanAPI.getCollection("kindertagesstatten1");
         assertEquals("ed667223-6205-43f6-a2da-0acba4d53ddd", result);
@@ -68,7 +94,7 @@ public class CkanApiTest {
         JSONObject json = new JSONObject(IOUtils.toString(getClass().getResourceAsStream("/package_show__dataset_in_collection.json"), StandardCharsets.UTF_8));
 
         final ArgumentCaptor<HttpUriRequest> argument = ArgumentCaptor.forClass(HttpUriRequest.class);
-        Mockito.when(restClient.executeHttpRequest(argument.capture())).thenReturn(json);
+        Mockito.when(restClient.executeHttpRequest(argument.capture(), Mockito.any(JsonSelection.class))).thenReturn(json);
 
         String result = ckanAPI.getCollection("badegewasser-infrastruktur1");
         assertEquals("6f30a595-9210-4f24-8873-b52c72401468", result);
@@ -82,7 +108,7 @@ public class CkanApiTest {
         JSONObject json = new JSONObject(IOUtils.toString(getClass().getResourceAsStream("/package_show__relationship_null.json"), StandardCharsets.UTF_8));
 
         final ArgumentCaptor<HttpUriRequest> argument = ArgumentCaptor.forClass(HttpUriRequest.class);
-        Mockito.when(restClient.executeHttpRequest(argument.capture())).thenReturn(json);
+        Mockito.when(restClient.executeHttpRequest(argument.capture(), Mockito.any(JsonSelection.class))).thenReturn(json);
 
         Assert.assertNull(ckanAPI.getCollection("geschaftsverteilungsplan-melund-stand-15-07-2020"));
     }
@@ -121,6 +147,7 @@ public class CkanApiTest {
         String result = ckanAPI.findNewestDataset("mycollection");
         assertEquals("mydata", result);
         assertEquals(new URI("http://localhost/collection/mycollection/aktuell"), argument.getValue().getURI());
+        Assert.assertFalse(((HttpGet) argument.getValue()).getConfig().isRedirectsEnabled());
     }
 
     @Test
@@ -227,4 +254,319 @@ public class CkanApiTest {
         assertEquals(772,resource.getByteSize());
     }
 
+    @Test
+    public void createPackageAsync() throws Exception {
+        final JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("result", new JSONObject().put("id", "4711"));
+
+        final ArgumentCaptor<HttpUriRequest> argument = ArgumentCaptor.forClass(HttpUriRequest.class);
+        Mockito.when(asyncRestClient.executeHttpRequestAsync(argument.capture(), Mockito.any(JsonSelection.class))).thenReturn(CompletableFuture.completedFuture(response));
+
+        final String result = ckanAPI.createPackageAsync(new JSONObject().put("name", "demo")).get();
+
+        assertEquals("4711", result);
+        assertEquals(new URI("http://localhost/api/3/action/package_create"), argument.getValue().getURI());
+    }
+
+    @Test
+    public void putDatasetInCollectionAsync_noCollection() throws Exception {
+        JSONObject json = new JSONObject(IOUtils.toString(getClass().getResourceAsStream("/package_show__kindertagesstatten1.json"), StandardCharsets.UTF_8));
+        Mockito.when(asyncRestClient.executeHttpRequestAsync(Mockito.any())).thenReturn(CompletableFuture.completedFuture(json));
+
+        try {
+            ckanAPI.putDatasetInCollectionAsync("mydataset", "mycollection").join();
+            Assert.fail();
+        } catch (CompletionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalArgumentException);
+            Assert.assertTrue(expected.getCause().getMessage().contains("is no collection"));
+        }
+
+        // only the two package_show requests, no relationship was created
+        Mockito.verify(asyncRestClient, Mockito.times(2)).executeHttpRequestAsync(Mockito.any());
+    }
+
+    /**
+     * A cached package is read only once and fetched again after it has been updated.
+     */
+    @Test
+    public void readDataset_cached() throws Exception {
+        JSONObject json = new JSONObject(IOUtils.toString(getClass().getResourceAsStream("/package_show__kindertagesstatten1.json"), StandardCharsets.UTF_8));
+        Mockito.when(restClient.executeHttpRequest(Mockito.any())).thenReturn(json);
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(), Mockito.any(JsonSelection.class))).thenReturn(new JSONObject().put("success", true));
+
+        final PackageCache cache = new PackageCache(10, 1, TimeUnit.MINUTES);
+        ckanAPI.setPackageCache(cache);
+
+        assertEquals("f2d024c8-dbcc-4786-837e-d4eca1a23a57", ckanAPI.getOrganization("kindertagesstatten1"));
+        Assert.assertTrue(ckanAPI.changeTitle("kindertagesstatten1", "Neuer Titel"));
+        Mockito.verify(restClient, Mockito.times(1)).executeHttpRequest(Mockito.any());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // the changed title must not leak into the cache and the update removes the package from the cache
+        assertEquals(0, cache.size());
+        Assert.assertNotEquals("Neuer Titel", ckanAPI.readDataset("kindertagesstatten1").getString("title"));
+        Mockito.verify(restClient, Mockito.times(2)).executeHttpRequest(Mockito.any());
+    }
+
+    /**
+     * The checksum is calculated while sending the file and sent after it.
+     */
+    @Test
+    public void uploadFile() throws Exception {
+        final File file = temporaryFolder.newFile("data.csv");
+        FileUtils.writeStringToFile(file, "id;name\n1;Kiel\n2;Lübeck\n", StandardCharsets.UTF_8);
+
+        final ArgumentCaptor<HttpUriRequest> argument = ArgumentCaptor.forClass(HttpUriRequest.class);
+        Mockito.when(restClient.executeHttpRequest(argument.capture(), Mockito.any(JsonSelection.class))).thenReturn(new JSONObject().put("success", true));
+
+        Assert.assertTrue(ckanAPI.uploadFile("mydataset", file, "data.csv", "CSV", "text/csv", ChecksumAlgorithm.SHA256));
+
+        final HttpPost request = (HttpPost) argument.getValue();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.getEntity().writeTo(out);
+        final String body = out.toString(StandardCharsets.UTF_8.name());
+
+        assertEquals(out.size(), request.getEntity().getContentLength());
+        final String expectedChecksum = DigestUtils.sha256Hex(FileUtils.readFileToByteArray(file));
+        Assert.assertTrue(body.contains("1;Kiel"));
+        Assert.assertTrue(body.contains(expectedChecksum));
+        Assert.assertTrue(body.indexOf("1;Kiel") < body.indexOf(expectedChecksum));
+        Assert.assertTrue(body.contains("http://dcat-ap.de/def/hashAlgorithms/sha/256"));
+    }
+
+    @Test
+    public void makePackagesPublic() throws Exception {
+        ckanAPI.setBulkChunkSize(2);
+        final JSONObject searchResult = new JSONObject().put("success", true).put("result", new JSONObject()
+                .put("results", new JSONArray()
+                        .put(new JSONObject().put("id", "id-a").put("name", "a").put("owner_org", "org-1"))
+                        .put(new JSONObject().put("id", "id-b").put("name", "b").put("owner_org", "org-2"))));
+        final JSONObject emptySearchResult = new JSONObject().put("success", true)
+                .put("result", new JSONObject().put("results", new JSONArray()));
+
+        final ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        Mockito.when(restClient.executeHttpRequest(captor.capture(), Mockito.any(JsonSelection.class))).thenAnswer(invocation -> {
+            final HttpUriRequest request = invocation.getArgument(0);
+            final String path = request.getURI().getPath();
+            if (path.endsWith("package_search")) {
+                return request.getURI().getQuery().contains("\"a\"") ? searchResult : emptySearchResult;
+            }
+            return new JSONObject().put("success", true);
+        });
+        Mockito.when(restClient.executeHttpRequest(Mockito.argThat(r -> r != null && r.getURI().getPath().endsWith("package_show"))))
+                .thenReturn(datasetNotFound);
+
+        final List<BulkUpdateResult> results = ckanAPI.makePackagesPublic(Arrays.asList("a", "b", "unknown"));
+
+        assertEquals(3, results.size());
+        assertEquals(new BulkUpdateResult("org-1", Collections.singletonList("id-a"), true, null), results.get(0));
+        assertEquals(new BulkUpdateResult("org-2", Collections.singletonList("id-b"), true, null), results.get(1));
+        assertEquals(null, results.get(2).getOrganizationId());
+        Assert.assertFalse(results.get(2).isSuccess());
+
+        final HttpPost bulkUpdate = (HttpPost) captor.getAllValues().get(2);
+        assertEquals("/api/action/bulk_update_public", bulkUpdate.getURI().getPath());
+        final JSONObject body = new JSONObject(IOUtils.toString(bulkUpdate.getEntity().getContent(), StandardCharsets.UTF_8));
+        assertEquals("org-1", body.getString("org_id"));
+        assertEquals("id-a", body.getJSONArray("datasets").getString(0));
+    }
+
+    @Test
+    public void makePackagesPrivate_knownOrganizations() throws Exception {
+        ckanAPI.setBulkChunkSize(2);
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(HttpUriRequest.class), Mockito.any(JsonSelection.class)))
+                .thenReturn(new JSONObject().put("success", true))
+                .thenReturn(datasetNotFound);
+
+        final List<BulkUpdateResult> results = ckanAPI.makePackagesPrivate(
+                Collections.singletonMap("org-1", Arrays.asList("p1", "p2", "p3")));
+
+        assertEquals(2, results.size());
+        assertEquals(Arrays.asList("p1", "p2"), results.get(0).getPackageIds());
+        Assert.assertTrue(results.get(0).isSuccess());
+        assertEquals(Collections.singletonList("p3"), results.get(1).getPackageIds());
+        Assert.assertFalse(results.get(1).isSuccess());
+        Mockito.verify(restClient, Mockito.times(2)).executeHttpRequest(Mockito.any(HttpUriRequest.class), Mockito.any(JsonSelection.class));
+    }
+
+    /**
+     * Ein fehlgeschlagener Teil bricht die übrigen nicht ab.
+     */
+    @Test
+    public void makePackagesPrivate_failedChunk() throws Exception {
+        ckanAPI.setBulkChunkSize(2);
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(HttpUriRequest.class), Mockito.any(JsonSelection.class)))
+                .thenThrow(new IOException("Connection reset"))
+                .thenReturn(new JSONObject().put("success", true));
+
+        final List<BulkUpdateResult> results = ckanAPI.makePackagesPrivate(
+                Collections.singletonMap("org-1", Arrays.asList("p1", "p2", "p3")));
+
+        assertEquals(2, results.size());
+        Assert.assertFalse(results.get(0).isSuccess());
+        Assert.assertTrue(results.get(0).getError().contains("Connection reset"));
+        Assert.assertTrue(results.get(1).isSuccess());
+    }
+
+    /**
+     * Ein Package ohne Organisation, das erst über package_show gefunden wird, bricht den Aufruf nicht ab.
+     */
+    @Test
+    public void makePackagesPrivate_withoutOrganization() throws Exception {
+        final JSONObject emptySearchResult = new JSONObject().put("success", true)
+                .put("result", new JSONObject().put("results", new JSONArray()));
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(HttpUriRequest.class), Mockito.any(JsonSelection.class)))
+                .thenReturn(emptySearchResult);
+        Mockito.when(restClient.executeHttpRequest(Mockito.argThat(r -> r != null && r.getURI().getPath().endsWith("package_show"))))
+                .thenReturn(new JSONObject().put("success", true).put("result",
+                        new JSONObject().put("id", "id-a").put("name", "a").put("owner_org", JSONObject.NULL)));
+
+        final List<BulkUpdateResult> results = ckanAPI.makePackagesPrivate(Collections.singletonList("a"));
+
+        assertEquals(1, results.size());
+        assertEquals(new BulkUpdateResult(null, Collections.singletonList("id-a"), false, "Package has no organization"), results.get(0));
+    }
+
+    @Test
+    public void buildPortalIndex() throws Exception {
+        final JSONObject page1 = new JSONObject().put("success", true).put("result", new JSONObject().put("count", 3)
+                .put("results", new JSONArray()
+                        .put(new JSONObject().put("id", "id-a").put("name", "a").put("owner_org", "org-1")
+                                .put("metadata_modified", "2021-03-01T10:00:00").put("extras_dcat_fingerprint", "f-a"))
+                        .put(new JSONObject().put("id", "id-b").put("name", "b").put("owner_org", "org-1"))));
+        // CKAN ohne Unterstützung für fl
+        final JSONObject page2 = new JSONObject().put("success", true).put("result", new JSONObject().put("count", 3)
+                .put("results", new JSONArray()
+                        .put(new JSONObject().put("id", "id-c").put("name", "c").put("owner_org", "org-2")
+                                .put("extras", new JSONArray().put(new JSONObject().put("key", "dcat_fingerprint").put("value", "f-c"))))));
+
+        final ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        Mockito.when(restClient.executeHttpRequest(captor.capture(), Mockito.any(JsonSelection.class)))
+                .thenReturn(page1).thenReturn(page2);
+
+        final PortalIndex index = ckanAPI.buildPortalIndex();
+
+        assertEquals(3, index.size());
+        assertEquals(new PortalIndex.Entry("a", "id-a", "org-1", "2021-03-01T10:00:00", "f-a"), index.get("a"));
+        assertEquals("b", index.get("id-b").getName());
+        Assert.assertNull(index.get("b").getFingerprint());
+        assertEquals("f-c", index.get("c").getFingerprint());
+        Assert.assertFalse(index.contains("d"));
+
+        assertEquals(2, captor.getAllValues().size());
+        final String query = captor.getAllValues().get(1).getURI().getQuery();
+        Assert.assertTrue(query.contains("start=2"));
+        Assert.assertTrue(query.contains("fl=id,name,owner_org,metadata_modified,extras_dcat_fingerprint"));
+    }
+
+    /**
+     * Die Organisationen werden seitenweise geladen, das Ergebnis bis zum Ablauf der TTL wiederverwendet.
+     */
+    @Test
+    public void getPortalVocabulary() throws IOException {
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(), Mockito.any(JsonSelection.class))).thenAnswer(invocation -> {
+            final String uri = ((HttpUriRequest) invocation.getArgument(0)).getURI().toString();
+            final JSONArray result = new JSONArray();
+            if (uri.contains("organization_list")) {
+                final int count = uri.contains("offset=0") ? 25 : 1;
+                final int offset = uri.contains("offset=0") ? 0 : 25;
+                for (int i = 0; i < count; i++) {
+                    result.put(new JSONObject().put("id", "id-" + (offset + i)).put("name", "org-" + (offset + i)));
+                }
+            } else if (uri.contains("group_list")) {
+                result.put("tran").put("umwe");
+            } else if (uri.contains("license_list")) {
+                result.put(new JSONObject().put("id", "http://dcat-ap.de/def/licenses/cc-by/4.0").put("title", "CC BY 4.0"));
+            }
+            return new JSONObject().put("success", true).put("result", result);
+        });
+
+        final PortalVocabulary vocabulary = ckanAPI.getPortalVocabulary();
+
+        assertEquals(52, vocabulary.getOrganizations().size());
+        assertTrue(vocabulary.isOrganization("id-25"));
+        assertTrue(vocabulary.isOrganization("org-0"));
+        assertTrue(vocabulary.isGroup("umwe"));
+        assertTrue(vocabulary.isLicense("http://dcat-ap.de/def/licenses/cc-by/4.0"));
+        assertSame(vocabulary, ckanAPI.getPortalVocabulary());
+        // zwei Seiten Organisationen, Gruppen und Lizenzen
+        Mockito.verify(restClient, Mockito.times(4)).executeHttpRequest(Mockito.any(), Mockito.any(JsonSelection.class));
+
+        ckanAPI.setPortalVocabularyTTL(0, TimeUnit.SECONDS);
+        ckanAPI.getPortalVocabulary();
+        Mockito.verify(restClient, Mockito.times(8)).executeHttpRequest(Mockito.any(), Mockito.any(JsonSelection.class));
+    }
+
+    /**
+     * Während das Vokabular geladen wird, warten weitere Aufrufe auf dasselbe Laden; andere Methoden sind nicht
+     * blockiert.
+     */
+    @Test(timeout = 10000)
+    public void getPortalVocabulary_concurrent() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(), Mockito.any(JsonSelection.class))).thenAnswer(invocation -> {
+            final String uri = ((HttpUriRequest) invocation.getArgument(0)).getURI().toString();
+            if (uri.contains("license_list")) {
+                loading.countDown();
+                release.await();
+            }
+            return new JSONObject().put("success", true).put("result", new JSONArray());
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<PortalVocabulary> first = executor.submit(ckanAPI::getPortalVocabulary);
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            final Future<PortalVocabulary> second = executor.submit(ckanAPI::getPortalVocabulary);
+            // wartet nicht auf das laufende Laden
+            ckanAPI.setNewestDatasetTTL(1, TimeUnit.MINUTES);
+            ckanAPI.setPortalVocabularyTTL(10, TimeUnit.MINUTES);
+            release.countDown();
+
+            assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Mockito.verify(restClient, Mockito.times(3)).executeHttpRequest(Mockito.any(), Mockito.any(JsonSelection.class));
+    }
+
+    /**
+     * Wer nach einem abgeschlossenen Schreibzugriff liest, schließt sich keiner Abfrage an, die vorher gestartet
+     * wurde und den alten Stand liefert.
+     */
+    @Test(timeout = 10000)
+    public void readDataset_writeDuringSharedRequest() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(HttpUriRequest.class))).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() == 1) {
+                started.countDown();
+                release.await();
+                return new JSONObject().put("success", true).put("result", new JSONObject().put("title", "old"));
+            }
+            return new JSONObject().put("success", true).put("result", new JSONObject().put("title", "new"));
+        });
+        Mockito.when(restClient.executeHttpRequest(Mockito.any(), Mockito.any(JsonSelection.class)))
+                .thenReturn(new JSONObject().put("success", true));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<JSONObject> before = executor.submit(() -> ckanAPI.readDataset("test"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            ckanAPI.deleteResource("resource-1");
+
+            final Future<JSONObject> after = executor.submit(() -> ckanAPI.readDataset("test"));
+            assertEquals("new", after.get(5, TimeUnit.SECONDS).getString("title"));
+            release.countDown();
+            assertEquals("old", before.get(5, TimeUnit.SECONDS).getString("title"));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals(2, calls.get());
+    }
 }
@@ -0,0 +1,85 @@
+package de.landsh.opendata.ckan;
+
+import de.landsh.opendata.SPDX;
+import de.landsh.opendata.SchemaOrg;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DatasetStreamSplitterTest {
+
+    private static final String PREFIXES = "@prefix dcat: <http://www.w3.org/ns/dcat#> .\n" +
+            "@prefix dct: <http://purl.org/dc/terms/> .\n" +
+            "@prefix spdx: <http://spdx.org/rdf/terms#> .\n" +
+            "@prefix schema: <http://schema.org/> .\n";
+
+    /**
+     * The distribution of the second dataset is described before the dataset itself.
+     */
+    private static final String CATALOG = PREFIXES +
+            "<http://example.org/catalog> a dcat:Catalog ; dcat:dataset <http://example.org/a>, <http://example.org/b> .\n" +
+            "<http://example.org/a> a dcat:Dataset ; dct:title \"A\" ;\n" +
+            "    dcat:distribution [ a dcat:Distribution ; dct:title \"a.csv\" ;\n" +
+            "        spdx:checksum [ spdx:checksumValue \"abc\" ] ] .\n" +
+            "<http://example.org/b-dist> a dcat:Distribution ; dct:title \"b.csv\" .\n" +
+            "<http://example.org/b> a dcat:Dataset ; dct:title \"B\" ; dcat:distribution <http://example.org/b-dist> ;\n" +
+            "    dct:temporal [ schema:startDate \"2020-01-01\" ] .\n";
+
+    private List<Resource> split(String turtle, int window) {
+        final List<Resource> result = new ArrayList<>();
+        RDFParser.fromString(turtle).lang(Lang.TURTLE).parse(new DatasetStreamSplitter(result::add, window, 1000));
+        return result;
+    }
+
+    @Test
+    public void splitIntoDatasets() {
+        final List<Resource> datasets = split(CATALOG, 1);
+
+        assertEquals(2, datasets.size());
+
+        final Resource a = datasets.get(0);
+        assertEquals("http://example.org/a", a.getURI());
+        final Resource distribution = a.getPropertyResourceValue(DCAT.distribution);
+        assertEquals("a.csv", distribution.getProperty(DCTerms.title).getString());
+        assertEquals("abc", distribution.getPropertyResourceValue(SPDX.checksum).getProperty(SPDX.checksumValue).getString());
+        // nothing of the other dataset or the catalog
+        Assert.assertFalse(a.getModel().containsResource(a.getModel().createResource("http://example.org/b")));
+        Assert.assertFalse(a.getModel().contains(null, DCAT.dataset));
+
+        final Resource b = datasets.get(1);
+        assertEquals("http://example.org/b", b.getURI());
+        assertEquals("b.csv", b.getPropertyResourceValue(DCAT.distribution).getProperty(DCTerms.title).getString());
+        Assert.assertTrue(b.getPropertyResourceValue(DCTerms.temporal).hasProperty(SchemaOrg.startDate));
+    }
+
+    /**
+     * Datasets are handed over only once they can no longer change, i.e. not before more than window newer ones
+     * have started.
+     */
+    @Test
+    public void window() {
+        final List<Resource> handed = new ArrayList<>();
+        final DatasetStreamSplitter splitter = new DatasetStreamSplitter(handed::add, 2, 1000);
+        RDFParser.fromString(PREFIXES + "<http://example.org/a> a dcat:Dataset .\n<http://example.org/b> a dcat:Dataset .\n")
+                .lang(Lang.TURTLE).parse(new StreamRDFWrapper(splitter) {
+                    @Override
+                    public void finish() {
+                        // both datasets still fit into the window
+                        assertEquals(0, handed.size());
+                        super.finish();
+                    }
+                });
+
+        assertEquals(2, handed.size());
+    }
+}
@@ -0,0 +1,108 @@
+package de.landsh.opendata.ckan;
+
+import de.landsh.opendata.DCATAPde;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DcatMappingTest {
+
+    private static Resource loadDataset(String resourceName) {
+        final Model model = ModelFactory.createDefaultModel();
+        model.read(DcatMappingTest.class.getResourceAsStream(resourceName), "https://opendata.schleswig-holstein.de/");
+        return model.listSubjectsWithProperty(RDF.type, DCAT.Dataset).nextResource();
+    }
+
+    private static Map<String, String> extras(JSONObject json) {
+        final Map<String, String> result = new HashMap<>();
+        final JSONArray extras = json.getJSONArray("extras");
+        for (Object o : extras) {
+            final JSONObject extra = (JSONObject) o;
+            result.put(extra.getString("key"), extra.getString("value"));
+        }
+        return result;
+    }
+
+    @Test
+    public void map_default() {
+        final DcatMapping.Result result = DcatMapping.DEFAULT.map(loadDataset("/dataset.xml"));
+        final JSONObject json = result.getPackage();
+
+        assertEquals("My first dataset", json.getString("title"));
+        assertEquals("2a6d6241-fdfd-4d9a-9106-8c658be43a27", json.getString("owner_org"));
+        assertEquals("tran", json.getJSONArray("groups").getJSONObject(0).getString("name"));
+        assertEquals(2, json.getJSONArray("tags").length());
+        assertFalse(json.has("name"));
+
+        final Map<String, String> extras = extras(json);
+        assertEquals(8, extras.size());
+        assertEquals("2020-10-11", extras.get("temporal_start"));
+        assertEquals("2020-10-12", extras.get("temporal_end"));
+        assertEquals("http://publications.europa.eu/resource/authority/frequency/DAILY", extras.get("frequency"));
+
+        assertEquals(1, result.getResources().size());
+        final JSONObject resource = result.getResources().get(0);
+        assertEquals("http://example.org/data.csv", resource.getString("url"));
+        assertEquals("CSV", resource.getString("format"));
+        assertEquals("17f9aec62e8398c358b3d3a2deaef2a5", resource.getString("hash"));
+        assertEquals("http://dcat-ap.de/def/hashAlgorithms/md/5", resource.getString("hash_algorithm"));
+        assertFalse(resource.has("package_id"));
+    }
+
+    @Test
+    public void map_customRules() {
+        final Model model = ModelFactory.createDefaultModel();
+        final Resource dataset = model.createResource("http://example.org/dataset")
+                .addProperty(RDF.type, DCAT.Dataset)
+                .addProperty(DCTerms.title, "Title")
+                .addProperty(DCATAPde.contributorID, model.createResource("http://dcat-ap.de/def/contributors/schleswigHolstein"))
+                .addProperty(DCAT.distribution, model.createResource()
+                        .addProperty(DCAT.accessURL, model.createResource("http://example.org/service"))
+                        .addProperty(DCATAPde.plannedAvailability, model.createResource("http://dcat-ap.de/def/plannedAvailability/stable")));
+
+        final DcatMapping mapping = DcatMapping.defaults()
+                .removeDataset(DCTerms.title)
+                .dataset(DCTerms.title, DcatMapping.field("title", String::toUpperCase))
+                .dataset(DCATAPde.contributorID, DcatMapping.extra("contributorID"))
+                .distribution(DCATAPde.plannedAvailability, DcatMapping.extra("plannedAvailability"))
+                .build();
+
+        final DcatMapping.Result result = mapping.map(dataset);
+
+        assertEquals("TITLE", result.getPackage().getString("title"));
+        assertEquals("http://dcat-ap.de/def/contributors/schleswigHolstein", extras(result.getPackage()).get("contributorID"));
+        final JSONObject resource = result.getResources().get(0);
+        assertEquals("http://example.org/service", resource.getString("access_url"));
+        assertEquals("http://dcat-ap.de/def/plannedAvailability/stable", resource.getString("plannedAvailability"));
+    }
+
+    @Test
+    public void map_firstValueWins() {
+        final Model model = ModelFactory.createDefaultModel();
+        final Resource dataset = model.createResource("http://example.org/dataset")
+                .addProperty(DCTerms.issued, "2020-01-01");
+        final DcatMapping mapping = DcatMapping.builder()
+                .dataset(DCTerms.issued, DcatMapping.extra("issued"))
+                .dataset(DCTerms.issued, DcatMapping.extra("issued", value -> "ignored"))
+                .build();
+
+        final Map<String, String> extras = extras(mapping.map(dataset).getPackage());
+
+        assertEquals(1, extras.size());
+        assertEquals("2020-01-01", extras.get("issued"));
+        assertTrue(mapping.map(dataset).getResources().isEmpty());
+    }
+}
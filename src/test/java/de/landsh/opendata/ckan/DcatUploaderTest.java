@@ -2,6 +2,7 @@ package de.landsh.opendata.ckan;
 
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.riot.Lang;
 import org.apache.jena.vocabulary.DCAT;
 import org.apache.jena.vocabulary.DCTerms;
 import org.apache.jena.vocabulary.RDF;
@@ -14,6 +15,12 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
@@ -100,6 +107,267 @@ public class DcatUploaderTest {
 
     }
 
+    /**
+     * The distributions are sent together with the package in a single package_create call.
+     */
+    /**
+     * Ein Dataset mit unbekannter Organisation und Gruppe scheitert, ohne dass CKAN aufgerufen wird.
+     */
+    @Test
+    public void testUpload_invalid() throws IOException {
+        dcatUploader.setValidator(new PackageValidator(new PortalVocabulary(Collections.singleton("other-org"),
+                Collections.singleton("educ"), Collections.singleton("http://dcat-ap.de/def/licenses/cc-by/4.0"))));
+
+        try {
+            dcatUploader.upload(loadDataset("/dataset.xml"));
+            Assert.fail("expected an InvalidPackageException");
+        } catch (InvalidPackageException e) {
+            assertEquals(Arrays.asList("Unknown organization '2a6d6241-fdfd-4d9a-9106-8c658be43a27'",
+                    "Unknown group 'tran'"), e.getProblems());
+        }
+        Mockito.verifyNoInteractions(ckanAPI);
+    }
+
+    @Test
+    public void testUpload_valid() throws IOException {
+        Mockito.when(ckanAPI.createPackage(Mockito.any())).thenReturn("demo");
+        final PackageValidator validator = new PackageValidator(new PortalVocabulary(
+                Collections.singleton("2a6d6241-fdfd-4d9a-9106-8c658be43a27"), new HashSet<>(Arrays.asList("educ", "tran")),
+                Collections.singleton("http://dcat-ap.de/def/licenses/cc-by/4.0")));
+        validator.setFormats(Arrays.asList("csv", "json"));
+        dcatUploader.setValidator(validator);
+
+        assertEquals("demo", dcatUploader.upload(loadDataset("/dataset.xml")));
+    }
+
+    @Test
+    public void testUpload_EmbeddedResources() throws IOException {
+        final ArgumentCaptor<JSONObject> argumentPackage = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.when(ckanAPI.createPackage(argumentPackage.capture())).thenReturn("demo");
+
+        dcatUploader.setEmbedResources(true);
+
+        // invoke method
+        final String packageId = dcatUploader.upload(loadDataset("/dataset.xml"));
+
+        assertEquals("demo", packageId);
+        Mockito.verify(ckanAPI, Mockito.never()).createResource(Mockito.any());
+
+        final JSONArray resources = argumentPackage.getValue().getJSONArray("resources");
+        assertEquals(1, resources.length());
+        final JSONObject jsonResource = resources.getJSONObject(0);
+        Assert.assertFalse(jsonResource.has("package_id"));
+        assertEquals("http://example.org/data.csv", jsonResource.getString("url"));
+        assertEquals("data.csv", jsonResource.getString("name"));
+        assertEquals("17f9aec62e8398c358b3d3a2deaef2a5", jsonResource.getString("hash"));
+    }
+
+    /**
+     * Returns the package as CKAN would return it after an upsert of the dataset.
+     */
+    private JSONObject uploadedPackage(Resource dataset) throws IOException {
+        final ArgumentCaptor<JSONObject> argumentPackage = ArgumentCaptor.forClass(JSONObject.class);
+        final CkanAPI otherCkanAPI = Mockito.mock(CkanAPI.class);
+        Mockito.when(otherCkanAPI.createPackage(argumentPackage.capture())).thenReturn("4711");
+        final ArgumentCaptor<JSONObject> argumentResource = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.when(otherCkanAPI.createResource(argumentResource.capture())).thenReturn("0815");
+
+        final DcatUploader uploader = new DcatUploader(otherCkanAPI);
+        uploader.setUpsert(true);
+        uploader.upload(dataset);
+
+        final JSONObject result = argumentPackage.getValue();
+        result.put("id", "4711");
+        final JSONObject resource = argumentResource.getValue();
+        resource.put("id", "0815");
+        result.put("resources", new JSONArray().put(resource));
+        return result;
+    }
+
+    /**
+     * An unchanged dataset is neither created nor updated.
+     */
+    @Test
+    public void testUpsert_unchanged() throws IOException {
+        final JSONObject existing = uploadedPackage(loadDataset("/dataset.xml"));
+        assertNotNull(getExtrasValue(existing, DcatUploader.FINGERPRINT_KEY));
+        Mockito.when(ckanAPI.readDataset("demo")).thenReturn(existing);
+
+        dcatUploader.setUpsert(true);
+        final String packageId = dcatUploader.upload(loadDataset("/dataset.xml"));
+
+        assertEquals("4711", packageId);
+        Mockito.verify(ckanAPI).readDataset("demo");
+        Mockito.verifyNoMoreInteractions(ckanAPI);
+    }
+
+    @Test
+    public void testUpsert_portalIndex() throws IOException {
+        final JSONObject existing = uploadedPackage(loadDataset("/dataset.xml"));
+        final PortalIndex index = new PortalIndex();
+        index.add("demo", "4711", "2a6d6241-fdfd-4d9a-9106-8c658be43a27", null,
+                getExtrasValue(existing, DcatUploader.FINGERPRINT_KEY));
+
+        dcatUploader.setUpsert(true);
+        dcatUploader.setPortalIndex(index);
+        final String packageId = dcatUploader.upload(loadDataset("/dataset.xml"));
+
+        assertEquals("4711", packageId);
+        Mockito.verifyNoMoreInteractions(ckanAPI);
+    }
+
+    @Test
+    public void testUpsert_portalIndexMissing() throws IOException {
+        Mockito.when(ckanAPI.createPackage(Mockito.any())).thenReturn("4712");
+
+        dcatUploader.setUpsert(true);
+        dcatUploader.setPortalIndex(new PortalIndex());
+        final String packageId = dcatUploader.upload(loadDataset("/dataset.xml"));
+
+        assertEquals("4712", packageId);
+        Mockito.verify(ckanAPI, Mockito.never()).readDataset(Mockito.anyString());
+    }
+
+    /**
+     * A package from an interrupted upload gets its missing resources, a completed dataset is skipped.
+     */
+    @Test
+    public void testUpload_resumeFromJournal() throws IOException {
+        final Path file = Files.createTempFile("upload", ".journal");
+        try (UploadJournal journal = UploadJournal.create(file)) {
+            journal.packageCreated("https://opendata.schleswig-holstein.de/dataset/demo", "4711");
+        }
+        Mockito.when(ckanAPI.readDataset("4711")).thenReturn(new JSONObject().put("id", "4711"));
+        Mockito.when(ckanAPI.createResource(Mockito.any())).thenReturn("0815");
+
+        try (UploadJournal journal = UploadJournal.open(file)) {
+            dcatUploader.setJournal(journal);
+            assertEquals("4711", dcatUploader.upload(loadDataset("/dataset.xml")));
+            assertEquals("4711", dcatUploader.upload(loadDataset("/dataset.xml")));
+        } finally {
+            Files.delete(file);
+        }
+
+        Mockito.verify(ckanAPI, Mockito.never()).createPackage(Mockito.any());
+        Mockito.verify(ckanAPI, Mockito.times(1)).createResource(Mockito.any());
+    }
+
+    /**
+     * Only the changed fields of the package and its resources are sent.
+     */
+    /**
+     * Bereits angelegte Resources werden über ihre URL erkannt, nicht über die Position der Distribution, die sich
+     * beim erneuten Einlesen ändern kann.
+     */
+    @Test
+    public void testUpload_resumeResourcesByURL() throws IOException {
+        final String uri = "https://opendata.schleswig-holstein.de/dataset/demo";
+        final Path file = Files.createTempFile("upload", ".journal");
+        try (UploadJournal journal = UploadJournal.create(file)) {
+            journal.packageCreated(uri, "4711");
+            journal.resourceCreated(uri, "http://example.org/other.csv", "0816");
+        }
+        Mockito.when(ckanAPI.readDataset("4711")).thenReturn(new JSONObject().put("id", "4711"));
+        final ArgumentCaptor<JSONObject> argumentResource = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.when(ckanAPI.createResource(argumentResource.capture())).thenReturn("0815");
+
+        final Resource dataset = loadDataset("/dataset.xml");
+        final Model model = dataset.getModel();
+        dataset.addProperty(DCAT.distribution, model.createResource()
+                .addProperty(RDF.type, DCAT.Distribution)
+                .addProperty(DCAT.downloadURL, model.createResource("http://example.org/other.csv")));
+        try (UploadJournal journal = UploadJournal.open(file)) {
+            dcatUploader.setJournal(journal);
+            assertEquals("4711", dcatUploader.upload(dataset));
+            assertEquals(2, journal.get(uri).getResources().size());
+        } finally {
+            Files.delete(file);
+        }
+
+        Mockito.verify(ckanAPI, Mockito.times(1)).createResource(Mockito.any());
+        assertEquals("http://example.org/data.csv", argumentResource.getValue().getString("url"));
+    }
+
+    /**
+     * Distributionen mit derselben oder ohne URL haben eigene Schlüssel; nach einer bereits angelegten werden die
+     * übrigen nicht übersprungen.
+     */
+    @Test
+    public void testUpload_resumeResourcesSharingURL() throws IOException {
+        final String uri = "https://opendata.schleswig-holstein.de/dataset/demo";
+        final Path file = Files.createTempFile("upload", ".journal");
+        try (UploadJournal journal = UploadJournal.create(file)) {
+            journal.packageCreated(uri, "4711");
+            journal.resourceCreated(uri, "http://example.org/data.csv", "0816");
+        }
+        Mockito.when(ckanAPI.readDataset("4711")).thenReturn(new JSONObject().put("id", "4711"));
+        Mockito.when(ckanAPI.createResource(Mockito.any())).thenReturn("0815");
+
+        final Resource dataset = loadDataset("/dataset.xml");
+        final Model model = dataset.getModel();
+        dataset.addProperty(DCAT.distribution, model.createResource()
+                .addProperty(RDF.type, DCAT.Distribution)
+                .addProperty(DCTerms.title, "copy.csv")
+                .addProperty(DCAT.downloadURL, model.createResource("http://example.org/data.csv")));
+        for (int i = 0; i < 2; i++) {
+            dataset.addProperty(DCAT.distribution, model.createResource()
+                    .addProperty(RDF.type, DCAT.Distribution)
+                    .addProperty(DCTerms.title, "no-url-" + i));
+        }
+        try (UploadJournal journal = UploadJournal.open(file)) {
+            dcatUploader.setJournal(journal);
+            assertEquals("4711", dcatUploader.upload(dataset));
+            assertEquals(4, journal.get(uri).getResources().size());
+        } finally {
+            Files.delete(file);
+        }
+
+        Mockito.verify(ckanAPI, Mockito.times(3)).createResource(Mockito.any());
+    }
+
+    @Test
+    public void getResourceKeys() {
+        assertEquals(Arrays.asList("a", "", "a#2", "#2", "b"), DcatUploader.getResourceKeys(Arrays.asList(
+                new JSONObject().put("url", "a"), new JSONObject(), new JSONObject().put("url", "a"),
+                new JSONObject().put("name", "x"), new JSONObject().put("access_url", "b"))));
+    }
+
+    @Test
+    public void testUpsert_changed() throws IOException {
+        final JSONObject existing = uploadedPackage(loadDataset("/dataset.xml"));
+        Mockito.when(ckanAPI.readDataset("demo")).thenReturn(existing);
+
+        final Resource dataset = loadDataset("/dataset.xml");
+        dataset.removeAll(DCTerms.title).addProperty(DCTerms.title, "My changed dataset");
+        final Resource distribution = dataset.getPropertyResourceValue(DCAT.distribution);
+        distribution.removeAll(DCTerms.title).addProperty(DCTerms.title, "changed.csv");
+
+        final ArgumentCaptor<JSONObject> argumentPatch = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.when(ckanAPI.patchPackage(argumentPatch.capture())).thenReturn(true);
+        final ArgumentCaptor<JSONObject> argumentResourcePatch = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.when(ckanAPI.patchResource(argumentResourcePatch.capture())).thenReturn(true);
+
+        dcatUploader.setUpsert(true);
+        final String packageId = dcatUploader.upload(dataset);
+
+        assertEquals("4711", packageId);
+        Mockito.verify(ckanAPI, Mockito.never()).createPackage(Mockito.any());
+        Mockito.verify(ckanAPI, Mockito.never()).createResource(Mockito.any());
+        Mockito.verify(ckanAPI, Mockito.never()).deleteResource(Mockito.any());
+
+        final JSONObject patch = argumentPatch.getValue();
+        assertEquals("4711", patch.getString("id"));
+        assertEquals("My changed dataset", patch.getString("title"));
+        Assert.assertFalse(patch.has("notes"));
+        Assert.assertNotEquals(getExtrasValue(existing, DcatUploader.FINGERPRINT_KEY), getExtrasValue(patch, DcatUploader.FINGERPRINT_KEY));
+        assertEquals("2020-10-13", getExtrasValue(patch, "issued"));
+
+        final JSONObject resourcePatch = argumentResourcePatch.getValue();
+        assertEquals("0815", resourcePatch.getString("id"));
+        assertEquals("changed.csv", resourcePatch.getString("name"));
+        assertEquals(2, resourcePatch.length());
+    }
+
     /**
      * Verify that the dataset is added to a collection.
      */
@@ -118,6 +386,38 @@ public class DcatUploaderTest {
         Mockito.verify(ckanAPI).putDatasetInCollection(expectedPackageId, "mycollection");
     }
 
+    /**
+     * Werte, die aus der Quelle verschwunden sind, werden geleert; fremde Extras bleiben erhalten. Nur noch nicht
+     * verknüpfte Collections werden verknüpft.
+     */
+    @Test
+    public void testUpsert_removedValues() throws IOException {
+        final Resource dataset = loadDataset("/dataset-with-geometry.xml");
+        dataset.addProperty(DCTerms.isVersionOf, ResourceFactory.createResource("https://opendata.schleswig-holstein.de/dataset/mycollection"));
+        final JSONObject existing = uploadedPackage(dataset);
+        existing.getJSONArray("extras").put(new JSONObject().put("key", "harvest_source").put("value", "manual"));
+        existing.put("relationships_as_object", new JSONArray().put(new JSONObject()
+                .put("subject", "mycollection").put("object", "demo").put("type", "parent_of")));
+        Mockito.when(ckanAPI.readDataset("demo")).thenReturn(existing);
+        final ArgumentCaptor<JSONObject> argumentPatch = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.when(ckanAPI.patchPackage(argumentPatch.capture())).thenReturn(true);
+
+        dataset.removeAll(DCTerms.description).removeAll(DCAT.theme).removeAll(DCTerms.spatial);
+        dataset.addProperty(DCTerms.isVersionOf, ResourceFactory.createResource("https://opendata.schleswig-holstein.de/dataset/othercollection"));
+        dcatUploader.setUpsert(true);
+        dcatUploader.upload(dataset);
+
+        final JSONObject patch = argumentPatch.getValue();
+        assertEquals("", patch.getString("notes"));
+        assertEquals(0, patch.getJSONArray("groups").length());
+        Assert.assertFalse(patch.has("title"));
+        Assert.assertNull(getExtrasValue(patch, "spatial"));
+        assertEquals("manual", getExtrasValue(patch, "harvest_source"));
+        assertEquals("2020-10-11", getExtrasValue(patch, "temporal_start"));
+        Mockito.verify(ckanAPI, Mockito.never()).putDatasetInCollection("4711", "mycollection");
+        Mockito.verify(ckanAPI).putDatasetInCollection("4711", "othercollection");
+    }
+
     /**
      * This dataset has a polygon as spatial extent.
      */
@@ -134,4 +434,59 @@ public class DcatUploaderTest {
 
         assertEquals(geometryInJSON, getExtrasValue(jsonPackage, "spatial"));
     }
+
+    /**
+     * A catalog is read as a stream and each dataset is uploaded with its nested nodes.
+     */
+    @Test
+    public void testUploadStream() throws IOException {
+        final ArgumentCaptor<JSONObject> argumentPackage = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.when(ckanAPI.createPackage(argumentPackage.capture())).thenReturn("demo");
+
+        // invoke method
+        final List<UploadResult> results = dcatUploader.uploadStream(getClass().getResourceAsStream("/dataset-with-geometry.xml"), Lang.RDFXML);
+
+        assertEquals(1, results.size());
+        Assert.assertTrue(results.get(0).isSuccess());
+        assertEquals(geometryInJSON, getExtrasValue(argumentPackage.getValue(), "spatial"));
+        assertEquals("2020-10-11", getExtrasValue(argumentPackage.getValue(), "temporal_start"));
+        Mockito.verify(ckanAPI).createResource(Mockito.any());
+    }
+
+    /**
+     * All datasets of a catalog are uploaded and a failing dataset does not stop the others.
+     */
+    @Test
+    public void testUploadCatalog() throws IOException {
+        final Model model = loadDataset("/dataset.xml").getModel();
+        model.createResource("http://example.org/other-dataset")
+                .addProperty(RDF.type, DCAT.Dataset)
+                .addProperty(DCTerms.title, "Broken dataset");
+
+        Mockito.when(ckanAPI.createPackage(Mockito.any(JSONObject.class))).thenAnswer(invocation -> {
+            final JSONObject json = invocation.getArgument(0);
+            if ("Broken dataset".equals(json.getString("title"))) {
+                throw new IOException("CKAN not reachable");
+            }
+            return "demo";
+        });
+
+        dcatUploader.setParallelism(2);
+
+        // invoke method
+        final List<UploadResult> results = dcatUploader.uploadCatalog(model);
+
+        assertEquals(2, results.size());
+        for (UploadResult result : results) {
+            if ("http://example.org/other-dataset".equals(result.getDatasetURI())) {
+                Assert.assertFalse(result.isSuccess());
+                Assert.assertNull(result.getPackageId());
+                assertEquals("CKAN not reachable", result.getError().getMessage());
+            } else {
+                assertEquals("https://opendata.schleswig-holstein.de/dataset/demo", result.getDatasetURI());
+                Assert.assertTrue(result.isSuccess());
+                assertEquals("demo", result.getPackageId());
+            }
+        }
+    }
 }
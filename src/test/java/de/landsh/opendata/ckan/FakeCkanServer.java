@@ -0,0 +1,534 @@
+package de.landsh.opendata.ckan;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Ein CKAN Portal im Speicher für Tests und Lastmessungen über echtes HTTP. Es kennt nur die Actions, die
+ * {@link CkanAPI} und {@link DcatUploader} verwenden: <code>package_show</code>, <code>package_create</code>,
+ * <code>package_patch</code>, <code>resource_create</code>, <code>package_relationship_create/delete</code>,
+ * <code>bulk_update_private/public</code> und <code>package_search</code> (nur <code>rows</code>, <code>start</code>,
+ * <code>fl</code> und die Werte in Anführungszeichen aus <code>fq</code>). Berechtigungen werden nicht geprüft.
+ * <p>
+ * Jede Antwort kann um {@link #setLatencyMillis(int)} verzögert werden; mit {@link #setFailureRate(double)} liefert
+ * ein Teil der Aufrufe eine HTML Fehlerseite mit {@link #setFailureStatus(int)}, wie sie ein überlasteter Proxy
+ * schickt.
+ * <p>
+ * Antworten werden mit gzip komprimiert, wenn der Client das mit <code>Accept-Encoding</code> anbietet. Komprimierte
+ * Anfragen werden entpackt, sofern {@link #setAcceptGzipRequests(boolean)} das nicht abschaltet; dann antwortet der
+ * Server wie ein CKAN ohne vorgeschalteten Webserver mit "Bad request - JSON Error".
+ * <p>
+ * Lesende Actions laufen parallel, schreibende nacheinander.
+ */
+class FakeCkanServer implements Closeable {
+
+    private static final Pattern QUOTED = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    static {
+        // ohne TCP_NODELAY wartet der Server mit kleinen Antworten auf das ACK des Clients (Nagle), was jeden
+        // Aufruf um bis zu 40 ms verzögert; die Einstellung wird beim ersten HttpServer gelesen
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    /**
+     * Die Packages nach Id, sortiert wie bei <code>sort=id asc</code>.
+     */
+    private final Map<String, JSONObject> packages = new TreeMap<>();
+    private final Map<String, String> names = new HashMap<>();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final Random random = new Random(42);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile int latencyMillis;
+    private volatile double failureRate;
+    private volatile int failureStatus = 503;
+    private volatile boolean acceptGzipRequests = true;
+    private final AtomicLong gzipRequests = new AtomicLong();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    FakeCkanServer() throws IOException {
+        this(16);
+    }
+
+    FakeCkanServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String getBaseURL() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    void setLatencyMillis(int latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Anteil der Aufrufe (0 bis 1), die mit {@link #setFailureStatus(int)} fehlschlagen.
+     */
+    void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    void setFailureStatus(int failureStatus) {
+        this.failureStatus = failureStatus;
+    }
+
+    void setAcceptGzipRequests(boolean acceptGzipRequests) {
+        this.acceptGzipRequests = acceptGzipRequests;
+    }
+
+    /**
+     * Die Anzahl der Aufrufe mit einem gzip komprimierten Inhalt, auch der abgelehnten.
+     */
+    long getGzipRequestCount() {
+        return gzipRequests.get();
+    }
+
+    /**
+     * Die Anzahl der Aufrufe einer Action, auch der fehlgeschlagenen.
+     */
+    long getRequestCount(String action) {
+        final AtomicLong count = requests.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Die höchste Anzahl gleichzeitig bearbeiteter Aufrufe, gemessen während der Verzögerung durch
+     * {@link #setLatencyMillis(int)}. Ohne Verzögerung ist sie 0.
+     */
+    int getMaxActiveRequests() {
+        return maxActiveRequests.get();
+    }
+
+    /**
+     * Die Anzahl der TCP-Verbindungen, über die Aufrufe kamen.
+     */
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    long getRequestCount() {
+        return requests.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    int getPackageCount() {
+        lock.readLock().lock();
+        try {
+            return packages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Eine Kopie des Packages oder <code>null</code>.
+     */
+    JSONObject getPackage(String idOrName) {
+        lock.readLock().lock();
+        try {
+            final JSONObject dataset = find(idOrName);
+            return dataset == null ? null : new JSONObject(dataset.toString());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Legt ein Package direkt an, z.B. eine Collection mit <code>"type": "collection"</code>. Organisationen werden
+     * nicht eigens verwaltet, sondern nur über <code>owner_org</code> referenziert.
+     */
+    JSONObject addPackage(JSONObject dataset) {
+        lock.writeLock().lock();
+        try {
+            return create(new JSONObject(dataset.toString()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        connections.add(exchange.getRemoteAddress());
+        try {
+            final URI uri = exchange.getRequestURI();
+            final String action = uri.getPath().contains("/action/")
+                    ? StringUtils.substringAfterLast(uri.getPath(), "/action/") : "other";
+            requests.computeIfAbsent(action, k -> new AtomicLong()).incrementAndGet();
+
+            final int latency = latencyMillis;
+            if (latency > 0) {
+                maxActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(latency);
+                } finally {
+                    activeRequests.decrementAndGet();
+                }
+            }
+            final boolean fail;
+            synchronized (random) {
+                fail = failureRate > 0 && random.nextDouble() < failureRate;
+            }
+            if (fail) {
+                respond(exchange, failureStatus, "text/html", "<html><body>Service Unavailable</body></html>");
+                return;
+            }
+
+            final Map<String, String> parameters = new HashMap<>();
+            for (NameValuePair pair : URLEncodedUtils.parse(uri, StandardCharsets.UTF_8)) {
+                parameters.put(pair.getName(), pair.getValue());
+            }
+            final JSONObject body;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                body = readBody(exchange);
+                if (body == null) {
+                    respond(exchange, 400, "application/json;charset=utf-8",
+                            error("Bad Request", "Bad request - JSON Error: Could not read request body").toString());
+                    return;
+                }
+            } else {
+                body = new JSONObject();
+            }
+
+            final JSONObject response = dispatch(action, parameters, body);
+            final int status = response.optBoolean("success") ? 200 : statusOf(response.getJSONObject("error"));
+            respond(exchange, status, "application/json;charset=utf-8", response.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "application/json;charset=utf-8", error("Internal Server Error", e.toString()).toString());
+        }
+    }
+
+    /**
+     * Der Inhalt der Anfrage oder <code>null</code>, wenn er kein JSON Dokument ist.
+     */
+    private JSONObject readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            gzipRequests.incrementAndGet();
+            if (acceptGzipRequests) {
+                in = new GZIPInputStream(in);
+            }
+        }
+        try {
+            return new JSONObject(IOUtils.toString(in, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static int statusOf(JSONObject error) {
+        switch (error.optString("__type")) {
+            case "Not Found Error":
+                return 404;
+            case "Validation Error":
+                return 409;
+            default:
+                return 400;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        final String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static JSONObject success(Object result) {
+        return new JSONObject().put("success", true).put("result", result);
+    }
+
+    private static JSONObject error(String type, String message) {
+        return new JSONObject().put("success", false)
+                .put("error", new JSONObject().put("__type", type).put("message", message));
+    }
+
+    private JSONObject dispatch(String action, Map<String, String> parameters, JSONObject body) {
+        final Lock actionLock = "package_show".equals(action) || "package_search".equals(action)
+                ? lock.readLock() : lock.writeLock();
+        actionLock.lock();
+        try {
+            return execute(action, parameters, body);
+        } finally {
+            actionLock.unlock();
+        }
+    }
+
+    private JSONObject execute(String action, Map<String, String> parameters, JSONObject body) {
+        switch (action) {
+            case "package_show":
+                return packageShow(parameters.get("id"));
+            case "package_create":
+                return packageCreate(body);
+            case "package_patch":
+                return packagePatch(body);
+            case "resource_create":
+                return resourceCreate(body);
+            case "package_relationship_create":
+                return relationship(body, true);
+            case "package_relationship_delete":
+                return relationship(body, false);
+            case "bulk_update_private":
+                return bulkUpdate(body, true);
+            case "bulk_update_public":
+                return bulkUpdate(body, false);
+            case "package_search":
+                return packageSearch(parameters);
+            default:
+                return error("Not Found Error", "Unknown action " + action);
+        }
+    }
+
+    private JSONObject find(String idOrName) {
+        if (idOrName == null) return null;
+        final JSONObject dataset = packages.get(idOrName);
+        return dataset != null ? dataset : packages.get(names.get(idOrName));
+    }
+
+    private JSONObject packageShow(String id) {
+        final JSONObject dataset = find(id);
+        return dataset == null ? error("Not Found Error", "Not found") : success(new JSONObject(dataset.toString()));
+    }
+
+    private JSONObject packageCreate(JSONObject body) {
+        final String name = body.optString("name", null);
+        if (StringUtils.isBlank(name)) {
+            return new JSONObject().put("success", false).put("error", new JSONObject()
+                    .put("__type", "Validation Error").put("name", new JSONArray().put("Missing value")));
+        }
+        if (names.containsKey(name)) {
+            return new JSONObject().put("success", false).put("error", new JSONObject()
+                    .put("__type", "Validation Error").put("name", new JSONArray().put("That URL is already in use.")));
+        }
+        return success(new JSONObject(create(body).toString()));
+    }
+
+    private JSONObject create(JSONObject dataset) {
+        final String id = dataset.has("id") ? dataset.getString("id") : UUID.randomUUID().toString();
+        dataset.put("id", id);
+        dataset.put("metadata_modified", Instant.now().toString());
+        if (!dataset.has("type")) {
+            dataset.put("type", "dataset");
+        }
+        if (dataset.has("owner_org")) {
+            dataset.put("organization", new JSONObject().put("id", dataset.getString("owner_org")));
+        }
+        final JSONArray resources = dataset.optJSONArray("resources");
+        if (resources == null) {
+            dataset.put("resources", new JSONArray());
+        } else {
+            for (Object o : resources) {
+                ((JSONObject) o).put("id", UUID.randomUUID().toString()).put("package_id", id);
+            }
+        }
+        dataset.put("relationships_as_subject", new JSONArray());
+        packages.put(id, dataset);
+        names.put(dataset.getString("name"), id);
+        return dataset;
+    }
+
+    private JSONObject packagePatch(JSONObject body) {
+        final JSONObject dataset = find(body.optString("id", null));
+        if (dataset == null) {
+            return error("Not Found Error", "Not found");
+        }
+        for (String key : body.keySet()) {
+            if (!"id".equals(key)) {
+                dataset.put(key, body.get(key));
+            }
+        }
+        dataset.put("metadata_modified", Instant.now().toString());
+        return success(new JSONObject(dataset.toString()));
+    }
+
+    private JSONObject resourceCreate(JSONObject body) {
+        final JSONObject dataset = find(body.optString("package_id", null));
+        if (dataset == null) {
+            return new JSONObject().put("success", false).put("error", new JSONObject()
+                    .put("__type", "Validation Error").put("package_id", new JSONArray().put("Not found: Dataset")));
+        }
+        final JSONObject resource = new JSONObject(body.toString())
+                .put("id", UUID.randomUUID().toString())
+                .put("package_id", dataset.getString("id"));
+        dataset.getJSONArray("resources").put(resource);
+        dataset.put("metadata_modified", Instant.now().toString());
+        return success(new JSONObject(resource.toString()));
+    }
+
+    /**
+     * Legt die Beziehung wie CKAN bei beiden Packages ab, beim Objekt mit umgekehrtem Typ.
+     */
+    private JSONObject relationship(JSONObject body, boolean create) {
+        final JSONObject subject = find(body.optString("subject", null));
+        final JSONObject object = find(body.optString("object", null));
+        if (subject == null || object == null) {
+            return error("Not Found Error", "Not found");
+        }
+        final String type = body.optString("type");
+        final String reverse = "parent_of".equals(type) ? "child_of" : "child_of".equals(type) ? "parent_of" : type;
+        remove(subject, object.getString("id"), type);
+        remove(object, subject.getString("id"), reverse);
+        if (create) {
+            add(subject, object.getString("id"), type);
+            add(object, subject.getString("id"), reverse);
+        }
+        return success(new JSONObject().put("subject", body.optString("subject")).put("object", body.optString("object"))
+                .put("type", type));
+    }
+
+    private static void add(JSONObject dataset, String objectId, String type) {
+        dataset.getJSONArray("relationships_as_subject").put(new JSONObject()
+                .put("subject", dataset.getString("name"))
+                .put("object", objectId)
+                .put("type", type)
+                .put("__extras", new JSONObject()
+                        .put("subject_package_id", dataset.getString("id"))
+                        .put("object_package_id", objectId)));
+    }
+
+    private static void remove(JSONObject dataset, String objectId, String type) {
+        final JSONArray relationships = dataset.getJSONArray("relationships_as_subject");
+        for (int i = relationships.length() - 1; i >= 0; i--) {
+            final JSONObject relationship = relationships.getJSONObject(i);
+            if (objectId.equals(relationship.optString("object")) && type.equals(relationship.optString("type"))) {
+                relationships.remove(i);
+            }
+        }
+    }
+
+    private JSONObject bulkUpdate(JSONObject body, boolean makePrivate) {
+        final String organization = body.optString("org_id", null);
+        final JSONArray datasets = body.optJSONArray("datasets");
+        if (organization == null || datasets == null) {
+            return new JSONObject().put("success", false).put("error", new JSONObject()
+                    .put("__type", "Validation Error").put("message", "Missing org_id or datasets"));
+        }
+        for (Object o : datasets) {
+            final JSONObject dataset = find(o.toString());
+            if (dataset != null && organization.equals(dataset.optString("owner_org"))) {
+                dataset.put("private", makePrivate);
+            }
+        }
+        return success(JSONObject.NULL);
+    }
+
+    private JSONObject packageSearch(Map<String, String> parameters) {
+        final int rows = Integer.parseInt(parameters.getOrDefault("rows", "10"));
+        final int start = Integer.parseInt(parameters.getOrDefault("start", "0"));
+        final String fl = parameters.get("fl");
+        final Set<String> fields = fl == null ? null : new HashSet<>(Arrays.asList(fl.split(",")));
+
+        final Set<String> values = new HashSet<>();
+        final String fq = parameters.get("fq");
+        if (fq != null) {
+            final Matcher matcher = QUOTED.matcher(fq);
+            while (matcher.find()) {
+                values.add(matcher.group(1).replace("\\\"", "\"").replace("\\\\", "\\"));
+            }
+        }
+
+        final List<JSONObject> matches = new ArrayList<>();
+        for (JSONObject dataset : packages.values()) {
+            if (values.isEmpty() || values.contains(dataset.getString("id")) || values.contains(dataset.getString("name"))) {
+                matches.add(dataset);
+            }
+        }
+
+        final JSONArray results = new JSONArray();
+        for (int i = start; i < Math.min(matches.size(), start + rows); i++) {
+            results.put(project(matches.get(i), fields));
+        }
+        return success(new JSONObject().put("count", matches.size()).put("results", results));
+    }
+
+    /**
+     * Liefert nur die Felder aus <code>fl</code>; <code>extras_*</code> wird wie bei Solr aus den Extras gelesen.
+     */
+    private static JSONObject project(JSONObject dataset, Set<String> fields) {
+        if (fields == null) {
+            return new JSONObject(dataset.toString());
+        }
+        final JSONObject result = new JSONObject();
+        for (String field : fields) {
+            if (field.startsWith("extras_")) {
+                final JSONArray extras = dataset.optJSONArray("extras");
+                if (extras == null) continue;
+                for (Object o : extras) {
+                    final JSONObject extra = (JSONObject) o;
+                    if (field.substring("extras_".length()).equals(extra.optString("key"))) {
+                        result.put(field, extra.opt("value"));
+                    }
+                }
+            } else if (dataset.has(field)) {
+                result.put(field, dataset.get(field));
+            }
+        }
+        // entkoppelt die Antwort von Änderungen, die nach dem Freigeben der Sperre erfolgen
+        return new JSONObject(result.toString());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
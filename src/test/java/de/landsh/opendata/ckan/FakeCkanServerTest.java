@@ -0,0 +1,194 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prüft {@link CkanAPI} und {@link DcatUploader} über echtes HTTP gegen den {@link FakeCkanServer}.
+ */
+public class FakeCkanServerTest {
+
+    private FakeCkanServer server;
+    private CkanAPI ckanAPI;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeCkanServer();
+        ckanAPI = new CkanAPI(server.getBaseURL(), new ApiKey("test"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ckanAPI.close();
+        server.close();
+    }
+
+    @Test
+    public void upload() throws IOException {
+        final String collectionId = server.addPackage(new JSONObject().put("name", "mycollection").put("type", "collection")).getString("id");
+        final Model model = ModelFactory.createDefaultModel();
+        model.read(getClass().getResourceAsStream("/dataset.xml"), "https://opendata.schleswig-holstein.de/");
+
+        final String packageId = new DcatUploader(ckanAPI).upload(model.listSubjectsWithProperty(RDF.type, DCAT.Dataset).nextResource());
+
+        final JSONObject dataset = ckanAPI.readDataset("demo");
+        assertEquals(packageId, dataset.getString("id"));
+        assertEquals("My first dataset", dataset.getString("title"));
+        assertEquals(1, dataset.getJSONArray("resources").length());
+        assertNull(ckanAPI.readDataset("unknown"));
+
+        assertTrue(ckanAPI.putDatasetInCollection(packageId, "mycollection"));
+        assertEquals(collectionId, ckanAPI.getCollection(packageId));
+        assertTrue(ckanAPI.removeDatasetFromCollection(packageId, "mycollection"));
+        assertNull(ckanAPI.getCollection(packageId));
+    }
+
+    @Test
+    public void createPackage_nameInUse() throws IOException {
+        ckanAPI.createPackage(new JSONObject().put("name", "twice"));
+        try {
+            ckanAPI.createPackage(new JSONObject().put("name", "twice"));
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("already in use"));
+            return;
+        }
+        throw new AssertionError("expected a validation error");
+    }
+
+    @Test
+    public void bulkUpdateAndIndex() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            server.addPackage(new JSONObject().put("name", "p" + i).put("owner_org", i < 3 ? "org-a" : "org-b"));
+        }
+
+        final List<BulkUpdateResult> results = ckanAPI.makePackagesPrivate(Arrays.asList("p0", "p1", "p4"));
+
+        assertEquals(2, results.size());
+        assertTrue(results.stream().allMatch(BulkUpdateResult::isSuccess));
+        assertTrue(server.getPackage("p1").getBoolean("private"));
+        assertTrue(server.getPackage("p4").getBoolean("private"));
+        assertFalse(server.getPackage("p2").has("private"));
+
+        final List<String> names = new ArrayList<>();
+        ckanAPI.forEachPackage(null, 2, entry -> names.add(entry.getName()));
+        assertEquals(5, names.size());
+        assertEquals(5, ckanAPI.buildPortalIndex().size());
+        // eine Suche für die Organisationen, drei Seiten und eine für den Index
+        assertEquals(5, server.getRequestCount("package_search"));
+    }
+
+    /**
+     * Mit Wiederholungen kommen alle Datasets an, obwohl jeder fünfte Aufruf fehlschlägt. Die Resources werden
+     * im package_create mitgeschickt, da resource_create nicht wiederholt werden darf.
+     */
+    @Test
+    public void failureInjection() throws IOException {
+        server.addPackage(new JSONObject().put("name", "load-collection").put("type", "collection"));
+        server.setFailureRate(0.2);
+        final ResilienceSettings settings = new ResilienceSettings();
+        settings.setMaxAttempts(10);
+        settings.setInitialBackoffMillis(1);
+        settings.setMaxBackoffMillis(5);
+        ckanAPI.enableRetries(settings);
+
+        final DcatUploader uploader = new DcatUploader(ckanAPI);
+        uploader.setEmbedResources(true);
+        final List<UploadResult> results = uploader.uploadAll(LoadGenerator.createDatasets(20, 2));
+
+        assertTrue(results.stream().allMatch(UploadResult::isSuccess));
+        assertEquals(21, server.getPackageCount());
+        assertEquals(2, server.getPackage("load-3").getJSONArray("resources").length());
+        assertEquals(server.getPackage("load-collection").getString("id"), ckanAPI.getCollection("load-10"));
+        assertTrue(server.getRequestCount() > 20);
+    }
+
+    /**
+     * Die übertragenen Bytes werden auch gemessen, wenn die Metriken erst nach den Wiederholungen gesetzt werden,
+     * und nach einem Wechsel der Metriken nur noch an die neuen gemeldet.
+     */
+    @Test
+    public void metrics_afterEnableRetries() throws IOException {
+        ckanAPI.enableRetries(new ResilienceSettings());
+        final InMemoryCkanMetrics first = new InMemoryCkanMetrics();
+        ckanAPI.setMetrics(first);
+
+        ckanAPI.createPackage(new JSONObject().put("name", "metered"));
+        ckanAPI.readDataset("metered");
+
+        assertTrue(first.getCallStats("package_create").getRequestBytes() > 0);
+        assertTrue(first.getCallStats("package_show").getResponseBytes() > 0);
+
+        final long responseBytes = first.getCallStats("package_show").getResponseBytes();
+        final InMemoryCkanMetrics second = new InMemoryCkanMetrics();
+        ckanAPI.setMetrics(second);
+        ckanAPI.readDataset("metered");
+        ckanAPI.setMetrics(CkanMetrics.NOOP);
+        ckanAPI.readDataset("metered");
+
+        assertEquals(responseBytes, first.getCallStats("package_show").getResponseBytes());
+        assertEquals(responseBytes, second.getCallStats("package_show").getResponseBytes());
+    }
+
+    @Test
+    public void requestCompression_auto() throws IOException {
+        ckanAPI.setRequestCompression(RequestCompression.AUTO);
+
+        ckanAPI.createPackage(new JSONObject().put("name", "first"));
+        ckanAPI.createPackage(new JSONObject().put("name", "second"));
+        assertTrue(ckanAPI.createPackageAsync(new JSONObject().put("name", "third")).join().length() > 0);
+
+        assertEquals(3, server.getPackageCount());
+        assertEquals(3, server.getGzipRequestCount());
+        assertEquals(3, server.getRequestCount("package_create"));
+    }
+
+    /**
+     * Ein Portal, das komprimierte Anfragen nicht versteht, bekommt nach der ersten Ablehnung nur noch
+     * unkomprimierte.
+     */
+    @Test
+    public void requestCompression_rejected() throws IOException {
+        server.setAcceptGzipRequests(false);
+        ckanAPI.setRequestCompression(RequestCompression.AUTO);
+
+        ckanAPI.createPackage(new JSONObject().put("name", "first"));
+        ckanAPI.createPackage(new JSONObject().put("name", "second"));
+        assertTrue(ckanAPI.createPackageAsync(new JSONObject().put("name", "third")).join().length() > 0);
+
+        assertEquals(3, server.getPackageCount());
+        assertEquals(1, server.getGzipRequestCount());
+        assertEquals(4, server.getRequestCount("package_create"));
+        assertEquals("first", ckanAPI.readDataset("first").getString("name"));
+    }
+
+    @Test
+    public void loadGenerator() throws IOException {
+        final LoadGenerator generator = new LoadGenerator();
+        generator.setDatasets(50);
+        generator.setParallelism(4);
+
+        final LoadGenerator.Report report = generator.run();
+
+        assertEquals(0, report.getFailedDatasets());
+        // je Dataset package_create und drei resource_create, für jedes zehnte die Collection
+        assertTrue(report.getRequests() >= 200);
+        assertTrue(report.getRequestsPerSecond() > 0);
+        assertTrue(report.getP50Millis() <= report.getP99Millis());
+    }
+}
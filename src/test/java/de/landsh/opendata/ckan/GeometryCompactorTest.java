@@ -0,0 +1,110 @@
+package de.landsh.opendata.ckan;
+
+import de.landsh.opendata.Locn;
+import org.apache.jena.datatypes.BaseDatatype;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class GeometryCompactorTest {
+
+    /**
+     * Ein Rechteck, dessen Kanten aus vielen fast geraden Punkten bestehen.
+     */
+    private static String polygon() {
+        final JSONArray ring = new JSONArray();
+        for (int i = 0; i <= 100; i++) {
+            ring.put(new JSONArray().put(9.0 + i / 100.0).put(54.0 + (i % 2) * 0.000001));
+        }
+        for (int i = 1; i <= 100; i++) {
+            ring.put(new JSONArray().put(10.0).put(54.0 + i / 100.0));
+        }
+        ring.put(new JSONArray().put(9.0).put(55.0));
+        ring.put(new JSONArray().put(9.0).put(54.0));
+        return new JSONObject().put("type", "Polygon").put("coordinates", new JSONArray().put(ring)).toString(2);
+    }
+
+    @Test
+    public void apply_point() {
+        final String result = new GeometryCompactor(3, 0).apply("{ \"type\": \"Point\",  \"coordinates\": [ 9.123456, 54.987654 ] }");
+
+        final JSONObject json = new JSONObject(result);
+        assertEquals(9.123, json.getJSONArray("coordinates").getDouble(0), 0);
+        assertEquals(54.988, json.getJSONArray("coordinates").getDouble(1), 0);
+        assertEquals(-1, result.indexOf(' '));
+    }
+
+    @Test
+    public void apply_simplify() {
+        final GeometryCompactor compactor = new GeometryCompactor(5, 0.0001);
+
+        final JSONArray ring = new JSONObject(compactor.apply(polygon())).getJSONArray("coordinates").getJSONArray(0);
+
+        // die vier Ecken und der schließende Punkt
+        assertEquals(5, ring.length());
+        assertEquals(ring.getJSONArray(0).toString(), ring.getJSONArray(ring.length() - 1).toString());
+        assertEquals("[10,55]", ring.getJSONArray(2).toString());
+    }
+
+    /**
+     * Rundet man alle Punkte zusammen, bleibt der Ring trotzdem gültig.
+     */
+    @Test
+    public void apply_keepsMinimalRing() {
+        final String triangle = "{\"type\":\"Polygon\",\"coordinates\":[[[9.00001,54.00001],[9.00002,54.00001],[9.00001,54.00002],[9.00001,54.00001]]]}";
+
+        final JSONArray ring = new JSONObject(new GeometryCompactor(2, 0).apply(triangle)).getJSONArray("coordinates").getJSONArray(0);
+
+        assertEquals(4, ring.length());
+    }
+
+    @Test
+    public void apply_cached() {
+        final GeometryCompactor compactor = new GeometryCompactor(4, 0.001);
+        final String polygon = polygon();
+
+        final String first = compactor.apply(polygon);
+        final String second = compactor.apply(new String(polygon.toCharArray()));
+
+        assertSame(first, second);
+        assertEquals(1, compactor.getCacheSize());
+    }
+
+    @Test
+    public void apply_invalid() {
+        assertEquals("not json", new GeometryCompactor().apply("not json"));
+    }
+
+    @Test
+    public void distanceSquared() {
+        assertEquals(1.0, GeometryCompactor.distanceSquared(new double[]{1, 1}, new double[]{0, 0}, new double[]{2, 0}), 1e-12);
+        assertEquals(2.0, GeometryCompactor.distanceSquared(new double[]{3, 1}, new double[]{0, 0}, new double[]{2, 0}), 1e-12);
+        assertEquals(2.0, GeometryCompactor.distanceSquared(new double[]{1, 1}, new double[]{0, 0}, new double[]{0, 0}), 1e-12);
+    }
+
+    @Test
+    public void mapping() {
+        final Model model = ModelFactory.createDefaultModel();
+        final Resource dataset = model.createResource("https://opendata.schleswig-holstein.de/dataset/kiel")
+                .addProperty(RDF.type, DCAT.Dataset)
+                .addProperty(DCTerms.spatial, model.createResource()
+                        .addLiteral(Locn.geometry, model.createTypedLiteral(polygon(), new BaseDatatype(DcatMapping.GEOJSON_DATATYPE))));
+        final GeometryCompactor compactor = new GeometryCompactor(5, 0.0001);
+
+        final JSONObject json = DcatMapping.defaults().geometry(compactor).build().map(dataset).getPackage();
+
+        final JSONObject extra = json.getJSONArray("extras").getJSONObject(0);
+        assertEquals("spatial", extra.getString("key"));
+        assertEquals(5, new JSONObject(extra.getString("value")).getJSONArray("coordinates").getJSONArray(0).length());
+        assertEquals(1, compactor.getCacheSize());
+    }
+}
@@ -0,0 +1,84 @@
+package de.landsh.opendata.ckan;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Prüft den Connection-Pool von {@link HttpRestClient#create(ConnectionSettings)} über echtes HTTP gegen den
+ * {@link FakeCkanServer}.
+ */
+public class HttpRestClientTest {
+
+    private FakeCkanServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeCkanServer();
+        for (int i = 0; i < 8; i++) {
+            server.addPackage(new JSONObject().put("name", "pooled-" + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * Gleichzeitige Aufrufe über ein {@link CkanAPI} teilen sich höchstens <code>maxPerRoute</code> Verbindungen.
+     */
+    @Test
+    public void create_sharedPool() throws Exception {
+        final ConnectionSettings settings = new ConnectionSettings();
+        settings.setMaxPerRoute(2);
+        server.setLatencyMillis(100);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (CkanAPI ckanAPI = new CkanAPI(server.getBaseURL(), new ApiKey("test"), settings)) {
+            final List<Future<JSONObject>> results = new ArrayList<>();
+            // verschiedene Packages, da gleichzeitige Abfragen desselben Packages zusammengefasst werden
+            for (int i = 0; i < 8; i++) {
+                final String name = "pooled-" + i;
+                results.add(executor.submit(() -> ckanAPI.readDataset(name)));
+            }
+            for (int i = 0; i < 8; i++) {
+                assertEquals("pooled-" + i, results.get(i).get(10, TimeUnit.SECONDS).getString("name"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(8, server.getRequestCount("package_show"));
+        assertEquals(2, server.getMaxActiveRequests());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    /**
+     * Antwortet der Server nicht innerhalb von <code>timeoutSeconds</code>, bricht der Aufruf ab.
+     */
+    @Test(timeout = 10000)
+    public void create_timeout() throws IOException {
+        final ConnectionSettings settings = new ConnectionSettings();
+        settings.setTimeoutSeconds(1);
+        server.setLatencyMillis(3000);
+        try (CkanAPI ckanAPI = new CkanAPI(server.getBaseURL(), new ApiKey("test"), settings)) {
+            ckanAPI.readDataset("pooled-0");
+            Assert.fail("expected a SocketTimeoutException");
+        } catch (SocketTimeoutException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpPost;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonEntityTest {
+
+    private static JSONObject dataset() {
+        final JSONArray coordinates = new JSONArray();
+        for (int i = 0; i < 1000; i++) {
+            coordinates.put(new JSONArray().put(9.5 + i / 1000.0).put(54.3));
+        }
+        return new JSONObject().put("name", "grüne-flächen")
+                .put("spatial", new JSONObject().put("type", "LineString").put("coordinates", coordinates).toString());
+    }
+
+    @Test
+    public void writeTo_plain() throws IOException {
+        final JsonEntity entity = new JsonEntity(dataset(), false);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        entity.writeTo(out);
+
+        assertNull(entity.getContentEncoding());
+        assertEquals("application/json; charset=UTF-8", entity.getContentType().getValue());
+        assertFalse(entity.isChunked());
+        assertEquals(out.size(), entity.getContentLength());
+        assertEquals("grüne-flächen", new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8)).getString("name"));
+        assertEquals(out.size(), entity.getBytesWritten());
+    }
+
+    /**
+     * Die vorab bestimmte Länge stimmt auch bei Zeichen mit mehreren Bytes in UTF-8.
+     */
+    @Test
+    public void contentLength_multiByte() throws IOException {
+        for (String value : new String[]{"a", "ä", "€", "\uD83D\uDE00", "x\uD83Dy", "\uDE00", "\uD83D"}) {
+            final JsonEntity entity = new JsonEntity(new JSONObject().put("title", value), false);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            entity.writeTo(out);
+            assertEquals(value, out.size(), entity.getContentLength());
+        }
+    }
+
+    @Test
+    public void writeTo_gzip() throws IOException {
+        final JSONObject json = dataset();
+        final JsonEntity entity = new JsonEntity(json, true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        entity.writeTo(out);
+
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+        assertTrue(entity.isChunked());
+        assertEquals(-1, entity.getContentLength());
+        final String content = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), StandardCharsets.UTF_8);
+        assertEquals(json.toString(), content);
+        assertEquals(out.size(), entity.getBytesWritten());
+        assertTrue(out.size() < content.length() / 2);
+    }
+
+    @Test
+    public void repeatable() throws IOException {
+        final JsonEntity entity = new JsonEntity(new JSONObject().put("id", "abc"), false);
+        final HttpPost request = new HttpPost("http://localhost/api/3/action/package_patch");
+        request.setEntity(entity);
+
+        assertEquals(0, CountingEntity.requestBytes(request));
+        assertTrue(entity.isRepeatable());
+        assertFalse(entity.isStreaming());
+        assertEquals("{\"id\":\"abc\"}", IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8));
+        assertEquals("{\"id\":\"abc\"}", IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8));
+        assertEquals(12, CountingEntity.requestBytes(request));
+    }
+}
@@ -0,0 +1,226 @@
+package de.landsh.opendata.ckan;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lädt synthetische Datasets mit dem {@link DcatUploader} über HTTP in einen {@link FakeCkanServer} und misst
+ * Aufrufe je Sekunde, Latenzen der Aufrufe und die Allokationsrate der JVM.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.landsh.opendata.ckan.LoadGenerator \
+ *     -Dexec.args="datasets parallelism latencyMillis failureRate"
+ * </pre>
+ */
+class LoadGenerator {
+
+    @Getter
+    @Setter
+    private int datasets = 500;
+    @Getter
+    @Setter
+    private int distributions = 3;
+    @Getter
+    @Setter
+    private int parallelism = 8;
+    @Getter
+    @Setter
+    private int latencyMillis = 0;
+    @Getter
+    @Setter
+    private double failureRate = 0;
+
+    @Data
+    static class Report {
+        private final int datasets;
+        private final int failedDatasets;
+        private final long requests;
+        private final double seconds;
+        private final double p50Millis;
+        private final double p99Millis;
+        /**
+         * Allokierte Bytes je Sekunde aller Threads oder -1, wenn die JVM das nicht messen kann.
+         */
+        private final double allocatedBytesPerSecond;
+
+        double getRequestsPerSecond() {
+            return requests / seconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d datasets (%d failed), %d requests in %.2f s: %.1f requests/s, "
+                            + "p50 %.2f ms, p99 %.2f ms, %.1f MB/s allocated", datasets, failedDatasets, requests, seconds,
+                    getRequestsPerSecond(), p50Millis, p99Millis, allocatedBytesPerSecond / 1024 / 1024);
+        }
+    }
+
+    /**
+     * Sammelt die Dauer jedes Aufrufs.
+     */
+    private static final class LatencyRecorder implements CkanMetrics {
+        private long[] durations = new long[1024];
+        private int size;
+
+        @Override
+        public synchronized void callFinished(String action, long durationNanos, String outcome) {
+            if (size == durations.length) {
+                durations = Arrays.copyOf(durations, size * 2);
+            }
+            durations[size++] = durationNanos;
+        }
+
+        synchronized double percentileMillis(double percentile) {
+            if (size == 0) return 0;
+            final long[] sorted = Arrays.copyOf(durations, size);
+            Arrays.sort(sorted);
+            final int index = Math.max(0, (int) Math.ceil(percentile * size) - 1);
+            return sorted[index] / 1e6;
+        }
+    }
+
+    /**
+     * Fragt regelmäßig die allokierten Bytes aller Threads ab, da die Werte beendeter Threads verloren gehen.
+     */
+    private static final class AllocationSampler implements Runnable {
+        private final com.sun.management.ThreadMXBean threads;
+        private final Map<Long, Long> baseline = new HashMap<>();
+        private final Map<Long, Long> latest = new HashMap<>();
+        private volatile boolean running = true;
+
+        AllocationSampler() {
+            final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            threads = bean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                    ? (com.sun.management.ThreadMXBean) bean : null;
+            if (threads != null) {
+                sample(baseline);
+            }
+        }
+
+        private synchronized void sample(Map<Long, Long> target) {
+            final long[] ids = threads.getAllThreadIds();
+            final long[] bytes = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    target.put(ids[i], bytes[i]);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample(latest);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        synchronized long stop() {
+            running = false;
+            if (threads == null) return -1;
+            sample(latest);
+            long total = 0;
+            for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+                total += entry.getValue() - baseline.getOrDefault(entry.getKey(), 0L);
+            }
+            return total;
+        }
+    }
+
+    static List<Resource> createDatasets(int count, int distributions) {
+        final Model model = ModelFactory.createDefaultModel();
+        final List<Resource> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Resource dataset = model.createResource("https://opendata.schleswig-holstein.de/dataset/load-" + i)
+                    .addProperty(RDF.type, DCAT.Dataset)
+                    .addProperty(DCTerms.title, "Load test dataset " + i)
+                    .addProperty(DCTerms.description, "Generated by the load generator")
+                    .addProperty(DCTerms.license, model.createResource("http://dcat-ap.de/def/licenses/cc-by/4.0"))
+                    .addProperty(DCTerms.publisher, model.createResource("https://opendata.schleswig-holstein.de/organization/load-test"))
+                    .addProperty(DCAT.keyword, "load");
+            if (i % 10 == 0) {
+                dataset.addProperty(DCTerms.isVersionOf, model.createResource("https://opendata.schleswig-holstein.de/dataset/load-collection"));
+            }
+            for (int j = 0; j < distributions; j++) {
+                dataset.addProperty(DCAT.distribution, model.createResource()
+                        .addProperty(RDF.type, DCAT.Distribution)
+                        .addProperty(DCAT.downloadURL, model.createResource("http://example.org/load-" + i + "/" + j + ".csv"))
+                        .addProperty(DCTerms.title, "data-" + j + ".csv"));
+            }
+            result.add(dataset);
+        }
+        return result;
+    }
+
+    Report run() throws IOException {
+        final List<Resource> input = createDatasets(datasets, distributions);
+        try (FakeCkanServer server = new FakeCkanServer(parallelism * 2)) {
+            server.setLatencyMillis(latencyMillis);
+            server.setFailureRate(failureRate);
+            server.addPackage(new JSONObject().put("name", "load-collection").put("type", "collection"));
+
+            final ConnectionSettings settings = new ConnectionSettings();
+            settings.setMaxPerRoute(parallelism * 2);
+            settings.setMaxTotal(parallelism * 2);
+            final LatencyRecorder latencies = new LatencyRecorder();
+            try (CkanAPI ckanAPI = new CkanAPI(server.getBaseURL(), new ApiKey("load-test"), settings)) {
+                ckanAPI.setMetrics(latencies);
+                if (failureRate > 0) {
+                    final ResilienceSettings resilience = new ResilienceSettings();
+                    resilience.setInitialBackoffMillis(1);
+                    resilience.setMaxBackoffMillis(10);
+                    ckanAPI.enableRetries(resilience);
+                }
+                final DcatUploader uploader = new DcatUploader(ckanAPI);
+                uploader.setParallelism(parallelism);
+                // resource_create wird nicht wiederholt, package_create mit eingebetteten Resources schon
+                uploader.setEmbedResources(failureRate > 0);
+
+                final AllocationSampler allocations = new AllocationSampler();
+                final Thread sampler = new Thread(allocations, "load-allocation-sampler");
+                sampler.setDaemon(true);
+                sampler.start();
+                final long start = System.nanoTime();
+                final List<UploadResult> results = uploader.uploadAll(input);
+                final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+                final long allocated = allocations.stop();
+
+                final int failed = (int) results.stream().filter(it -> !it.isSuccess()).count();
+                return new Report(datasets, failed, server.getRequestCount(), seconds,
+                        latencies.percentileMillis(0.5), latencies.percentileMillis(0.99),
+                        allocated < 0 ? -1 : allocated / seconds);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final LoadGenerator generator = new LoadGenerator();
+        if (args.length > 0) generator.setDatasets(Integer.parseInt(args[0]));
+        if (args.length > 1) generator.setParallelism(Integer.parseInt(args[1]));
+        if (args.length > 2) generator.setLatencyMillis(Integer.parseInt(args[2]));
+        if (args.length > 3) generator.setFailureRate(Double.parseDouble(args[3]));
+        System.out.println(generator.run());
+    }
+}
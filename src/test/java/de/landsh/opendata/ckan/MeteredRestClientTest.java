@@ -0,0 +1,86 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MeteredRestClientTest {
+
+    private final RestClient restClient = Mockito.mock(RestClient.class);
+    private final InMemoryCkanMetrics metrics = new InMemoryCkanMetrics();
+    private final MeteredRestClient meteredRestClient = new MeteredRestClient(restClient, metrics);
+
+    @Test
+    public void actionOf() {
+        assertEquals("package_show", MeteredRestClient.actionOf(new HttpGet("http://localhost/api/3/action/package_show?id=x")));
+        assertEquals("bulk_update_public", MeteredRestClient.actionOf(new HttpPost("http://localhost/api/action/bulk_update_public")));
+        assertEquals("other", MeteredRestClient.actionOf(new HttpGet("http://localhost/collection/x/aktuell")));
+    }
+
+    @Test
+    public void executeHttpRequest_outcomes() throws IOException {
+        final HttpPost request = new HttpPost("http://localhost/api/3/action/package_create");
+        Mockito.when(restClient.executeHttpRequest(request))
+                .thenReturn(new JSONObject().put("success", true))
+                .thenReturn(new JSONObject().put("success", false)
+                        .put("error", new JSONObject().put("__type", "Validation Error")));
+
+        meteredRestClient.executeHttpRequest(request);
+        meteredRestClient.executeHttpRequest(request);
+
+        final InMemoryCkanMetrics.CallStats stats = metrics.getCallStats("package_create");
+        assertEquals(2, stats.getDuration().getCount());
+        assertEquals(0, stats.getInFlight());
+        final Map<String, Long> outcomes = stats.getOutcomes();
+        assertEquals(Long.valueOf(1), outcomes.get(CkanMetrics.SUCCESS));
+        assertEquals(Long.valueOf(1), outcomes.get("Validation Error"));
+    }
+
+    @Test
+    public void executeHttpRequest_invalidResponse() throws IOException {
+        final HttpGet request = new HttpGet("http://localhost/api/3/action/package_show?id=x");
+        final JsonSelection selection = JsonSelection.of("success");
+        Mockito.when(restClient.executeHttpRequest(request, selection))
+                .thenThrow(new InvalidResponseException(503, "<html>"));
+
+        try {
+            meteredRestClient.executeHttpRequest(request, selection);
+            fail();
+        } catch (InvalidResponseException expected) {
+            // expected
+        }
+
+        final InMemoryCkanMetrics.CallStats stats = metrics.getCallStats("package_show");
+        assertEquals(Collections.singletonMap("http_503", 1L), stats.getOutcomes());
+        assertEquals(0, stats.getInFlight());
+    }
+
+    @Test
+    public void prometheusTextFormat() {
+        metrics.callStarted("package_show");
+        metrics.callFinished("package_show", 20_000_000, CkanMetrics.SUCCESS);
+        metrics.bytesTransferred("package_show", 0, 1234);
+        metrics.stageFinished("map", 1_000_000);
+
+        final String text = new PrometheusTextFormat(metrics).toString();
+
+        assertTrue(text.contains("# TYPE ckan_client_request_duration_seconds histogram\n"));
+        assertTrue(text.contains("ckan_client_request_duration_seconds_bucket{action=\"package_show\",le=\"0.01\"} 0\n"));
+        assertTrue(text.contains("ckan_client_request_duration_seconds_bucket{action=\"package_show\",le=\"0.025\"} 1\n"));
+        assertTrue(text.contains("ckan_client_request_duration_seconds_count{action=\"package_show\"} 1\n"));
+        assertTrue(text.contains("ckan_client_requests_total{action=\"package_show\",outcome=\"success\"} 1\n"));
+        assertTrue(text.contains("ckan_client_response_bytes_total{action=\"package_show\"} 1234\n"));
+        assertTrue(text.contains("ckan_client_requests_in_flight{action=\"package_show\"} 0\n"));
+        assertTrue(text.contains("ckan_client_stage_duration_seconds_bucket{stage=\"map\",le=\"0.005\"} 1\n"));
+    }
+}
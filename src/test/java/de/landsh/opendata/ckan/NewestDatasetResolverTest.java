@@ -0,0 +1,69 @@
+package de.landsh.opendata.ckan;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NewestDatasetResolverTest {
+
+    private final AtomicLong ticker = new AtomicLong();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final NewestDatasetResolver resolver = new NewestDatasetResolver(collectionId -> {
+        calls.computeIfAbsent(collectionId, c -> new AtomicInteger()).incrementAndGet();
+        if ("broken".equals(collectionId)) throw new IOException("Connection reset");
+        if ("empty".equals(collectionId)) return null;
+        return collectionId + "-2021";
+    }, Runnable::run, 60, TimeUnit.SECONDS, ticker::get);
+
+    @Test
+    public void resolve() {
+        final Map<String, String> result = resolver.resolve(Arrays.asList("a", "b", "empty", "broken", "a"));
+
+        final Map<String, String> expected = new HashMap<>();
+        expected.put("a", "a-2021");
+        expected.put("b", "b-2021");
+        expected.put("empty", null);
+        assertEquals(expected, result);
+        assertFalse(result.containsKey("broken"));
+        assertEquals(1, calls.get("a").get());
+    }
+
+    @Test
+    public void resolve_cached() throws IOException {
+        resolver.resolve(Arrays.asList("a", "b"));
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        resolver.invalidate("b");
+
+        resolver.resolve(Arrays.asList("a", "b"));
+        assertEquals(1, calls.get("a").get());
+        assertEquals(2, calls.get("b").get());
+
+        ticker.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        assertEquals("a-2021", resolver.resolve("a"));
+        assertEquals(2, calls.get("a").get());
+    }
+
+    @Test
+    public void resolve_single() throws IOException {
+        assertNull(resolver.resolve("empty"));
+        try {
+            resolver.resolve("broken");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("reset"));
+            return;
+        }
+        throw new AssertionError("IOException expected");
+    }
+}
@@ -0,0 +1,96 @@
+package de.landsh.opendata.ckan;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class PackageCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private static JSONObject dataset(String id, String name, String... resourceIds) {
+        final JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("name", name);
+        final JSONArray resources = new JSONArray();
+        for (String resourceId : resourceIds) {
+            resources.put(new JSONObject().put("id", resourceId));
+        }
+        json.put("resources", resources);
+        return json;
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        final PackageCache cache = new PackageCache(2, 1, TimeUnit.MINUTES, now::get);
+        cache.put("a", dataset("1", "a"));
+        cache.put("b", dataset("2", "b"));
+        Assert.assertNotNull(cache.get("a"));
+
+        cache.put("c", dataset("3", "c"));
+
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void entriesExpire() {
+        final PackageCache cache = new PackageCache(10, 1, TimeUnit.SECONDS, now::get);
+        cache.put("a", dataset("1", "a"));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+
+        Assert.assertNull(cache.get("a"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * A package is removed regardless of whether it was cached by name or by id.
+     */
+    @Test
+    public void invalidate() {
+        final PackageCache cache = new PackageCache(10, 1, TimeUnit.MINUTES, now::get);
+        cache.put("kita", dataset("1", "kita", "r1"));
+        cache.put("2", dataset("2", "schulen", "r2"));
+
+        cache.invalidate("1");
+        Assert.assertNull(cache.get("kita"));
+
+        cache.invalidateResource("r2");
+        Assert.assertNull(cache.get("2"));
+    }
+
+    /**
+     * Ein package_show, das vor einer Änderung begonnen hat, legt seinen veralteten Stand nicht ab.
+     */
+    @Test
+    public void staleReadIsNotStored() {
+        final PackageCache cache = new PackageCache(10, 1, TimeUnit.MINUTES, now::get);
+        final long before = cache.generation();
+
+        cache.invalidate("1");
+        cache.put("kita", dataset("1", "kita", "r1"), before);
+        Assert.assertNull(cache.get("kita"));
+
+        final long afterPackage = cache.generation();
+        cache.invalidateResource("r1");
+        cache.put("kita", dataset("1", "kita", "r1"), afterPackage);
+        Assert.assertNull(cache.get("kita"));
+
+        cache.put("kita", dataset("1", "kita", "r1"), cache.generation());
+        assertEquals("1", cache.get("kita").getString("id"));
+        // andere Packages sind nicht betroffen
+        cache.put("schulen", dataset("2", "schulen"), before);
+        assertEquals("2", cache.get("schulen").getString("id"));
+    }
+}
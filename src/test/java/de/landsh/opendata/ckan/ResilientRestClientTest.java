@@ -0,0 +1,171 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResilientRestClientTest {
+
+    private final RestClient restClient = Mockito.mock(RestClient.class);
+    private final List<Long> sleeps = new ArrayList<>();
+    private final ResilienceSettings settings = new ResilienceSettings();
+    private final ResilientRestClient resilientRestClient = new ResilientRestClient(restClient, settings, sleeps::add);
+
+    private static HttpPost post(String action, JSONObject json) {
+        final HttpPost httpPost = new HttpPost("http://localhost/api/3/action/" + action);
+        httpPost.setEntity(new StringEntity(json.toString(), StandardCharsets.UTF_8));
+        return httpPost;
+    }
+
+    @Test
+    public void executeHttpRequest_retriesRead() throws IOException {
+        final HttpGet request = new HttpGet("http://localhost/api/3/action/package_show?id=test");
+        final JSONObject success = new JSONObject().put("success", true);
+        Mockito.when(restClient.executeHttpRequest(request))
+                .thenThrow(new InvalidResponseException(503, "Service Unavailable"))
+                .thenThrow(new SocketTimeoutException("Read timed out"))
+                .thenReturn(success);
+
+        assertSame(success, resilientRestClient.executeHttpRequest(request));
+
+        Mockito.verify(restClient, Mockito.times(3)).executeHttpRequest(request);
+        assertEquals(2, sleeps.size());
+        assertTrue(sleeps.get(0) <= settings.getInitialBackoffMillis());
+        assertTrue(sleeps.get(1) <= 2 * settings.getInitialBackoffMillis());
+        // zweimal Überlast: 4 -> 2 -> 1, dann ein Erfolg: 1 + 1/1
+        assertEquals(2, resilientRestClient.getConcurrencyLimit());
+    }
+
+    @Test
+    public void executeHttpRequest_givesUp() throws IOException {
+        final HttpGet request = new HttpGet("http://localhost/api/3/action/package_show?id=test");
+        Mockito.when(restClient.executeHttpRequest(request)).thenThrow(new InvalidResponseException(502, "Bad Gateway"));
+
+        try {
+            resilientRestClient.executeHttpRequest(request);
+            fail();
+        } catch (InvalidResponseException expected) {
+            assertEquals(502, expected.getStatusCode());
+        }
+
+        Mockito.verify(restClient, Mockito.times(settings.getMaxAttempts())).executeHttpRequest(request);
+    }
+
+    @Test
+    public void executeHttpRequest_noRetryForClientErrors() throws IOException {
+        final HttpGet request = new HttpGet("http://localhost/api/3/action/package_show?id=test");
+        Mockito.when(restClient.executeHttpRequest(request)).thenThrow(new InvalidResponseException(403, "Forbidden"));
+
+        try {
+            resilientRestClient.executeHttpRequest(request);
+            fail();
+        } catch (InvalidResponseException expected) {
+            // expected
+        }
+
+        Mockito.verify(restClient, Mockito.times(1)).executeHttpRequest(request);
+        assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    public void executeHttpRequest_noRetryForResourceCreate() throws IOException {
+        final HttpPost request = post("resource_create", new JSONObject().put("url", "http://example.org/data.csv"));
+        Mockito.when(restClient.executeHttpRequest(request)).thenThrow(new SocketTimeoutException("Read timed out"));
+
+        try {
+            resilientRestClient.executeHttpRequest(request);
+            fail();
+        } catch (SocketTimeoutException expected) {
+            // expected
+        }
+
+        Mockito.verify(restClient, Mockito.times(1)).executeHttpRequest(request);
+    }
+
+    @Test
+    public void executeHttpRequest_packageCreateAlreadyDone() throws IOException {
+        final HttpPost request = post("package_create", new JSONObject().put("name", "my-dataset"));
+        request.addHeader("Authorization", "secret");
+        final JsonSelection selection = JsonSelection.of("success", "error", "result.id");
+        final JSONObject existing = new JSONObject().put("success", true).put("result", new JSONObject().put("id", "4711"));
+
+        final ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        Mockito.when(restClient.executeHttpRequest(captor.capture(), ArgumentMatchers.eq(selection)))
+                .thenThrow(new SocketTimeoutException("Read timed out"))
+                .thenReturn(existing);
+
+        assertSame(existing, resilientRestClient.executeHttpRequest(request, selection));
+
+        final HttpUriRequest packageShow = captor.getAllValues().get(1);
+        assertEquals("http://localhost/api/3/action/package_show?id=my-dataset", packageShow.getURI().toString());
+        assertEquals("secret", packageShow.getFirstHeader("Authorization").getValue());
+        assertTrue(sleeps.isEmpty());
+    }
+
+    /**
+     * Auch bei einer komprimierten Anfrage wird vor der Wiederholung geprüft, ob das Package schon angelegt wurde.
+     */
+    @Test
+    public void executeHttpRequest_packageCreateGzip() throws IOException {
+        final HttpPost request = new HttpPost("http://localhost/api/3/action/package_create");
+        request.setEntity(new JsonEntity(new JSONObject().put("name", "my-dataset"), true));
+        final JSONObject existing = new JSONObject().put("success", true).put("result", new JSONObject().put("id", "4711"));
+
+        final ArgumentCaptor<HttpUriRequest> captor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        Mockito.when(restClient.executeHttpRequest(captor.capture()))
+                .thenThrow(new SocketTimeoutException("Read timed out"))
+                .thenReturn(existing);
+
+        assertSame(existing, resilientRestClient.executeHttpRequest(request));
+        assertEquals("http://localhost/api/3/action/package_show?id=my-dataset", captor.getAllValues().get(1).getURI().toString());
+    }
+
+    @Test
+    public void executeHttpRequest_packageCreateRetried() throws IOException {
+        final HttpPost request = post("package_create", new JSONObject().put("name", "my-dataset"));
+        final JSONObject created = new JSONObject().put("success", true).put("result", new JSONObject().put("id", "4711"));
+        final JSONObject notFound = new JSONObject().put("success", false);
+
+        Mockito.when(restClient.executeHttpRequest(ArgumentMatchers.any(HttpUriRequest.class))).thenAnswer(invocation -> {
+            final HttpUriRequest r = invocation.getArgument(0);
+            if (r.getURI().getPath().endsWith("package_show")) return notFound;
+            if (sleeps.isEmpty()) throw new InvalidResponseException(504, "Gateway Timeout");
+            return created;
+        });
+
+        assertSame(created, resilientRestClient.executeHttpRequest(request));
+        assertEquals(1, sleeps.size());
+    }
+
+    @Test
+    public void adaptiveLimiter() throws IOException {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 3);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(false);
+        }
+        assertEquals(3, limiter.getLimit());
+
+        limiter.acquire();
+        limiter.release(true);
+        assertEquals(1, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+}
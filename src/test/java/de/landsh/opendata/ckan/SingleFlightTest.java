@@ -0,0 +1,81 @@
+package de.landsh.opendata.ckan;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, StringBuilder> singleFlight = new SingleFlight<>();
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Concurrent calls for the same key share one load and each waiting caller gets its own copy.
+     */
+    @Test
+    public void concurrentCallsShareOneLoad() throws Exception {
+        final int threads = 5;
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<StringBuilder>> results = new ArrayList<>();
+            results.add(executor.submit(() -> singleFlight.execute("collection", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                awaitUninterruptibly(release);
+                return new StringBuilder("result");
+            }, StringBuilder::new)));
+            loading.await();
+
+            for (int i = 1; i < threads; i++) {
+                results.add(executor.submit(() -> singleFlight.execute("collection", () -> {
+                    loads.incrementAndGet();
+                    return new StringBuilder("unexpected");
+                }, StringBuilder::new)));
+            }
+            while (singleFlight.getSharedCount() < threads - 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            final StringBuilder first = results.get(0).get();
+            for (Future<StringBuilder> result : results) {
+                assertEquals("result", result.get().toString());
+            }
+            Assert.assertNotSame(first, results.get(1).get());
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the next call loads again
+        assertEquals("again", singleFlight.execute("collection", () -> new StringBuilder("again"), StringBuilder::new).toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void failureIsPropagated() throws IOException {
+        singleFlight.execute("collection", () -> {
+            throw new IOException("not reachable");
+        }, StringBuilder::new);
+    }
+}
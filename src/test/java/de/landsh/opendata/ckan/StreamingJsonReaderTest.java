@@ -0,0 +1,95 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamingJsonReaderTest {
+
+    private static final String RESOURCE = "/package_show__kindertagesstatten1.json";
+
+    private InputStream open() {
+        return getClass().getResourceAsStream(RESOURCE);
+    }
+
+    /**
+     * Without a selection, the result is the same as parsing the whole document with org.json.
+     */
+    @Test
+    public void readAll() throws IOException {
+        final JSONObject expected = new JSONObject(IOUtils.toString(open(), StandardCharsets.UTF_8));
+
+        final JSONObject result = StreamingJsonReader.read(open(), JsonSelection.ALL);
+
+        Assert.assertTrue(expected.similar(result));
+    }
+
+    @Test
+    public void readSelection() throws IOException {
+        final JSONObject expected = new JSONObject(IOUtils.toString(open(), StandardCharsets.UTF_8));
+
+        final JSONObject result = StreamingJsonReader.read(open(),
+                JsonSelection.of("success", "result.id", "result.resources[*].url", "result.relationships_as_subject"));
+
+        Assert.assertTrue(result.getBoolean("success"));
+        assertEquals(2, result.length());
+        final JSONObject dataset = result.getJSONObject("result");
+        assertEquals(3, dataset.length());
+        assertEquals(expected.getJSONObject("result").getString("id"), dataset.getString("id"));
+        assertEquals("http://185.223.104.6/data/sozmin/kita_2019-09-18.csv",
+                dataset.getJSONArray("resources").getJSONObject(0).getString("url"));
+        assertEquals(1, dataset.getJSONArray("resources").getJSONObject(0).length());
+        Assert.assertTrue(expected.getJSONObject("result").getJSONArray("relationships_as_subject")
+                .similar(dataset.getJSONArray("relationships_as_subject")));
+    }
+
+    /**
+     * Selecting in memory gives the same result as selecting while streaming.
+     */
+    @Test
+    public void applySelection() throws IOException {
+        final JsonSelection selection = JsonSelection.of("success", "result.name", "result.resources.id");
+        final JSONObject full = new JSONObject(IOUtils.toString(open(), StandardCharsets.UTF_8));
+
+        Assert.assertTrue(selection.apply(full).similar(StreamingJsonReader.read(open(), selection)));
+    }
+
+    /**
+     * A HTML error page results in an exception with a limited excerpt of the response.
+     */
+    @Test
+    public void invalidResponse() throws IOException {
+        final String html = "<html><body>" + StringUtils.repeat("Bad Gateway ", 1000) + "</body></html>";
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 502, "Bad Gateway");
+        response.setEntity(new StringEntity(html, StandardCharsets.UTF_8));
+
+        try {
+            StreamingJsonReader.read(response, JsonSelection.ALL);
+            Assert.fail();
+        } catch (InvalidResponseException expected) {
+            assertEquals(502, expected.getStatusCode());
+            assertEquals(StreamingJsonReader.MAX_EXCERPT_LENGTH, expected.getExcerpt().length());
+            Assert.assertTrue(expected.getMessage().startsWith("Invalid response from CKAN server: <html>"));
+        }
+    }
+
+    @Test(expected = InvalidResponseException.class)
+    public void emptyResponse() throws IOException {
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new org.apache.http.entity.InputStreamEntity(new ByteArrayInputStream(new byte[0])));
+        StreamingJsonReader.read(response, JsonSelection.ALL);
+    }
+}
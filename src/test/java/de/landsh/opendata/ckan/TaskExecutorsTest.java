@@ -0,0 +1,96 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TaskExecutorsTest {
+
+    private static final String VERSIONS_21 = "META-INF/versions/21/";
+
+    /**
+     * Führt 20 Aufgaben aus und prüft, dass nie mehr als <code>maxThreads</code> gleichzeitig laufen.
+     */
+    private static void assertBounded(ExecutorService executor, int maxThreads) throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue("at most " + maxThreads + " but " + maxRunning.get(), maxRunning.get() <= maxThreads);
+        assertEquals(0, running.get());
+    }
+
+    @Test
+    public void newExecutor() throws InterruptedException {
+        assertBounded(TaskExecutors.newExecutor("test", 3), 3);
+    }
+
+    /**
+     * Die Variante aus <code>META-INF/versions/21</code> wird beim Test aus dem Verzeichnis nicht automatisch
+     * geladen, daher lädt sie ein eigener ClassLoader. Ohne Java 21 oder das Profil <code>java21</code> wird der
+     * Test übersprungen.
+     */
+    @Test
+    public void newExecutor_java21() throws Exception {
+        final ClassLoader parent = TaskExecutorsTest.class.getClassLoader();
+        Assume.assumeNotNull(parent.getResource(VERSIONS_21 + TaskExecutors.class.getName().replace('.', '/') + ".class"));
+
+        final ClassLoader loader = new ClassLoader(parent) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (!name.startsWith(TaskExecutors.class.getName())) {
+                    return super.loadClass(name, resolve);
+                }
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> result = findLoadedClass(name);
+                    if (result == null) {
+                        try (InputStream in = parent.getResourceAsStream(VERSIONS_21 + name.replace('.', '/') + ".class")) {
+                            if (in == null) {
+                                throw new ClassNotFoundException(name);
+                            }
+                            final byte[] bytes = IOUtils.toByteArray(in);
+                            result = defineClass(name, bytes, 0, bytes.length);
+                        } catch (IOException e) {
+                            throw new ClassNotFoundException(name, e);
+                        }
+                    }
+                    return result;
+                }
+            }
+        };
+        final Class<?> variant = loader.loadClass(TaskExecutors.class.getName());
+        final Method isVirtual = variant.getDeclaredMethod("isVirtual");
+        final Method newExecutor = variant.getDeclaredMethod("newExecutor", String.class, int.class);
+        isVirtual.setAccessible(true);
+        newExecutor.setAccessible(true);
+
+        assertTrue((Boolean) isVirtual.invoke(null));
+        assertBounded((ExecutorService) newExecutor.invoke(null, "test", 3), 3);
+    }
+}
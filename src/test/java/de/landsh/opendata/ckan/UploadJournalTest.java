@@ -0,0 +1,81 @@
+package de.landsh.opendata.ckan;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UploadJournalTest {
+
+    private static final String URI = "http://example.org/dataset/1";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void resume() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("upload.journal");
+        try (UploadJournal journal = UploadJournal.create(file)) {
+            journal.packageCreated(URI, "4711");
+            journal.resourceCreated(URI, "http://example.org/data.csv", "0815");
+            journal.collectionLinked(URI, "my-collection");
+            journal.completed("http://example.org/dataset/2", "4712");
+        }
+
+        try (UploadJournal journal = UploadJournal.open(file)) {
+            final UploadJournal.DatasetState state = journal.get(URI);
+            assertEquals("4711", state.getPackageId());
+            assertEquals(Collections.singletonMap("http://example.org/data.csv", "0815"), state.getResources());
+            assertEquals(Collections.singleton("my-collection"), state.getCollections());
+            assertFalse(state.isDone());
+            assertTrue(journal.isDone("http://example.org/dataset/2"));
+            assertNull(journal.get("http://example.org/dataset/3"));
+
+            journal.completed(URI, "4711");
+        }
+
+        try (UploadJournal journal = UploadJournal.open(file)) {
+            assertTrue(journal.isDone(URI));
+        }
+    }
+
+    @Test
+    public void open_incompleteLastLine() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("upload.journal");
+        try (UploadJournal journal = UploadJournal.create(file)) {
+            journal.packageCreated(URI, "4711");
+        }
+        Files.write(file, "R\thttp://example.org/dataset/1\t0\t08".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (UploadJournal journal = UploadJournal.open(file, 1, 0)) {
+            assertTrue(journal.get(URI).getResources().isEmpty());
+            journal.resourceCreated(URI, "http://example.org/data.csv", "0815");
+        }
+
+        assertEquals("P\thttp://example.org/dataset/1\t4711\nR\thttp://example.org/dataset/1\thttp://example.org/data.csv\t0815\n",
+                new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void create_overwrites() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("upload.journal");
+        try (UploadJournal journal = UploadJournal.create(file)) {
+            journal.completed(URI, "4711");
+        }
+        try (UploadJournal journal = UploadJournal.create(file)) {
+            assertNull(journal.get(URI));
+        }
+        assertEquals(0, Files.size(file));
+    }
+}
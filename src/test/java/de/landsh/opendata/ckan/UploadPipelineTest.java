@@ -0,0 +1,185 @@
+package de.landsh.opendata.ckan;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.vocabulary.DCAT;
+import org.apache.jena.vocabulary.DCTerms;
+import org.apache.jena.vocabulary.RDF;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UploadPipelineTest {
+
+    private final CkanAPI ckanAPI = Mockito.mock(CkanAPI.class);
+    private DcatUploader dcatUploader;
+    private UploadPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        dcatUploader = new DcatUploader(ckanAPI);
+        pipeline = new UploadPipeline(dcatUploader);
+        pipeline.setQueueCapacity(2);
+    }
+
+    private static List<Resource> createDatasets(int count) {
+        final Model model = ModelFactory.createDefaultModel();
+        final List<Resource> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Resource dataset = model.createResource("https://opendata.schleswig-holstein.de/dataset/ds" + i)
+                    .addProperty(RDF.type, DCAT.Dataset)
+                    .addProperty(DCTerms.title, "Dataset " + i)
+                    .addProperty(DCTerms.isVersionOf, ResourceFactory.createResource("https://opendata.schleswig-holstein.de/dataset/collection"));
+            for (int j = 0; j < 2; j++) {
+                dataset.addProperty(DCAT.distribution, model.createResource()
+                        .addProperty(RDF.type, DCAT.Distribution)
+                        .addProperty(DCAT.downloadURL, ResourceFactory.createResource("http://example.org/ds" + i + "/" + j)));
+            }
+            result.add(dataset);
+        }
+        return result;
+    }
+
+    @Test
+    public void run() throws IOException {
+        final AtomicInteger ids = new AtomicInteger();
+        Mockito.when(ckanAPI.createPackage(Mockito.any())).thenAnswer(invocation ->
+                "id-" + ((JSONObject) invocation.getArgument(0)).getString("name"));
+        Mockito.when(ckanAPI.createResource(Mockito.any())).thenAnswer(invocation -> "resource-" + ids.incrementAndGet());
+
+        final List<UploadResult> results = pipeline.run(createDatasets(20));
+
+        assertEquals(20, results.size());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(results.get(i).isSuccess());
+            assertEquals("https://opendata.schleswig-holstein.de/dataset/ds" + i, results.get(i).getDatasetURI());
+            assertEquals("id-ds" + i, results.get(i).getPackageId());
+            Mockito.verify(ckanAPI).putDatasetInCollection("id-ds" + i, "collection");
+        }
+        Mockito.verify(ckanAPI, Mockito.times(20)).createPackage(Mockito.any());
+        Mockito.verify(ckanAPI, Mockito.times(40)).createResource(Mockito.argThat(json -> json.getString("package_id").startsWith("id-ds")));
+    }
+
+    /**
+     * Ein fehlgeschlagenes Dataset wird im Ergebnis vermerkt und nicht weitergereicht, die übrigen laufen durch.
+     */
+    @Test
+    public void run_failure() throws IOException {
+        Mockito.when(ckanAPI.createPackage(Mockito.any())).thenAnswer(invocation -> {
+            final String name = ((JSONObject) invocation.getArgument(0)).getString("name");
+            if ("ds1".equals(name)) {
+                throw new IllegalArgumentException("broken");
+            }
+            return "id-" + name;
+        });
+        Mockito.when(ckanAPI.createResource(Mockito.any())).thenReturn("resource");
+
+        final List<UploadResult> results = pipeline.run(createDatasets(3));
+
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertNull(results.get(1).getPackageId());
+        assertEquals("broken", results.get(1).getError().getMessage());
+        assertTrue(results.get(2).isSuccess());
+        Mockito.verify(ckanAPI, Mockito.never()).putDatasetInCollection(Mockito.eq("id-ds1"), Mockito.any());
+        Mockito.verify(ckanAPI, Mockito.times(4)).createResource(Mockito.any());
+    }
+
+    /**
+     * Die Resources eines Packages werden nacheinander in der Reihenfolge der Distributionen angelegt, auch wenn
+     * mehrere Resource-Worker laufen.
+     */
+    @Test
+    public void run_resourceOrder() throws IOException {
+        final Map<String, List<String>> created = new ConcurrentHashMap<>();
+        Mockito.when(ckanAPI.createPackage(Mockito.any())).thenAnswer(invocation ->
+                "id-" + ((JSONObject) invocation.getArgument(0)).getString("name"));
+        Mockito.when(ckanAPI.createResource(Mockito.any())).thenAnswer(invocation -> {
+            final JSONObject resource = invocation.getArgument(0);
+            final List<String> urls = created.computeIfAbsent(resource.getString("package_id"), k -> new CopyOnWriteArrayList<>());
+            urls.add(resource.getString("url"));
+            Thread.sleep(urls.size() % 2 == 0 ? 1 : 5);
+            return "resource";
+        });
+
+        final List<Resource> datasets = createDatasets(5);
+        pipeline.run(datasets);
+
+        for (int i = 0; i < 5; i++) {
+            final List<String> expected = new ArrayList<>();
+            for (JSONObject resource : dcatUploader.getMapping().map(datasets.get(i)).getResources()) {
+                expected.add(resource.getString("url"));
+            }
+            assertEquals(expected, created.get("id-ds" + i));
+        }
+    }
+
+    /**
+     * Die Dauer der Resources wird wie im DcatUploader einmal je Dataset gemessen.
+     */
+    @Test
+    public void run_resourcesMetric() throws IOException {
+        final InMemoryCkanMetrics metrics = new InMemoryCkanMetrics();
+        dcatUploader.setMetrics(metrics);
+        Mockito.when(ckanAPI.createPackage(Mockito.any())).thenReturn("4711");
+        Mockito.when(ckanAPI.createResource(Mockito.any())).thenReturn("0815");
+
+        pipeline.run(createDatasets(3));
+
+        assertEquals(3, metrics.getStage("resources").getCount());
+    }
+
+    /**
+     * Eine ungültige Einstellung einer Stufe lässt keine Threads der übrigen Stufen zurück.
+     */
+    @Test
+    public void run_invalidWorkers() {
+        pipeline.setMapWorkers(0);
+        try {
+            pipeline.run(createDatasets(1));
+            Assert.fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("dcat-"));
+        }
+    }
+
+    @Test
+    public void run_stream() throws IOException {
+        Mockito.when(ckanAPI.createPackage(Mockito.any())).thenReturn("4711");
+        Mockito.when(ckanAPI.createResource(Mockito.any())).thenReturn("0815");
+
+        final List<UploadResult> results = pipeline.run(getClass().getResourceAsStream("/dataset-with-geometry.xml"), Lang.RDFXML);
+
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("4711", results.get(0).getPackageId());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void run_upsert() {
+        dcatUploader.setUpsert(true);
+        pipeline.run(createDatasets(1));
+    }
+}